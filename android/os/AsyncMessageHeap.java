@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 一个{@link MessageStore}中异步消息的二级索引：只包含异步消息、按投递顺序排列的4叉小顶堆。
+ *
+ * <p>
+ *     队首是同步障碍器时，looper需要找到最靠前的异步消息，入队时也要判断新消息是否成为了它。
+ *     原来的做法是从队首跳过所有同步消息，障碍器挡住几千个同步消息时每次唤醒都是O(n)；有了这个索引，
+ *     {@link #peek()}为O(1)，插入和移除为O(log m)，m是异步消息的个数。
+ * </p>
+ * <p>
+ *     是否进入索引在插入时由{@link #insert}判断一次，消息在堆中的下标记录在Message.asyncIndex，
+ *     移除时据此判断，所以消息在队列中被改成同步/异步不会破坏索引。所有方法都必须在持有MessageQueue对象锁时调用。
+ * </p>
+ */
+final class AsyncMessageHeap {
+    private static final int ARITY = 4;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private Message[] mHeap = new Message[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**msg是异步消息（不是同步障碍器）时放入索引**/
+    void insert(Message msg) {
+        if (msg.target == null || !msg.isAsynchronous()) {
+            return;
+        }
+        if (mSize == mHeap.length) {
+            final Message[] heap = new Message[mSize << 1];
+            System.arraycopy(mHeap, 0, heap, 0, mSize);
+            mHeap = heap;
+        }
+        siftUp(mSize++, msg);
+    }
+
+    /**msg在索引中时移除它**/
+    void remove(Message msg) {
+        final int i = msg.asyncIndex;
+        if (i < 0) {
+            return;
+        }
+        final int last = --mSize;
+        final Message moved = mHeap[last];
+        mHeap[last] = null;
+        if (i != last) {
+            siftDown(i, moved);
+            if (mHeap[i] == moved) {
+                siftUp(i, moved);
+            }
+        }
+        msg.asyncIndex = -1;
+    }
+
+    /**@return 投递顺序最靠前的异步消息，没有时返回null**/
+    Message peek() {
+        return mSize > 0 ? mHeap[0] : null;
+    }
+
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mHeap[i].asyncIndex = -1;
+            mHeap[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void siftUp(int i, Message msg) {
+        final Message[] heap = mHeap;
+        while (i > 0) {
+            final int parent = (i - 1) / ARITY;
+            final Message p = heap[parent];
+            if (!MessageStore.isBefore(msg, p)) {
+                break;
+            }
+            heap[i] = p;
+            p.asyncIndex = i;
+            i = parent;
+        }
+        heap[i] = msg;
+        msg.asyncIndex = i;
+    }
+
+    private void siftDown(int i, Message msg) {
+        final Message[] heap = mHeap;
+        final int size = mSize;
+        for (;;) {
+            final int firstChild = i * ARITY + 1;
+            if (firstChild >= size) {
+                break;
+            }
+            int min = firstChild;
+            final int end = Math.min(firstChild + ARITY, size);
+            for (int c = firstChild + 1; c < end; c++) {
+                if (MessageStore.isBefore(heap[c], heap[min])) {
+                    min = c;
+                }
+            }
+            final Message child = heap[min];
+            if (!MessageStore.isBefore(child, msg)) {
+                break;
+            }
+            heap[i] = child;
+            child.asyncIndex = i;
+            i = min;
+        }
+        heap[i] = msg;
+        msg.asyncIndex = i;
+    }
+}
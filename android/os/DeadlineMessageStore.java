@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 最早截止时间优先（EDF）的消息存储：尚未到期的消息按(when, seq)存放在普通存储中，
+ * {@link #select(long)}把已经到期、且不被同步障碍器挡住的消息移入就绪堆，就绪堆按
+ * (deadline, when, seq)排序，没有截止时间的消息排在最后。
+ *
+ * <p>
+ *     就绪堆中的消息都排在之后发布的任何障碍器之前（它们的when不晚于障碍器的when，seq更小），
+ *     所以移入后不需要再检查障碍器。
+ * </p>
+ * <p>
+ *     就绪堆非空时{@link #peek()}返回的消息一定已经到期，但不一定是when最小的。MessageQueue只在没有到期
+ *     消息时（此时就绪堆为空）才依赖peek()的精确顺序计算阻塞时长和唤醒条件。
+ * </p>
+ */
+final class DeadlineMessageStore extends MessageStore {
+    /**尚未移入就绪堆的消息**/
+    private final MessageStore mPending;
+    /**已到期的消息，按截止时间排序**/
+    private final HeapMessageStore mReady = new HeapMessageStore() {
+        @Override
+        boolean before(Message a, Message b) {
+            final long da = a.deadline != 0 ? a.deadline : Long.MAX_VALUE;
+            final long db = b.deadline != 0 ? b.deadline : Long.MAX_VALUE;
+            if (da != db) {
+                return da < db;
+            }
+            return isBefore(a, b);
+        }
+    };
+
+    /**
+     * @param pending 存放尚未到期的消息的存储
+     */
+    DeadlineMessageStore(MessageStore pending) {
+        mPending = pending;
+    }
+
+    @Override
+    void insert(Message msg) {
+        mPending.insert(msg);
+    }
+
+    @Override
+    void insertAll(Message[] sorted, int count) {
+        mPending.insertAll(sorted, count);
+    }
+
+    @Override
+    Message peek() {
+        final Message p = mPending.peek();
+        final Message r = mReady.peek();
+        if (r == null) {
+            return p;
+        }
+        return p != null && isBefore(p, r) ? p : r;
+    }
+
+    @Override
+    Message peekAsync() {
+        final Message p = mPending.peekAsync();
+        if (mReady.size() == 0) {
+            return p;
+        }
+        final Message r = mReady.peekAsync();
+        if (r == null) {
+            return p;
+        }
+        return p != null && isBefore(p, r) ? p : r;
+    }
+
+    @Override
+    Message select(long now) {
+        //按原来的规则逐个取出已到期的可投递消息，移入就绪堆
+        Message msg;
+        while ((msg = mPending.select(now)) != null && msg.when <= now) {
+            mPending.remove(msg);
+            mReady.insert(msg);
+        }
+        final Message ready = mReady.peek();
+        return ready != null ? ready : msg;
+    }
+
+    @Override
+    void remove(Message msg) {
+        if (mReady.contains(msg)) {
+            mReady.remove(msg);
+        } else {
+            mPending.remove(msg);
+        }
+    }
+
+    @Override
+    Message first() {
+        final Message p = mPending.first();
+        return p != null ? p : mReady.first();
+    }
+
+    @Override
+    Message next(Message msg) {
+        final Message n = mPending.next(msg);
+        if (n != null) {
+            return n;
+        }
+        //mPending走完后接着遍历就绪堆
+        return mReady.contains(msg) ? null : mReady.first();
+    }
+
+    @Override
+    int size() {
+        return mPending.size() + mReady.size();
+    }
+
+    @Override
+    void clear() {
+        //把两条遍历链首尾相接，使清空后依然能从first()沿Message.next走遍所有消息
+        Message last = mPending.first();
+        final Message ready = mReady.first();
+        if (last != null && ready != null) {
+            while (last.next != null) {
+                last = last.next;
+            }
+            last.next = ready;
+        }
+        mPending.clear();
+        mReady.clear();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 统计一个Looper的消息分发指标的{@link Looper.DispatchObserver}：
+ * <ul>
+ *     <li>调度延迟：开始分发的时刻比Message.when晚了多少毫秒（插到队首的消息不计）；</li>
+ *     <li>执行耗时：dispatchMessage()花费的微秒数；</li>
+ *     <li>按(Handler类, Runnable类, what)分组的分发次数、总耗时和最大耗时。</li>
+ * </ul>
+ * 排队深度由{@link MessageQueue#getQueueDepth()}和{@link MessageQueue#getPeakQueueDepth()}提供，
+ * {@link #dump}会一并打印。
+ *
+ * <p>
+ *     统计在looper线程上进行：两个直方图各是一个预分配的数组；分组计数用开放寻址的哈希表，只有第一次
+ *     遇到某个分组时才分配一个{@link Entry}。分组个数超过上限后，新的分组计入一个公共的溢出分组。
+ * </p>
+ *
+ * <pre>
+ *  DispatchMetrics metrics = new DispatchMetrics(looper);
+ *  looper.addDispatchObserver(metrics);
+ * </pre>
+ */
+public final class DispatchMetrics implements Looper.DispatchObserver {
+    private static final int DEFAULT_MAX_ENTRIES = 512;
+
+    /**一个分组的统计值**/
+    public static final class Entry {
+        final Class<?> handlerClass;
+        final Class<?> callbackClass;
+        final int what;
+        long count;
+        long totalNanos;
+        long maxNanos;
+
+        Entry(Class<?> handlerClass, Class<?> callbackClass, int what) {
+            this.handlerClass = handlerClass;
+            this.callbackClass = callbackClass;
+            this.what = what;
+        }
+
+        Entry(Entry other) {
+            this(other.handlerClass, other.callbackClass, other.what);
+            count = other.count;
+            totalNanos = other.totalNanos;
+            maxNanos = other.maxNanos;
+        }
+
+        /**目标Handler的类，溢出分组为null**/
+        public Class<?> getHandlerClass() {
+            return handlerClass;
+        }
+
+        /**post的Runnable的类，普通消息为null**/
+        public Class<?> getCallbackClass() {
+            return callbackClass;
+        }
+
+        public int getWhat() {
+            return what;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            if (handlerClass == null) {
+                return "(overflow) count=" + count + " total=" + totalNanos / 1000 + "us"
+                        + " max=" + maxNanos / 1000 + "us";
+            }
+            return handlerClass.getName()
+                    + (callbackClass != null ? " callback=" + callbackClass.getName() : "")
+                    + " what=" + what + " count=" + count
+                    + " total=" + totalNanos / 1000 + "us"
+                    + " max=" + maxNanos / 1000 + "us";
+        }
+    }
+
+    private final MessageQueue mQueue;
+    private final int mMaxEntries;
+    private final LogLinearHistogram mLagMillis = new LogLinearHistogram();
+    private final LogLinearHistogram mExecutionMicros = new LogLinearHistogram();
+
+    /**
+     * 开放寻址哈希表，长度为2的幂。只有looper线程修改；插入新分组和扩容时持有this，
+     * 其他线程持有this读取。
+     */
+    private Entry[] mTable = new Entry[64];
+    private int mSize;
+    private final Entry mOverflow = new Entry(null, null, 0);
+
+    /**
+     * @param looper 被统计的Looper，用于在dump中打印排队深度
+     */
+    public DispatchMetrics(Looper looper) {
+        this(looper, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param looper 被统计的Looper，用于在dump中打印排队深度
+     * @param maxEntries 分组个数上限
+     */
+    public DispatchMetrics(Looper looper, int maxEntries) {
+        mQueue = looper.getQueue();
+        mMaxEntries = maxEntries;
+    }
+
+    @Override
+    public void onDispatchStarting(Message msg, Handler target, int what, long startNanos) {
+        if (msg.when != 0) {
+            mLagMillis.record(SystemClock.uptimeMillis() - msg.when);
+        }
+    }
+
+    @Override
+    public void onDispatchFinished(Message msg, Handler target, int what, long startNanos,
+            long endNanos) {
+        final long nanos = endNanos - startNanos;
+        mExecutionMicros.record(nanos / 1000);
+
+        final Entry entry = entryFor(target.getClass(),
+                msg.callback != null ? msg.callback.getClass() : null, what);
+        entry.count++;
+        entry.totalNanos += nanos;
+        if (nanos > entry.maxNanos) {
+            entry.maxNanos = nanos;
+        }
+    }
+
+    /**调度延迟的直方图，单位毫秒**/
+    public LogLinearHistogram getLagHistogram() {
+        return mLagMillis;
+    }
+
+    /**执行耗时的直方图，单位微秒**/
+    public LogLinearHistogram getExecutionHistogram() {
+        return mExecutionMicros;
+    }
+
+    /**
+     * @return 所有分组统计值的快照（溢出分组有数据时排在最后）
+     */
+    public List<Entry> getEntries() {
+        synchronized (this) {
+            final List<Entry> result = new ArrayList<Entry>(mSize + 1);
+            for (Entry entry : mTable) {
+                if (entry != null) {
+                    result.add(new Entry(entry));
+                }
+            }
+            if (mOverflow.count != 0) {
+                result.add(new Entry(mOverflow));
+            }
+            return result;
+        }
+    }
+
+    public void dump(Printer pw, String prefix) {
+        pw.println(prefix + "Dispatch metrics:");
+        pw.println(prefix + "  lag(ms): " + mLagMillis);
+        pw.println(prefix + "  execution(us): " + mExecutionMicros);
+        pw.println(prefix + "  queue depth: current=" + mQueue.getQueueDepth()
+                + " peak=" + mQueue.getPeakQueueDepth());
+        for (Entry entry : getEntries()) {
+            pw.println(prefix + "  " + entry);
+        }
+    }
+
+    private Entry entryFor(Class<?> handlerClass, Class<?> callbackClass, int what) {
+        final Entry[] table = mTable;
+        final int mask = table.length - 1;
+        int i = hash(handlerClass, callbackClass, what) & mask;
+        Entry entry;
+        while ((entry = table[i]) != null) {
+            if (entry.handlerClass == handlerClass && entry.callbackClass == callbackClass
+                    && entry.what == what) {
+                return entry;
+            }
+            i = (i + 1) & mask;
+        }
+        //第一次遇到这个分组
+        synchronized (this) {
+            if (mSize >= mMaxEntries) {
+                return mOverflow;
+            }
+            entry = new Entry(handlerClass, callbackClass, what);
+            table[i] = entry;
+            if (++mSize * 2 > table.length) {
+                resizeLocked();
+            }
+            return entry;
+        }
+    }
+
+    private void resizeLocked() {
+        final Entry[] old = mTable;
+        final Entry[] table = new Entry[old.length * 2];
+        final int mask = table.length - 1;
+        for (Entry entry : old) {
+            if (entry == null) {
+                continue;
+            }
+            int i = hash(entry.handlerClass, entry.callbackClass, entry.what) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+        mTable = table;
+    }
+
+    private static int hash(Class<?> handlerClass, Class<?> callbackClass, int what) {
+        int h = System.identityHashCode(handlerClass);
+        h = h * 31 + System.identityHashCode(callbackClass);
+        h = h * 31 + what;
+        //打散低位，线性探测只使用低位
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Printer;
+
+/**
+ * 把最近的消息分发记录在环形缓冲区中的{@link Looper.DispatchObserver}，用来代替
+ * {@link Looper#setMessageLogging}的字符串日志。
+ *
+ * <p>
+ *     缓冲区在构造时一次性分配，记录一个消息只是写几个数组元素，不产生任何对象。为了不让缓冲区持有
+ *     Handler和Runnable（进而持有Activity等对象），只记录它们的Class。
+ * </p>
+ * <p>
+ *     只有looper线程写入，{@link #dump}可以在任意线程调用：读取前后各读一次写入计数，丢弃读取期间
+ *     可能被覆盖的记录，所以不需要加锁。
+ * </p>
+ *
+ * <pre>
+ *  DispatchTraceRecorder recorder = new DispatchTraceRecorder(256);
+ *  looper.addDispatchObserver(recorder);
+ *  ...
+ *  recorder.dump(new LogPrinter(Log.DEBUG, TAG), "");
+ * </pre>
+ */
+public final class DispatchTraceRecorder implements Looper.DispatchObserver {
+    private final int mMask;
+    /**以下数组的同一下标组成一条记录**/
+    private final long[] mWhen;
+    private final long[] mStartUptime;
+    private final long[] mDurationNanos;
+    private final int[] mWhat;
+    private final Class<?>[] mTargetClass;
+    private final Class<?>[] mCallbackClass;
+
+    /**已经完成的记录个数，第n条记录保存在n & mMask的位置。写入完整条记录后才发布**/
+    private volatile long mCount;
+
+    /**
+     * @param capacity 至少保留的记录条数
+     */
+    public DispatchTraceRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        //多留一个槽位给looper线程正在写入的记录，数组长度取2的幂
+        final int size = Integer.highestOneBit(capacity) << 1;
+        mMask = size - 1;
+        mWhen = new long[size];
+        mStartUptime = new long[size];
+        mDurationNanos = new long[size];
+        mWhat = new int[size];
+        mTargetClass = new Class<?>[size];
+        mCallbackClass = new Class<?>[size];
+    }
+
+    @Override
+    public void onDispatchStarting(Message msg, Handler target, int what, long startNanos) {
+        //记录在结束时一次写完，开始时不需要做任何事
+    }
+
+    @Override
+    public void onDispatchFinished(Message msg, Handler target, int what, long startNanos,
+            long endNanos) {
+        final long count = mCount;
+        final int i = (int) (count & mMask);
+        final long durationNanos = endNanos - startNanos;
+        mWhen[i] = msg.when;
+        //由结束时刻倒推开始时刻的uptime，避免在开始时再读一次时钟
+        mStartUptime[i] = SystemClock.uptimeMillis() - durationNanos / 1000000;
+        mDurationNanos[i] = durationNanos;
+        mWhat[i] = what;
+        mTargetClass[i] = target.getClass();
+        mCallbackClass[i] = msg.callback != null ? msg.callback.getClass() : null;
+        mCount = count + 1;
+    }
+
+    /**
+     * @return 自创建以来记录过的分发次数，包括已经被覆盖的记录
+     */
+    public long getRecordedCount() {
+        return mCount;
+    }
+
+    /**
+     * 按时间顺序打印缓冲区中的记录。每行包含消息的what、目标Handler和callback的类名、
+     * 调度延迟（开始分发时刻与when之差）和执行耗时。
+     */
+    public void dump(Printer pw, String prefix) {
+        final int size = mMask + 1;
+        final long before = mCount;
+        final long first = Math.max(0, before - (size - 1));
+        final int n = (int) (before - first);
+        final long[] when = new long[n];
+        final long[] startUptime = new long[n];
+        final long[] durationNanos = new long[n];
+        final int[] what = new int[n];
+        final Class<?>[] targetClass = new Class<?>[n];
+        final Class<?>[] callbackClass = new Class<?>[n];
+        for (int k = 0; k < n; k++) {
+            final int i = (int) ((first + k) & mMask);
+            when[k] = mWhen[i];
+            startUptime[k] = mStartUptime[i];
+            durationNanos[k] = mDurationNanos[i];
+            what[k] = mWhat[i];
+            targetClass[k] = mTargetClass[i];
+            callbackClass[k] = mCallbackClass[i];
+        }
+        //读取期间looper线程写入的记录会覆盖最旧的几条，丢弃它们（正在写入的那一条占用的槽位也算在内）
+        final long after = mCount;
+        final int skip = (int) Math.min(n, Math.max(0, after + 1 - size - first));
+
+        pw.println(prefix + "Dispatch trace (" + (n - skip) + " of " + after + " dispatches):");
+        for (int k = skip; k < n; k++) {
+            final StringBuilder b = new StringBuilder();
+            b.append(prefix).append("  #").append(first + k)
+                    .append(" what=").append(what[k])
+                    .append(" target=").append(targetClass[k].getName());
+            if (callbackClass[k] != null) {
+                b.append(" callback=").append(callbackClass[k].getName());
+            }
+            if (when[k] != 0) {
+                //when为0的是插到队首的消息，没有调度延迟可言
+                b.append(" lag=").append(startUptime[k] - when[k]).append("ms");
+            }
+            b.append(" took=").append(durationNanos[k] / 1000).append("us");
+            pw.println(b.toString());
+        }
+    }
+}
@@ -20,6 +20,15 @@ import android.util.Log;
 import android.util.Printer;
 
 import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Hanlder允许开发者往线程关联的{@link MessageQueue}发送{@link Message}和Runnable对象。每个
@@ -72,6 +81,22 @@ public class Handler {
     private static final boolean FIND_POTENTIAL_LEAKS = false;
     private static final String TAG = "Handler";
 
+    /**
+     * 合并发送模式：删除队列中所有同键的消息，再加入新消息。用于防抖（debounce）。
+     * @see #sendMessageAtTimeCoalesced
+     */
+    public static final int COALESCE_REPLACE_EXISTING = 0;
+    /**
+     * 合并发送模式：队列中已有同键的消息时丢弃新消息。用于节流（throttle）。
+     * @see #sendMessageAtTimeCoalesced
+     */
+    public static final int COALESCE_KEEP_EXISTING = 1;
+    /**
+     * 合并发送模式：只保留执行时间最早的一个，已有同键消息不晚于新消息时丢弃新消息，否则用新消息替换它们。
+     * @see #sendMessageAtTimeCoalesced
+     */
+    public static final int COALESCE_KEEP_EARLIEST = 2;
+
     /**
      * 回调接口。如果要处理Message对象，通常要定义一个Handler的子类并重写子类的
      * {@link #handleMessage(Message)}。而使用Callback接口可以避免继承，方法是在构造Handler对象
@@ -439,6 +464,127 @@ public class Handler {
         return sendMessageAtFrontOfQueue(getPostMessage(r));
     }
 
+    /**
+     * 一次性发布多个Runnable，效果等同于依次调用{@link #post}，但所有Runnable在一次加锁中并入消息队列，
+     * 并且最多唤醒消息循环一次。
+     *
+     * @param rs 需要执行的Runnable，按参数顺序执行
+     * @return 全部加入消息队列时返回true；消息循环正在退出，或者设置了
+     *  {@link MessageQueue.Config#setCapacity 容量}并且按溢出策略拒绝（或丢弃）了这批消息时返回false，
+     *  此时没有任何一个被加入
+     */
+    public final boolean postAll(Runnable... rs)
+    {
+        final Message[] batch = new Message[rs.length];
+        for (int i = 0; i < rs.length; i++) {
+            batch[i] = getPostMessage(rs[i]);
+        }
+        return enqueueMessages(batch, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * {@link #submit(Callable, Handler, ResultCallback)}的结果回调，在指定的Handler上执行。
+     */
+    public interface ResultCallback<T> {
+        /**task正常返回**/
+        void onResult(T result);
+
+        /**
+         * task抛出了异常，或者没能执行：被取消时是{@link CancellationException}，Looper正在退出时是
+         * {@link IllegalStateException}。
+         */
+        void onError(Throwable error);
+    }
+
+    /**
+     * 把task发送到这个Handler的线程上执行，立即返回代表结果的Future。
+     * <p>
+     * 与{@link #runWithScissors}不同，调用线程不需要等待：可以稍后调用{@link Future#get}（通过
+     * LockSupport阻塞，响应中断和超时），或者使用{@link #submit(Callable, Handler, ResultCallback)}
+     * 在另一个线程上接收结果。task抛出的异常被保存在Future中，不会让looper线程崩溃。
+     * </p><p>
+     * {@link Future#cancel}会把尚未执行的task从消息队列中删除，但从不中断looper线程。在looper线程上调用
+     * 一个尚未完成的Future的get()会抛出IllegalStateException，因为它永远等不到结果。Looper正在退出时
+     * Future以IllegalStateException结束；用{@link Looper#quit}退出时尚未执行的task不会结束，等待时应当
+     * 带上超时。
+     * </p>
+     */
+    public final <T> Future<T> submit(Callable<T> task) {
+        return submit(task, null, null);
+    }
+
+    /**
+     * 与{@link #submit(Callable)}相同，task结束（包括被取消）后在replyTo的线程上回调callback。
+     *
+     * @param replyTo 执行callback的Handler，为null时在task结束的线程上直接回调
+     * @param callback 结果回调，可为null
+     */
+    public final <T> Future<T> submit(Callable<T> task, Handler replyTo,
+            ResultCallback<T> callback) {
+        if (task == null) {
+            throw new IllegalArgumentException("task must not be null");
+        }
+        final HandlerFuture<T> future = new HandlerFuture<T>(this, task, replyTo, callback);
+        if (!post(future)) {
+            future.fail(new IllegalStateException(this + " is exiting"));
+        }
+        return future;
+    }
+
+    /**
+     * 同步执行r，是{@link #runWithScissors}的替代：在Handler的线程上调用时直接执行，否则发送后等待
+     * 它执行完。等待通过LockSupport阻塞，不占用任何对象锁；被中断或者超时的时候，如果r还没有开始执行，
+     * 就把它从消息队列中删除，保证它之后也不会执行。
+     *
+     * @param timeoutMillis 最多等待的毫秒数，0表示一直等待
+     * @return true r已经执行完；false 超时（r已经被删除或者正在执行），或者Looper正在退出
+     * @throws InterruptedException 等待期间调用线程被中断
+     * @throws RuntimeException r在Handler的线程上抛出的异常，在调用线程上重新抛出
+     */
+    public final boolean postAndAwait(Runnable r, long timeoutMillis)
+            throws InterruptedException {
+        if (r == null) {
+            throw new IllegalArgumentException("runnable must not be null");
+        }
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeout must be non-negative");
+        }
+
+        if (mLooper.isCurrentThread()) {
+            r.run();
+            return true;
+        }
+
+        final HandlerFuture<Object> future = new HandlerFuture<Object>(this,
+                Executors.callable(r), null, null);
+        if (!post(future)) {
+            return false;
+        }
+        try {
+            if (timeoutMillis > 0) {
+                future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                future.get();
+            }
+            return true;
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            return false;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     /**
      * 看不明白……
      * Runs the specified task synchronously.
@@ -660,6 +806,186 @@ public class Handler {
         return enqueueMessage(queue, msg, 0);
     }
 
+    /**
+     * 一次性把多个消息加入消息队列，它们都在绝对时刻uptimeMillis之后被处理。效果等同于依次调用
+     * {@link #sendMessageAtTime}，但所有消息在一次加锁中并入消息队列，并且最多唤醒消息循环一次，
+     * 适合一个线程短时间内发出大量消息的场景。
+     * <p>注意：重写{@link #sendMessageAtTime}不会影响这个方法。</p>
+     *
+     * @param msgs 需要发送的消息，执行时刻相同的消息按列表顺序处理
+     * @param uptimeMillis 基于{@link android.os.SystemClock#uptimeMillis}的绝对时刻
+     * @return 全部加入消息队列时返回true；消息循环正在退出，或者设置了
+     *  {@link MessageQueue.Config#setCapacity 容量}并且按溢出策略拒绝（或丢弃）了这批消息时返回false，
+     *  此时没有任何一个被加入
+     */
+    public final boolean sendMessagesAtTime(List<Message> msgs, long uptimeMillis) {
+        return enqueueMessages(msgs.toArray(new Message[msgs.size()]), uptimeMillis);
+    }
+
+    /**
+     * 与{@link #sendMessagesAtTime(List, long)}相同，所有消息在当前时刻加上delayMillis之后被处理。
+     */
+    public final boolean sendMessagesDelayed(List<Message> msgs, long delayMillis) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        return sendMessagesAtTime(msgs, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    /**
+     * 合并发送：与队列中尚未处理的同键消息合并，结果队列中最多只有一个同键消息。效果相当于先
+     * {@link #removeMessages(int, Object)}再{@link #sendMessageAtTime}，但查找和替换在消息队列的一次加锁
+     * 中通过索引完成，不需要扫描整个队列。
+     *
+     * <p>
+     *     键是(this, msg.what, msg.obj)，post的Runnable消息则是(this, msg.callback, msg.obj)；obj按引用比较，
+     *     null只与null相同。
+     * </p>
+     * <p>注意：重写{@link #sendMessageAtTime}不会影响这个方法。</p>
+     *
+     * @param msg 需要发送的消息，被丢弃时会被回收
+     * @param uptimeMillis 基于{@link android.os.SystemClock#uptimeMillis}的绝对时刻
+     * @param mode {@link #COALESCE_REPLACE_EXISTING}、{@link #COALESCE_KEEP_EXISTING}或者
+     *  {@link #COALESCE_KEEP_EARLIEST}
+     * @return 队列中有一个同键的消息（新消息或者保留下来的旧消息）时返回true；消息循环正在退出时返回false
+     */
+    public final boolean sendMessageAtTimeCoalesced(Message msg, long uptimeMillis, int mode) {
+        if (mode < COALESCE_REPLACE_EXISTING || mode > COALESCE_KEEP_EARLIEST) {
+            throw new IllegalArgumentException("Unknown coalesce mode " + mode);
+        }
+        MessageQueue queue = mQueue;
+        if (queue == null) {
+            RuntimeException e = new RuntimeException(
+                    this + " sendMessageAtTimeCoalesced() called with no mQueue");
+            Log.w("Looper", e.getMessage(), e);
+            return false;
+        }
+        msg.target = this;
+        if (mAsynchronous) {
+            msg.setAsynchronous(true);
+        }
+        return queue.enqueueMessageCoalesced(msg, uptimeMillis, mode);
+    }
+
+    /**
+     * 与{@link #sendMessageAtTimeCoalesced}相同，消息在当前时刻加上delayMillis之后被处理。
+     */
+    public final boolean sendMessageDelayedCoalesced(Message msg, long delayMillis, int mode) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        return sendMessageAtTimeCoalesced(msg, SystemClock.uptimeMillis() + delayMillis, mode);
+    }
+
+    /**
+     * 防抖：在delayMillis之后发送一个what消息，之前发送的还没处理的同一个what消息被取消。连续调用时只有
+     * 最后一次调用后安静了delayMillis，消息才会被处理。
+     */
+    public final boolean sendEmptyMessageDebounced(int what, long delayMillis) {
+        Message msg = Message.obtain();
+        msg.what = what;
+        return sendMessageDelayedCoalesced(msg, delayMillis, COALESCE_REPLACE_EXISTING);
+    }
+
+    /**
+     * 节流：队列中没有尚未处理的what消息时，在intervalMillis之后发送一个；已经有一个时什么也不做。
+     * 连续调用时每intervalMillis最多处理一次，每次处理都会覆盖到此前的所有调用。
+     */
+    public final boolean sendEmptyMessageThrottled(int what, long intervalMillis) {
+        Message msg = Message.obtain();
+        msg.what = what;
+        return sendMessageDelayedCoalesced(msg, intervalMillis, COALESCE_KEEP_EXISTING);
+    }
+
+    /**
+     * Runnable版本的{@link #sendEmptyMessageDebounced}，r在最后一次调用的delayMillis之后执行一次。
+     */
+    public final boolean postDebounced(Runnable r, long delayMillis) {
+        return sendMessageDelayedCoalesced(getPostMessage(r), delayMillis,
+                COALESCE_REPLACE_EXISTING);
+    }
+
+    /**
+     * Runnable版本的{@link #sendEmptyMessageThrottled}，r每intervalMillis最多执行一次。
+     */
+    public final boolean postThrottled(Runnable r, long intervalMillis) {
+        return sendMessageDelayedCoalesced(getPostMessage(r), intervalMillis,
+                COALESCE_KEEP_EXISTING);
+    }
+
+    /**
+     * 与{@link #postDelayed(Runnable, long)}相同，返回这一次发送的句柄，可以只取消或者改期这一次发送。
+     *
+     * @return 句柄；消息循环正在退出时返回null
+     * @see MessageHandle
+     */
+    public final MessageHandle postCancellable(Runnable r, long delayMillis) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        return postAtTimeCancellable(r, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    /**
+     * 与{@link #postAtTime(Runnable, long)}相同，返回这一次发送的句柄。
+     *
+     * @return 句柄；消息循环正在退出时返回null
+     */
+    public final MessageHandle postAtTimeCancellable(Runnable r, long uptimeMillis) {
+        return sendMessageAtTimeCancellable(getPostMessage(r), uptimeMillis);
+    }
+
+    /**
+     * 与{@link #sendMessageDelayed(Message, long)}相同，返回这一次发送的句柄。
+     *
+     * @return 句柄；消息循环正在退出时返回null
+     */
+    public final MessageHandle sendMessageCancellable(Message msg, long delayMillis) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        return sendMessageAtTimeCancellable(msg, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    /**
+     * 与{@link #sendMessageAtTime(Message, long)}相同，返回这一次发送的句柄。
+     * <p>注意：重写{@link #sendMessageAtTime}不会影响这个方法。</p>
+     *
+     * @return 句柄；消息循环正在退出时返回null
+     */
+    public final MessageHandle sendMessageAtTimeCancellable(Message msg, long uptimeMillis) {
+        MessageQueue queue = mQueue;
+        if (queue == null) {
+            RuntimeException e = new RuntimeException(
+                    this + " sendMessageAtTimeCancellable() called with no mQueue");
+            Log.w("Looper", e.getMessage(), e);
+            return null;
+        }
+        //入队之后消息随时可能被分发并回收，必须先记下代数
+        final int generation = msg.generation;
+        if (!enqueueMessage(queue, msg, uptimeMillis)) {
+            return null;
+        }
+        return new MessageHandle(queue, msg, generation);
+    }
+
+    private boolean enqueueMessages(Message[] msgs, long uptimeMillis) {
+        MessageQueue queue = mQueue;
+        if (queue == null) {
+            RuntimeException e = new RuntimeException(
+                    this + " sendMessagesAtTime() called with no mQueue");
+            Log.w("Looper", e.getMessage(), e);
+            return false;
+        }
+        for (Message msg : msgs) {
+            msg.target = this;
+            if (mAsynchronous) {
+                msg.setAsynchronous(true);
+            }
+        }
+        return queue.enqueueMessages(msgs, uptimeMillis);
+    }
+
     /**
      * 将消息msg加入消息队列queue中，uptimeMillis即为消息的执行时间<em> when </em>。
      */
@@ -787,6 +1113,92 @@ public class Handler {
 
 
     //TODO :了解功能
+    /**
+     * {@link #submit}返回的Future，本身就是发送到消息队列的Runnable。等待由FutureTask通过LockSupport实现。
+     */
+    private static final class HandlerFuture<T> extends FutureTask<T> {
+        private final Handler mHandler;
+        private final Handler mReplyTo;
+        private final ResultCallback<T> mCallback;
+
+        HandlerFuture(Handler handler, Callable<T> task, Handler replyTo,
+                ResultCallback<T> callback) {
+            super(task);
+            mHandler = handler;
+            mReplyTo = replyTo;
+            mCallback = callback;
+        }
+
+        void fail(Throwable error) {
+            setException(error);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            //从不中断looper线程，它还要继续处理其他消息
+            if (!super.cancel(false)) {
+                return false;
+            }
+            mHandler.removeCallbacks(this);
+            return true;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            checkNotLooperThread();
+            return super.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            checkNotLooperThread();
+            return super.get(timeout, unit);
+        }
+
+        private void checkNotLooperThread() {
+            if (!isDone() && mHandler.mLooper.isCurrentThread()) {
+                throw new IllegalStateException(
+                        "Waiting on the handler's own thread would never complete");
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null) {
+                return;
+            }
+            if (mReplyTo == null) {
+                deliver();
+                return;
+            }
+            mReplyTo.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        private void deliver() {
+            final T result;
+            try {
+                result = super.get();
+            } catch (CancellationException e) {
+                mCallback.onError(e);
+                return;
+            } catch (ExecutionException e) {
+                mCallback.onError(e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                //done()之后get()不会阻塞
+                Thread.currentThread().interrupt();
+                return;
+            }
+            mCallback.onResult(result);
+        }
+    }
+
     private static final class BlockingRunnable implements Runnable {
         private final Runnable mTask;
         private boolean mDone;
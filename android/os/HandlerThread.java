@@ -26,10 +26,11 @@ public class HandlerThread extends Thread {
     int mPriority;
     int mTid = -1;
     Looper mLooper;
+    /**创建Looper时使用的消息队列配置，可为null**/
+    final MessageQueue.Config mQueueConfig;
 
     public HandlerThread(String name) {
-        super(name);
-        mPriority = Process.THREAD_PRIORITY_DEFAULT;
+        this(name, Process.THREAD_PRIORITY_DEFAULT, null);
     }
     
     /**
@@ -39,8 +40,19 @@ public class HandlerThread extends Thread {
      * {@link android.os.Process} and not from java.lang.Thread.
      */
     public HandlerThread(String name, int priority) {
+        this(name, priority, null);
+    }
+
+    /**
+     * 创建HandlerThread，并使用config定制其Looper的消息队列。
+     * @param name
+     * @param priority 同{@link #HandlerThread(String, int)}
+     * @param config 消息队列配置，参考{@link Looper#prepare(MessageQueue.Config)}；为null时使用默认配置
+     */
+    public HandlerThread(String name, int priority, MessageQueue.Config config) {
         super(name);
         mPriority = priority;
+        mQueueConfig = config;
     }
     
     /**
@@ -53,7 +65,7 @@ public class HandlerThread extends Thread {
     @Override
     public void run() {
         mTid = Process.myTid();
-        Looper.prepare();
+        Looper.prepare(mQueueConfig);
         synchronized (this) {
             mLooper = Looper.myLooper();
             notifyAll();
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 以(when, seq)为键的4叉小顶堆。插入与移除任意消息均为O(log n)，适合大量延时消息
+ * （比如成千上万个postDelayed超时）的Looper。
+ *
+ * <p>
+ *     每个消息在堆数组中的下标记录在Message.heapIndex，以便按引用移除。遍历链按插入先后排列，
+ *     不是投递顺序。
+ * </p>
+ * <p>
+ *     子类可以覆盖{@link #before}改变堆的排序键，此时{@link #peek()}返回的是新键下最小的消息。
+ * </p>
+ */
+class HeapMessageStore extends MessageStore {
+    /**每个节点的子节点个数。4叉堆比二叉堆层数少一半，下沉时对缓存更友好**/
+    private static final int ARITY = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Message[] mHeap = new Message[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**遍历链（插入顺序）的首尾**/
+    private Message mFirst;
+    private Message mLast;
+    /**异步消息的二级堆，队首是同步障碍器时使用**/
+    private final AsyncMessageHeap mAsync = new AsyncMessageHeap();
+
+    @Override
+    void insert(Message msg) {
+        if (mSize == mHeap.length) {
+            final Message[] heap = new Message[mSize << 1];
+            System.arraycopy(mHeap, 0, heap, 0, mSize);
+            mHeap = heap;
+        }
+        siftUp(mSize++, msg);
+        mAsync.insert(msg);
+
+        //追加到遍历链尾部
+        msg.next = null;
+        msg.prev = mLast;
+        if (mLast != null) {
+            mLast.next = msg;
+        } else {
+            mFirst = msg;
+        }
+        mLast = msg;
+    }
+
+    @Override
+    Message peek() {
+        return mSize > 0 ? mHeap[0] : null;
+    }
+
+    @Override
+    Message peekAsync() {
+        return mAsync.peek();
+    }
+
+    @Override
+    void remove(Message msg) {
+        final int i = msg.heapIndex;
+        final int last = --mSize;
+        final Message moved = mHeap[last];
+        mHeap[last] = null;
+        if (i != last) {
+            //用堆尾元素填补空位，再根据它与父节点的大小决定上浮或下沉
+            siftDown(i, moved);
+            if (mHeap[i] == moved) {
+                siftUp(i, moved);
+            }
+        }
+        msg.heapIndex = -1;
+        mAsync.remove(msg);
+
+        final Message prev = msg.prev;
+        final Message next = msg.next;
+        if (prev != null) {
+            prev.next = next;
+        } else {
+            mFirst = next;
+        }
+        if (next != null) {
+            next.prev = prev;
+        } else {
+            mLast = prev;
+        }
+        msg.next = null;
+        msg.prev = null;
+    }
+
+    @Override
+    Message first() {
+        return mFirst;
+    }
+
+    /**msg是否在这个堆中**/
+    final boolean contains(Message msg) {
+        final int i = msg.heapIndex;
+        return i >= 0 && i < mSize && mHeap[i] == msg;
+    }
+
+    /**堆的排序键：a是否应该排在b之前，默认按投递顺序**/
+    boolean before(Message a, Message b) {
+        return isBefore(a, b);
+    }
+
+    @Override
+    int size() {
+        return mSize;
+    }
+
+    @Override
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mHeap[i].heapIndex = -1;
+            mHeap[i] = null;
+        }
+        mSize = 0;
+        mFirst = null;
+        mLast = null;
+        mAsync.clear();
+    }
+
+    private void siftUp(int i, Message msg) {
+        final Message[] heap = mHeap;
+        while (i > 0) {
+            final int parent = (i - 1) / ARITY;
+            final Message p = heap[parent];
+            if (!before(msg, p)) {
+                break;
+            }
+            heap[i] = p;
+            p.heapIndex = i;
+            i = parent;
+        }
+        heap[i] = msg;
+        msg.heapIndex = i;
+    }
+
+    private void siftDown(int i, Message msg) {
+        final Message[] heap = mHeap;
+        final int size = mSize;
+        for (;;) {
+            final int firstChild = i * ARITY + 1;
+            if (firstChild >= size) {
+                break;
+            }
+            //找出最小的子节点
+            int min = firstChild;
+            final int end = Math.min(firstChild + ARITY, size);
+            for (int c = firstChild + 1; c < end; c++) {
+                if (before(heap[c], heap[min])) {
+                    min = c;
+                }
+            }
+            final Message child = heap[min];
+            if (!before(child, msg)) {
+                break;
+            }
+            heap[i] = child;
+            child.heapIndex = i;
+            i = min;
+        }
+        heap[i] = msg;
+        msg.heapIndex = i;
+    }
+}
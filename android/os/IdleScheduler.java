@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+/**
+ * 一个MessageQueue的闲时任务调度器，取代原来每次空闲都把IdleHandler列表复制到数组再逐个执行的做法。
+ *
+ * <p>
+ *     注册的{@link MessageQueue.IdleHandler}和{@link MessageQueue.IdleTask}按优先级（数值小的先执行）
+ *     和注册顺序保存在一个写时复制的数组中，looper线程空闲时直接遍历当前数组，不需要复制，也不需要排序。
+ * </p>
+ * <p>
+ *     一个空闲期内按顺序执行，每个任务执行前都检查：是否有消息已经到期、是否用完了本次空闲期的预算，
+ *     二者之一成立即停止。IdleHandler每个空闲期最多执行一次；IdleTask每次执行一个时间片，设置了预算时，
+ *     一轮结束后如果还有IdleTask没有做完并且预算还有剩余，会接着执行下一轮。
+ * </p>
+ * <p>
+ *     为了不让排在后面的任务饿死，被打断的空闲期记下没有轮到的第一个任务，下一个空闲期从它开始执行，
+ *     执行到数组末尾再回到开头；一个空闲期完整执行完一轮后恢复从头开始。所以只要每个空闲期至少能执行一个任务，
+ *     即使高优先级的任务总是用完预算，低优先级的任务最终也能执行；没有被打断时仍然严格按优先级执行。
+ * </p>
+ */
+final class IdleScheduler {
+    private static final String TAG = "MessageQueue";
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    /**一个注册的闲时任务，handler与task二者只有一个非null**/
+    private static final class Entry {
+        final MessageQueue.IdleHandler handler;
+        final MessageQueue.IdleTask task;
+        final int priority;
+        /**已经被删除。快照中的Entry在删除后依然可能被遍历到，执行前需要检查**/
+        volatile boolean removed;
+
+        Entry(MessageQueue.IdleHandler handler, MessageQueue.IdleTask task, int priority) {
+            this.handler = handler;
+            this.task = task;
+            this.priority = priority;
+        }
+
+        boolean run(long deadline) {
+            return task != null ? task.runIdleSlice(deadline) : handler.queueIdle();
+        }
+    }
+
+    private final MessageQueue mQueue;
+    /**按(priority, 注册顺序)排序，写时复制，写入时持有this**/
+    private volatile Entry[] mEntries = NO_ENTRIES;
+    /**每个空闲期最多执行闲时任务的毫秒数，0表示不限**/
+    private volatile long mBudgetMillis;
+    /**上一个被打断的空闲期没有轮到的第一个任务，下一个空闲期从它开始，null表示从头开始。只由looper线程访问**/
+    private Entry mResume;
+
+    IdleScheduler(MessageQueue queue) {
+        mQueue = queue;
+    }
+
+    void add(MessageQueue.IdleHandler handler, MessageQueue.IdleTask task, int priority) {
+        final Entry entry = new Entry(handler, task, priority);
+        synchronized (this) {
+            final Entry[] old = mEntries;
+            //插在所有优先级不大于它的任务之后
+            int index = old.length;
+            while (index > 0 && old[index - 1].priority > priority) {
+                index--;
+            }
+            final Entry[] entries = new Entry[old.length + 1];
+            System.arraycopy(old, 0, entries, 0, index);
+            entries[index] = entry;
+            System.arraycopy(old, index, entries, index + 1, old.length - index);
+            mEntries = entries;
+        }
+    }
+
+    /**
+     * 删除第一个与handler或者task相同的任务，二者之一为null。
+     */
+    void remove(MessageQueue.IdleHandler handler, MessageQueue.IdleTask task) {
+        synchronized (this) {
+            final Entry[] old = mEntries;
+            for (int i = 0; i < old.length; i++) {
+                final Entry entry = old[i];
+                if (!entry.removed && (handler != null ? entry.handler == handler
+                        : entry.task == task)) {
+                    removeLocked(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        synchronized (this) {
+            final Entry[] old = mEntries;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == entry) {
+                    removeLocked(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void removeLocked(int index) {
+        final Entry[] old = mEntries;
+        old[index].removed = true;
+        if (old.length == 1) {
+            mEntries = NO_ENTRIES;
+            return;
+        }
+        final Entry[] entries = new Entry[old.length - 1];
+        System.arraycopy(old, 0, entries, 0, index);
+        System.arraycopy(old, index + 1, entries, index, old.length - index - 1);
+        mEntries = entries;
+    }
+
+    boolean isEmpty() {
+        return mEntries.length == 0;
+    }
+
+    void setBudget(long budgetMillis) {
+        mBudgetMillis = Math.max(budgetMillis, 0);
+    }
+
+    long getBudget() {
+        return mBudgetMillis;
+    }
+
+    /**
+     * 在looper线程上、不持有队列锁时执行一个空闲期的闲时任务。
+     *
+     * @param start 空闲期开始的时刻
+     */
+    void runIdlePeriod(long start) {
+        final Entry[] entries = mEntries;
+        final int count = entries.length;
+        final long budget = mBudgetMillis;
+        final long periodEnd = budget > 0 ? start + budget : Long.MAX_VALUE;
+        final int first = resumeIndex(entries);
+        mResume = null;
+        boolean firstRound = true;
+        boolean unfinished;
+        do {
+            unfinished = false;
+            for (int k = 0; k < count; k++) {
+                //第一轮从上次被打断的位置开始，回绕一圈
+                final int i = firstRound ? (first + k) % count : k;
+                final Entry entry = entries[i];
+                //IdleHandler每个空闲期只执行一次
+                if (entry.removed || (!firstRound && entry.task == null)) {
+                    continue;
+                }
+                final long now = SystemClock.uptimeMillis();
+                final long deadline = mQueue.idleDeadline(now, periodEnd);
+                if (deadline <= now) {
+                    //没有轮到的任务下一次先执行
+                    if (firstRound) {
+                        mResume = entry;
+                    }
+                    return;
+                }
+
+                boolean keep = false;
+                try {
+                    keep = entry.run(deadline);
+                } catch (Throwable t) {
+                    Log.wtf(TAG, "IdleHandler threw exception", t);
+                }
+
+                if (!keep) {
+                    remove(entry);
+                } else if (entry.task != null) {
+                    unfinished = true;
+                }
+            }
+            firstRound = false;
+        } while (unfinished && budget > 0);
+    }
+
+    /**mResume在entries中的位置，它已经被删除时从头开始**/
+    private int resumeIndex(Entry[] entries) {
+        final Entry resume = mResume;
+        if (resume == null) {
+            return 0;
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == resume) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
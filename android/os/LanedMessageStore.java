@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 按优先级分通道的消息存储。每个优先级（{@link Message#setPriority}）一条通道，通道内部是一个普通的
+ * 按(when, seq)排序的存储；同步障碍器单独存放，对所有通道生效。
+ *
+ * <p>
+ *     {@link #select(long)}在已到期的通道之间挑选：
+ *     1) 权重为0的通道严格优先，只要有到期消息就先投递，多个严格通道按优先级（下标）先后；
+ *     2) 其余到期通道按平滑加权轮转（smooth weighted round-robin）挑选：每次挑选时每个参与竞争的通道
+ *        累加自己的权重，累计值最大者胜出并减去本轮参与者的权重之和。高权重的通道大部分时候排在前面，
+ *        但低权重通道的累计值会不断增长，因此不会被饿死。没有到期消息的通道累计值清零，不能攒着用。
+ * </p>
+ * <p>
+ *     peek()/peekAsync()依然返回所有通道中投递顺序最靠前的消息，MessageQueue的唤醒规则和空闲判断因而不变。
+ * </p>
+ */
+final class LanedMessageStore extends MessageStore {
+    /**下标即优先级，越小越优先**/
+    private final MessageStore[] mLanes;
+    /**同步障碍器，遍历时排在所有通道之后**/
+    private final MessageStore mBarriers = new LinkedMessageStore();
+    private final int[] mWeights;
+    /**平滑加权轮转的累计值**/
+    private final int[] mCurrent;
+    /**select()中各通道的候选消息，仅作暂存避免每次分配**/
+    private final Message[] mCandidates;
+
+    /**
+     * @param weights 每条通道的权重，长度即通道个数，0表示严格优先
+     * @param storeType 每条通道使用的存储结构，{@link MessageQueue#STORE_LIST}或者{@link MessageQueue#STORE_HEAP}
+     */
+    LanedMessageStore(int[] weights, int storeType) {
+        final int n = weights.length;
+        mLanes = new MessageStore[n];
+        for (int i = 0; i < n; i++) {
+            mLanes[i] = storeType == MessageQueue.STORE_HEAP
+                    ? new HeapMessageStore() : new LinkedMessageStore();
+        }
+        mWeights = weights.clone();
+        mCurrent = new int[n];
+        mCandidates = new Message[n];
+    }
+
+    /**消息所在的存储：障碍器单独存放，超出通道个数的优先级归入最后一条通道**/
+    private MessageStore storeOf(Message msg) {
+        if (msg.target == null) {
+            return mBarriers;
+        }
+        return mLanes[Math.min(msg.priority, mLanes.length - 1)];
+    }
+
+    @Override
+    void insert(Message msg) {
+        storeOf(msg).insert(msg);
+    }
+
+    @Override
+    void insertAll(Message[] sorted, int count) {
+        //批量消息通常属于同一条通道，这时交给通道做归并插入
+        final MessageStore store = storeOf(sorted[0]);
+        for (int i = 1; i < count; i++) {
+            if (storeOf(sorted[i]) != store) {
+                super.insertAll(sorted, count);
+                return;
+            }
+        }
+        store.insertAll(sorted, count);
+    }
+
+    @Override
+    Message peek() {
+        Message result = mBarriers.peek();
+        for (MessageStore lane : mLanes) {
+            final Message p = lane.peek();
+            if (p != null && (result == null || isBefore(p, result))) {
+                result = p;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    Message peekAsync() {
+        Message result = null;
+        for (MessageStore lane : mLanes) {
+            final Message p = lane.peekAsync();
+            if (p != null && (result == null || isBefore(p, result))) {
+                result = p;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    Message select(long now) {
+        final Message barrier = mBarriers.peek();
+        final Message[] candidates = mCandidates;
+        Message earliest = null;
+        boolean anyDue = false;
+        for (int i = 0; i < mLanes.length; i++) {
+            Message c = mLanes[i].peek();
+            //排在最早的障碍器之后的同步消息不能投递，只能取这条通道中最早的异步消息
+            if (c != null && barrier != null && !c.isAsynchronous() && isBefore(barrier, c)) {
+                c = mLanes[i].peekAsync();
+            }
+            if (c != null && c.when <= now) {
+                if (mWeights[i] == 0) {
+                    //严格优先的通道直接胜出，不参与轮转记账
+                    return c;
+                }
+                candidates[i] = c;
+                anyDue = true;
+            } else {
+                candidates[i] = null;
+                if (c != null && (earliest == null || isBefore(c, earliest))) {
+                    earliest = c;
+                }
+            }
+        }
+        if (!anyDue) {
+            return earliest;
+        }
+
+        int chosen = -1;
+        int total = 0;
+        for (int i = 0; i < mLanes.length; i++) {
+            if (candidates[i] == null) {
+                mCurrent[i] = 0;
+                continue;
+            }
+            mCurrent[i] += mWeights[i];
+            total += mWeights[i];
+            //累计值相同时优先级高的通道胜出
+            if (chosen < 0 || mCurrent[i] > mCurrent[chosen]) {
+                chosen = i;
+            }
+        }
+        mCurrent[chosen] -= total;
+        final Message msg = candidates[chosen];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = null;
+        }
+        return msg;
+    }
+
+    @Override
+    void remove(Message msg) {
+        storeOf(msg).remove(msg);
+    }
+
+    @Override
+    Message first() {
+        return firstFrom(0);
+    }
+
+    @Override
+    Message next(Message msg) {
+        if (msg.next != null) {
+            return msg.next;
+        }
+        //msg是所在存储的最后一个，接着遍历下一个非空的存储
+        final MessageStore store = storeOf(msg);
+        if (store == mBarriers) {
+            return null;
+        }
+        return firstFrom(Math.min(msg.priority, mLanes.length - 1) + 1);
+    }
+
+    /**从第index个存储开始（mLanes之后是mBarriers）找到第一个非空存储的首个消息**/
+    private Message firstFrom(int index) {
+        for (int i = index; i < mLanes.length; i++) {
+            final Message p = mLanes[i].first();
+            if (p != null) {
+                return p;
+            }
+        }
+        return mBarriers.first();
+    }
+
+    @Override
+    int size() {
+        int size = mBarriers.size();
+        for (MessageStore lane : mLanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    @Override
+    void clear() {
+        //把各个存储的遍历链首尾相接，使清空后依然能从first()沿Message.next走遍所有消息
+        Message last = null;
+        for (int i = 0; i <= mLanes.length; i++) {
+            final MessageStore store = i < mLanes.length ? mLanes[i] : mBarriers;
+            Message p = store.first();
+            if (p == null) {
+                continue;
+            }
+            if (last != null) {
+                last.next = p;
+            }
+            while (p.next != null) {
+                p = p.next;
+            }
+            last = p;
+            store.clear();
+        }
+        for (int i = 0; i < mCurrent.length; i++) {
+            mCurrent[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * MessageQueue默认的消息存储：按投递顺序排列的链表，即原来的mMessages。
+ * 插入需要从队首向后寻找位置，复杂度O(n)；取队首O(1)。遍历链即投递顺序。
+ * 异步消息另外放在{@link AsyncMessageHeap}中，障碍器挡住队首时取异步消息不需要遍历链表。
+ */
+final class LinkedMessageStore extends MessageStore {
+    /**链表首部，即下一个投递的消息（或同步障碍器）**/
+    private Message mHead;
+    private int mSize;
+    private final AsyncMessageHeap mAsync = new AsyncMessageHeap();
+
+    @Override
+    void insert(Message msg) {
+        mAsync.insert(msg);
+        Message p = mHead;
+        if (p == null || isBefore(msg, p)) {
+            //新的队首
+            msg.prev = null;
+            msg.next = p;
+            if (p != null) {
+                p.prev = msg;
+            }
+            mHead = msg;
+        } else {
+            //在链表中间插入，放在所有排序不晚于它的消息之后
+            Message prev;
+            for (;;) {
+                prev = p;
+                p = p.next;
+                if (p == null || isBefore(msg, p)) {
+                    break;
+                }
+            }
+            msg.next = p; // invariant: p == prev.next
+            msg.prev = prev;
+            prev.next = msg;
+            if (p != null) {
+                p.prev = msg;
+            }
+        }
+        mSize++;
+    }
+
+    /**
+     * 归并插入：批量消息已经有序，寻找插入位置时从上一个插入点继续向后走，整个批量只遍历链表一次。
+     */
+    @Override
+    void insertAll(Message[] sorted, int count) {
+        Message prev = null;
+        Message p = mHead;
+        for (int i = 0; i < count; i++) {
+            final Message msg = sorted[i];
+            while (p != null && !isBefore(msg, p)) {
+                prev = p;
+                p = p.next;
+            }
+            msg.next = p; // invariant: p == prev.next
+            msg.prev = prev;
+            if (prev != null) {
+                prev.next = msg;
+            } else {
+                mHead = msg;
+            }
+            if (p != null) {
+                p.prev = msg;
+            }
+            prev = msg;
+            mAsync.insert(msg);
+        }
+        mSize += count;
+    }
+
+    @Override
+    Message peek() {
+        return mHead;
+    }
+
+    @Override
+    Message peekAsync() {
+        return mAsync.peek();
+    }
+
+    @Override
+    void remove(Message msg) {
+        mAsync.remove(msg);
+        final Message prev = msg.prev;
+        final Message next = msg.next;
+        if (prev != null) {
+            prev.next = next;
+        } else {
+            mHead = next;
+        }
+        if (next != null) {
+            next.prev = prev;
+        }
+        msg.next = null;
+        msg.prev = null;
+        mSize--;
+    }
+
+    @Override
+    Message first() {
+        return mHead;
+    }
+
+    @Override
+    int size() {
+        return mSize;
+    }
+
+    @Override
+    void clear() {
+        mAsync.clear();
+        mHead = null;
+        mSize = 0;
+    }
+
+    @Override
+    Message[] toSortedArray() {
+        //链表本身就是投递顺序，无需排序
+        final Message[] result = new Message[mSize];
+        int n = 0;
+        for (Message p = mHead; p != null; p = p.next) {
+            result[n++] = p;
+        }
+        return result;
+    }
+}
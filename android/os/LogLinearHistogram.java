@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 对数-线性分桶的直方图（HDR Histogram的简化版），用于记录延迟一类跨越多个数量级的非负整数。
+ *
+ * <p>
+ *     小于{@link #SUB_BUCKET_COUNT}的值每个值一个桶；更大的值按2的幂分段，每段再均分为
+ *     SUB_BUCKET_COUNT/2个桶，所以任何值的相对误差都不超过1/16。桶数组在构造时一次性分配（960个long），
+ *     {@link #record}只做几次位运算和数组自增，不产生任何对象。
+ * </p>
+ * <p>
+ *     只能由一个线程记录（通常是looper线程）。其他线程读取时不加锁，得到的统计值可能互相之间略有出入，
+ *     对监控来说足够了。
+ * </p>
+ */
+public final class LogLinearHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    /**线性区间的桶数，也是每个2的幂分段的取值跨度的两倍**/
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    /**覆盖到Long.MAX_VALUE所需的桶数**/
+    private static final int BUCKET_COUNT =
+            SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mTotalValue;
+    private long mMax;
+
+    /**
+     * 记录一个值，负数按0记录。
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[indexOf(value)]++;
+        mTotalCount++;
+        mTotalValue += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**记录过的值的个数**/
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /**记录过的最大值**/
+    public long getMax() {
+        return mMax;
+    }
+
+    /**记录过的值的平均数，没有记录时返回0**/
+    public double getMean() {
+        final long count = mTotalCount;
+        return count == 0 ? 0 : (double) mTotalValue / count;
+    }
+
+    /**
+     * @param percentile 百分位，取值[0, 100]
+     * @return 不小于percentile%的记录值的最小值的近似（所在桶的上界），没有记录时返回0
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long count = mTotalCount;
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * 清空所有记录。只能在记录线程上调用。
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotalValue = 0;
+        mMax = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + Math.round(getMean())
+                + " p50=" + getValueAtPercentile(50)
+                + " p90=" + getValueAtPercentile(90)
+                + " p99=" + getValueAtPercentile(99)
+                + " p99.9=" + getValueAtPercentile(99.9)
+                + " max=" + getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        //value的最高位在第msb位，保留最高的SUB_BUCKET_BITS位作为段内下标
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - (SUB_BUCKET_BITS - 1);
+        final int top = (int) (value >>> shift);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (top - SUB_BUCKET_HALF);
+    }
+
+    /**下标为index的桶能容纳的最大值**/
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        final long top = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -19,6 +19,8 @@ package android.os;
 import android.util.Log;
 import android.util.Printer;
 
+import java.util.Arrays;
+
 /**
  * TODO :
  * 1.了解Binder.clearCallingIdentity();
@@ -30,8 +32,8 @@ import android.util.Printer;
 
 /**
  *  Looper使用流程：Looper.prepare() -> Looper.loop() -> lI.quit() or lI.quitSafely()。
- *  对外主要API：Looper.prepare()、Looper.loop()、Looper.myQueue() 、lI.isCurrentThread()、
- *  lI.quit() 、lI.quitSafely()、lI.postSyncBarrier() 、 lI.removeSyncBarrier()
+ *  对外主要API：Looper.prepare()/Looper.prepare(MessageQueue.Config)、Looper.loop()、Looper.myQueue() 、lI.isCurrentThread()、
+ *  lI.quit() 、lI.quitSafely()、lI.postSyncBarrier() 、 lI.removeSyncBarrier()、lI.addDispatchObserver()
  *
  *  Looper实际上是线程的一个附加可选特性。非主线程默认情况下是不与任何Looper关联的，开发者可以
  *  使用Looper.prepare()为当前线程创建一个Looper,并使用Looper.loop()执行消息循环处理。loop()只
@@ -73,22 +75,62 @@ public final class Looper {
 
     /**记录Looper对象的消息队列，创建后不可更改**/
     final MessageQueue mQueue;
-    /**记录创建该Looper对象的线程，用于getThread()等从sThreadLocal取出线程后核对**/
+    /**记录创建该Looper对象的线程，用于getThread()等从sThreadLocal取出线程后核对。池化的Looper为null**/
     final Thread mThread;
+    /**池化Looper的名字，普通Looper为null**/
+    private final String mName;
+    /**池化Looper当前所在的carrier线程，没有在运行时为null**/
+    volatile Thread mCarrier;
 
     private Printer mLogging;
 
+    private static final DispatchObserver[] NO_OBSERVERS = new DispatchObserver[0];
+    /**消息分发的观察者，写时复制：loop()每个消息只读一次引用，不需要加锁，guarded by this for writes**/
+    private volatile DispatchObserver[] mObservers = NO_OBSERVERS;
+
+    /**批量分发时一次最多从消息队列取出的消息个数，1表示逐个取出（默认）。可在任意线程修改**/
+    private volatile int mMaxBatchSize = 1;
+    /**批量分发的时间片，单位毫秒，0表示不限制。可在任意线程修改**/
+    private volatile long mMaxBatchMillis;
+    /**分区分发，null表示在looper线程上逐个分发（默认）**/
+    private volatile PartitionedDispatcher mPartitions;
+
     /** 为当前线程创建对应的Looper,应在loop()之前调用。此方法创建的Looper都是可以终止的。**/
     public static void prepare() {
         prepare(true);
     }
 
-    /**每个线程最多只能与一个Looper对应。**/
+    /**
+     * 与{@link #prepare()}相同，但使用config定制Looper的消息队列，比如选择待处理消息的存储结构。
+     *
+     * @param config 消息队列配置，为null时等同于{@link #prepare()}
+     */
+    public static void prepare(MessageQueue.Config config) {
+        prepare(true, config);
+    }
+
     private static void prepare(boolean quitAllowed) {
+        prepare(quitAllowed, null);
+    }
+
+    /**
+     * 与{@link #prepare(MessageQueue.Config)}相同，但消息队列使用指定的阻塞/唤醒后端，
+     * 比如虚拟线程上的{@link ParkingPoller}。
+     */
+    static void prepare(MessageQueue.Config config, Poller poller) {
+        prepare(true, config, poller);
+    }
+
+    private static void prepare(boolean quitAllowed, MessageQueue.Config config) {
+        prepare(quitAllowed, config, null);
+    }
+
+    /**每个线程最多只能与一个Looper对应。**/
+    private static void prepare(boolean quitAllowed, MessageQueue.Config config, Poller poller) {
         if (sThreadLocal.get() != null) {
             throw new RuntimeException("Only one Looper may be created per thread");
         }
-        sThreadLocal.set(new Looper(quitAllowed));
+        sThreadLocal.set(new Looper(quitAllowed, config, poller));
     }
 
     /**
@@ -131,40 +173,144 @@ public final class Looper {
         Binder.clearCallingIdentity();
         final long ident = Binder.clearCallingIdentity();
 
+        PartitionedDispatcher lastPartitions = null;
         for (; ; ) {
+            final PartitionedDispatcher partitions = me.mPartitions;
+            if (partitions != lastPartitions) {
+                //切换分区分发前等待已经交出的消息分发完，保证同一个域的消息不会前后交叠
+                if (lastPartitions != null) {
+                    lastPartitions.awaitIdle();
+                }
+                lastPartitions = partitions;
+            }
+            if (partitions != null) {
+                Message msg = queue.next(); // 可能产生线程阻塞
+                if (msg == null) {
+                    partitions.awaitIdle();
+                    return;
+                }
+                partitions.route(msg);
+                continue;
+            }
+
+            //批量分发的配置在每一轮开始时读取，分发过程中的修改从下一轮生效
+            final int maxBatchSize = me.mMaxBatchSize;
+            if (maxBatchSize > 1) {
+                if (!loopBatch(me, queue, maxBatchSize, ident)) {
+                    // 消息队列正在退出或者已经被废弃
+                    return;
+                }
+                continue;
+            }
             Message msg = queue.next(); // 可能产生线程阻塞
             if (msg == null) {
                 // 如果msg是null，表示消息队列正在退出或者已经被废弃
                 return;
             }
+            dispatch(me, msg, ident);
+            //不检查状态，直接回收消息
+            msg.recycleUnchecked();
+        }
+    }
+
+    /**
+     * 批量分发一轮：在一次持锁中取出所有已到期的消息，然后逐个认领并分发。
+     * 批次中的消息由消息队列负责回收。
+     *
+     * @return false 消息队列正在退出或者已经被废弃
+     */
+    private static boolean loopBatch(Looper me, MessageQueue queue, int maxBatchSize, long ident) {
+        if (!queue.nextBatch(maxBatchSize)) { // 可能产生线程阻塞
+            return false;
+        }
+        final long sliceMillis = me.mMaxBatchMillis;
+        final long sliceEnd = sliceMillis > 0 ? SystemClock.uptimeMillis() + sliceMillis : 0;
+        Message msg;
+        while ((msg = queue.pollBatch()) != null) {
+            dispatch(me, msg, ident);
+            //时间片用完后，剩下的消息在下一次nextBatch()时放回队列，让新到达的靠前消息有机会先执行
+            if (sliceEnd != 0 && SystemClock.uptimeMillis() >= sliceEnd) {
+                break;
+            }
+        }
+        return true;
+    }
 
-            // This must be in a local variable, in case a UI event sets the logger
-            Printer logging = me.mLogging;
-            if (logging != null) {
-                logging.println(">>>>> Dispatching to " + msg.target + " " +
-                        msg.callback + ": " + msg.what);
+    /**
+     * 在当前carrier线程上为池化的Looper分发已到期的消息，最多maxCount个。
+     * 调用者负责把sThreadLocal指向me，并保证同一个Looper同时只在一个线程上运行。
+     *
+     * @return true 分发了maxCount个消息，队列中可能还有到期的消息；false 没有到期的消息，
+     *  或者消息队列已经被废弃
+     */
+    static boolean loopPooled(Looper me, int maxCount) {
+        final MessageQueue queue = me.mQueue;
+        Binder.clearCallingIdentity();
+        final long ident = Binder.clearCallingIdentity();
+        for (int i = 0; i < maxCount; i++) {
+            final Message msg = queue.poll();
+            if (msg == null) {
+                return false;
             }
+            dispatch(me, msg, ident);
+            msg.recycleUnchecked();
+        }
+        return true;
+    }
 
-            //执行msg绑定的Runnable 或者 调用target的handleMessage()
-            msg.target.dispatchMessage(msg);
+    /**分发一个消息，不回收**/
+    static void dispatch(Looper me, Message msg, long ident) {
+        // This must be in a local variable, in case a UI event sets the logger
+        Printer logging = me.mLogging;
+        if (logging != null) {
+            logging.println(">>>>> Dispatching to " + msg.target + " " +
+                    msg.callback + ": " + msg.what);
+        }
 
-            if (logging != null) {
-                logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
+        final DispatchObserver[] observers = me.mObservers;
+        final Handler target = msg.target;
+        final int what = msg.what;
+        long start = 0;
+        if (observers.length != 0) {
+            start = System.nanoTime();
+            for (DispatchObserver observer : observers) {
+                observer.onDispatchStarting(msg, target, what, start);
             }
+        }
+        try {
+            //执行msg绑定的Runnable 或者 调用target的handleMessage()
+            target.dispatchMessage(msg);
+        } finally {
+            //分发抛出异常时也通知观察者，保证starting/finished成对出现
+            if (observers.length != 0) {
+                final long end = System.nanoTime();
+                for (DispatchObserver observer : observers) {
+                    observer.onDispatchFinished(msg, target, what, start, end);
+                }
+            }
+        }
 
-            // Make sure that during the course of dispatching the
-            // identity of the thread wasn't corrupted.
-            final long newIdent = Binder.clearCallingIdentity();
-            if (ident != newIdent) {
-                Log.wtf(TAG, "Thread identity changed from 0x"
-                        + Long.toHexString(ident) + " to 0x"
-                        + Long.toHexString(newIdent) + " while dispatching to "
-                        + msg.target.getClass().getName() + " "
-                        + msg.callback + " what=" + msg.what);
+        //只有带截止时间的消息才需要多读一次时钟
+        if (msg.deadline != 0) {
+            final long end = SystemClock.uptimeMillis();
+            if (end > msg.deadline) {
+                me.mQueue.noteDeadlineMissed(msg, end - msg.deadline);
             }
+        }
 
-            //不检查状态，直接回收消息
-            msg.recycleUnchecked();
+        if (logging != null) {
+            logging.println("<<<<< Finished to " + msg.target + " " + msg.callback);
+        }
+
+        // Make sure that during the course of dispatching the
+        // identity of the thread wasn't corrupted.
+        final long newIdent = Binder.clearCallingIdentity();
+        if (ident != newIdent) {
+            Log.wtf(TAG, "Thread identity changed from 0x"
+                    + Long.toHexString(ident) + " to 0x"
+                    + Long.toHexString(newIdent) + " while dispatching to "
+                    + msg.target.getClass().getName() + " "
+                    + msg.callback + " what=" + msg.what);
         }
     }
 
@@ -189,6 +335,131 @@ public final class Looper {
         mLogging = printer;
     }
 
+    /**
+     * 消息分发的观察者，回调都在looper线程上执行。与{@link #setMessageLogging}不同，回调直接拿到消息的
+     * 字段而不是拼接好的字符串，实现者可以做到每个消息零分配，因此适合在线上长期开启。
+     * <p>
+     * 回调期间不要修改消息，也不要在回调返回后继续持有消息：它随后就会被回收。
+     * </p>
+     * @see DispatchTraceRecorder
+     */
+    public interface DispatchObserver {
+        /**
+         * 在dispatchMessage()之前调用。
+         *
+         * @param msg 即将分发的消息
+         * @param target 消息的目标Handler
+         * @param what 消息的what
+         * @param startNanos 分发开始的时间，{@link System#nanoTime()}
+         */
+        void onDispatchStarting(Message msg, Handler target, int what, long startNanos);
+
+        /**
+         * 在dispatchMessage()返回或者抛出异常之后调用。
+         *
+         * @param startNanos 与对应的onDispatchStarting相同
+         * @param endNanos 分发结束的时间，{@link System#nanoTime()}
+         */
+        void onDispatchFinished(Message msg, Handler target, int what, long startNanos,
+                long endNanos);
+    }
+
+    /**
+     * 添加一个消息分发观察者，从下一个消息开始生效。可以在任意线程调用。
+     * <p>
+     * 观察者假定同一时刻只有一个消息在分发（回调只有一个写者，starting/finished严格交替），所以与
+     * {@link #setPartitionedDispatch 分区分发}互斥：分区分发开启时不能添加观察者。
+     * </p>
+     *
+     * @exception IllegalStateException 分区分发已经开启
+     */
+    public void addDispatchObserver(DispatchObserver observer) {
+        if (observer == null) {
+            throw new NullPointerException("Can't add a null DispatchObserver");
+        }
+        synchronized (this) {
+            if (mPartitions != null) {
+                throw new IllegalStateException(
+                        "Dispatch observers cannot be added while partitioned dispatch is enabled");
+            }
+            final DispatchObserver[] old = mObservers;
+            final DispatchObserver[] observers = Arrays.copyOf(old, old.length + 1);
+            observers[old.length] = observer;
+            mObservers = observers;
+        }
+    }
+
+    /**
+     * 删除一个使用{@link #addDispatchObserver}添加的观察者，不存在时不做任何处理。
+     */
+    public void removeDispatchObserver(DispatchObserver observer) {
+        synchronized (this) {
+            final DispatchObserver[] old = mObservers;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i] == observer) {
+                    final DispatchObserver[] observers = new DispatchObserver[old.length - 1];
+                    System.arraycopy(old, 0, observers, 0, i);
+                    System.arraycopy(old, i + 1, observers, i, old.length - i - 1);
+                    mObservers = observers;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 开启或关闭批量分发。开启后loop()在一次持锁中取出所有已到期的消息（最多maxBatchSize个），
+     * 然后逐个分发，省去每个消息都要进入一次消息队列锁、读取时间和检查障碍器的开销。
+     * <p>
+     * 一批消息分发超过maxBatchMillis后，剩余的消息按原来的顺序退还给消息队列，从而保证分发期间新到达的
+     * 队首消息（比如postAtFrontOfQueue）的延迟有上限。批次内的消息仍按投递顺序分发，尚未分发的消息
+     * 也可以照常被removeMessages等方法删除。
+     * </p>
+     *
+     * @param maxBatchSize 一次最多取出的消息个数，不大于1时关闭批量分发
+     * @param maxBatchMillis 一批消息的分发时间片，单位毫秒，不大于0表示不限制
+     * @exception IllegalStateException 开启时这个Looper属于{@link LooperPool}
+     * @hide
+     */
+    public void setBatchDispatch(int maxBatchSize, long maxBatchMillis) {
+        if (maxBatchSize > 1 && mThread == null) {
+            //池化的Looper每次调度只逐个分发一个配额的消息
+            throw new IllegalStateException("Batch dispatch is not supported by pooled loopers");
+        }
+        mMaxBatchSize = Math.max(maxBatchSize, 1);
+        mMaxBatchMillis = Math.max(maxBatchMillis, 0);
+    }
+
+    /**
+     * 开启或关闭分区分发。开启后looper线程只负责按顺序取出到期的消息，再按串行域（{@link Message#setOrderingKey}，
+     * 默认是目标Handler）交给executor：同一个域的消息依旧按when和发送顺序逐个分发，不同域的消息并行分发。
+     * 适合一个Looper服务大量互不相关的Handler的场景，推荐使用asyncMode的{@link java.util.concurrent.ForkJoinPool}，
+     * 空闲的工作线程会从繁忙的线程窃取域来运行。
+     * <p>
+     * 开启后：消息在分发前已经离开消息队列，不能再被removeMessages等方法删除；消息日志会在多个线程上被
+     * 并发调用，超过截止时间的回调在执行器的线程上串行调用；分发期间{@link #myLooper()}返回这个Looper，
+     * 但{@link #isCurrentThread()}为false。分发观察者都是单写者的，所以有观察者时不能开启分区分发，开启后
+     * 也不能再添加观察者。
+     * 批量分发的设置被忽略。关闭或者退出消息循环时，looper线程会等待已经交出的消息分发完毕。
+     * </p>
+     *
+     * @param executor 分发消息的执行器，null表示关闭分区分发，恢复在looper线程上逐个分发
+     * @exception IllegalStateException 开启时已经添加了分发观察者，或者这个Looper属于{@link LooperPool}
+     * @hide
+     */
+    public void setPartitionedDispatch(java.util.concurrent.Executor executor) {
+        if (executor != null && mThread == null) {
+            throw new IllegalStateException("Partitioned dispatch is not supported by pooled loopers");
+        }
+        synchronized (this) {
+            if (executor != null && mObservers.length != 0) {
+                throw new IllegalStateException(
+                        "Partitioned dispatch cannot be enabled while dispatch observers are set");
+            }
+            mPartitions = executor != null ? new PartitionedDispatcher(this, executor) : null;
+        }
+    }
+
     /**
      * Return the {@link MessageQueue} object associated with the current
      * thread.  This must be called from a thread running a Looper, or a
@@ -198,17 +469,28 @@ public final class Looper {
         return myLooper().mQueue;
     }
 
-    private Looper(boolean quitAllowed) {
-        mQueue = new MessageQueue(quitAllowed);
+    private Looper(boolean quitAllowed, MessageQueue.Config config, Poller poller) {
+        mQueue = new MessageQueue(quitAllowed, config, poller);
         mThread = Thread.currentThread();
+        mName = null;
+    }
+
+    /**
+     * 池化的Looper，没有专属线程，由poller在有到期消息时调度到{@link LooperPool}的carrier线程上运行。
+     */
+    Looper(String name, MessageQueue.Config config, Poller poller) {
+        mQueue = new MessageQueue(true, config, poller);
+        mThread = null;
+        mName = name;
     }
 
     /**
      * Returns true if the current thread is this looper's thread.
+     * 对池化的Looper，当前线程正在运行它时返回true。
      * @hide
      */
     public boolean isCurrentThread() {
-        return Thread.currentThread() == mThread;
+        return mThread != null ? Thread.currentThread() == mThread : mCarrier == Thread.currentThread();
     }
 
     /**
@@ -252,6 +534,16 @@ public final class Looper {
         return mQueue.enqueueSyncBarrier(SystemClock.uptimeMillis());
     }
 
+    /**
+     * 与{@link #postSyncBarrier()}相同，但障碍器最多生效timeoutMillis毫秒，超时后自动移除并输出警告，
+     * 作为忘记移除障碍器时的保险。正常情况下仍然要调用{@link #removeSyncBarrier(int)}。
+     *
+     * @see MessageQueue#setOnSyncBarrierReleasedListener
+     */
+    public int postSyncBarrier(long timeoutMillis) {
+        return mQueue.enqueueSyncBarrier(SystemClock.uptimeMillis(), timeoutMillis);
+    }
+
 
     /**
      * 移除Looper的消息队列中token指定的同步障碍器。
@@ -262,9 +554,10 @@ public final class Looper {
 
     /**
      * Return the Thread associated with this Looper.
+     * 池化的Looper返回当前正在运行它的carrier线程，没有在运行时返回null。
      */
     public Thread getThread() {
-        return mThread;
+        return mThread != null ? mThread : mCarrier;
     }
 
     /** @hide */
@@ -288,6 +581,10 @@ public final class Looper {
     }
 
     public String toString() {
+        if (mThread == null) {
+            return "Looper (" + mName + ", pooled) {"
+                    + Integer.toHexString(System.identityHashCode(this)) + "}";
+        }
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
                 + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
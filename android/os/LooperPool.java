@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 让大量Looper共享少量线程：每个{@link #newLooper}创建的Looper都有自己的消息队列，消息严格按顺序逐个
+ * 分发，但没有专属线程。只有当它的队列中有到期的消息时，它才会被调度到池中的某个carrier线程上运行；
+ * 没有到期消息时不占用任何线程，延时消息由一个公共的定时线程在到期时触发调度。线程数因此取决于
+ * carrier个数（通常与CPU核数相当），而不是Looper的个数。
+ *
+ * <p>
+ *     同一个Looper任何时刻最多只在一个carrier线程上运行，前后两次运行之间由线程池的任务交接保证可见性，
+ *     所以对Handler来说它与普通的Looper没有区别：{@link Looper#myLooper()}、
+ *     {@link Looper#isCurrentThread()}在分发期间都指向这个Looper。一个Looper每次被调度最多连续分发
+ *     {@link #DEFAULT_QUANTUM}个消息，然后让出carrier线程重新排队，避免一个繁忙的Looper饿死其他Looper。
+ * </p>
+ * <p>
+ *     与普通Looper的区别：{@link Looper#getThread()}返回当前运行它的carrier线程（不在运行时为null）；
+ *     不能开启批量分发（{@link Looper#setBatchDispatch}）和分区分发（{@link Looper#setPartitionedDispatch}），
+ *     配置中的阻塞/唤醒后端类型被忽略；分发中抛出的异常会终止这个Looper（相当于普通Looper的线程因异常退出），
+ *     它的消息队列被立即废弃，异常交给carrier线程的未捕获异常处理器。池被关闭以后再需要调度的Looper同样被废弃。
+ *     分发中不要阻塞等待同一个池中的其他Looper，否则所有carrier都可能被占满。
+ * </p>
+ *
+ * <pre>
+ *  LooperPool pool = new LooperPool(Runtime.getRuntime().availableProcessors());
+ *  Handler handler = new Handler(pool.newLooper("connection-42"));
+ *  ...
+ *  handler.getLooper().quitSafely();
+ * </pre>
+ */
+public final class LooperPool {
+    /**一个Looper每次被调度最多连续分发的消息个数**/
+    public static final int DEFAULT_QUANTUM = 64;
+
+    private final String mName;
+    private final ThreadPoolExecutor mCarriers;
+    /**延时消息到期时触发调度**/
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /**
+     * @param carrierCount carrier线程的个数
+     */
+    public LooperPool(int carrierCount) {
+        this("LooperPool", carrierCount);
+    }
+
+    /**
+     * @param name 线程名的前缀
+     * @param carrierCount carrier线程的个数
+     */
+    public LooperPool(String name, int carrierCount) {
+        if (carrierCount <= 0) {
+            throw new IllegalArgumentException("carrierCount must be positive");
+        }
+        mName = name;
+        mCarriers = new ThreadPoolExecutor(carrierCount, carrierCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(name + "-carrier-"));
+        mTimer = new ScheduledThreadPoolExecutor(1, newThreadFactory(name + "-timer-"));
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, prefix + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * 创建一个运行在这个池上的Looper，可以随时退出。
+     *
+     * @param name Looper的名字，用于{@link Looper#toString()}
+     */
+    public Looper newLooper(String name) {
+        return newLooper(name, null);
+    }
+
+    /**
+     * 与{@link #newLooper(String)}相同，使用config定制消息队列。config中的阻塞/唤醒后端类型被忽略。
+     */
+    public Looper newLooper(String name, MessageQueue.Config config) {
+        if (mCarriers.isShutdown()) {
+            throw new IllegalStateException(mName + " has been shut down");
+        }
+        final PooledPoller poller = new PooledPoller(this);
+        final Looper looper = new Looper(name, config, poller);
+        poller.mLooper = looper;
+        //与普通Looper的线程开始loop()一样先运行一次，队列进入等待状态后入队的消息才会唤醒（调度）它
+        poller.schedule();
+        return looper;
+    }
+
+    /**
+     * 停止所有carrier线程和定时线程。已经排队的调度会执行完，之后到期或者被唤醒的Looper不再运行。
+     * 调用前应当先退出池中的Looper。
+     */
+    public void shutdown() {
+        mCarriers.shutdown();
+        mTimer.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return mName + " {carriers=" + mCarriers.getPoolSize()
+                + " active=" + mCarriers.getActiveCount()
+                + " queued=" + mCarriers.getQueue().size() + "}";
+    }
+
+    /**
+     * 池化Looper的阻塞/唤醒后端，同时也是它在carrier线程上运行的任务。pollOnce不阻塞：
+     * 有超时的时候安排一个定时调度，唤醒则直接转为调度。
+     */
+    private static final class PooledPoller extends Poller implements Runnable {
+        /**没有到期消息，不占用线程**/
+        private static final int IDLE = 0;
+        /**已经交给carrier线程池，等待运行**/
+        private static final int SCHEDULED = 1;
+        /**正在carrier线程上运行**/
+        private static final int RUNNING = 2;
+        /**运行期间又被唤醒，运行结束后需要再调度一次**/
+        private static final int RUNNING_WOKEN = 3;
+        /**消息队列已经废弃或者分发抛出了异常，不再调度**/
+        private static final int DEAD = 4;
+
+        private final LooperPool mPool;
+        private final AtomicInteger mState = new AtomicInteger(IDLE);
+        /**在newLooper中设置，之后只读**/
+        Looper mLooper;
+        /**待触发的定时调度，只在运行期间访问**/
+        private ScheduledFuture<?> mTimeout;
+        private final Runnable mTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        };
+
+        PooledPoller(LooperPool pool) {
+            mPool = pool;
+        }
+
+        @Override
+        void onPollOnce(int timeoutMillis) {
+            //在carrier线程上、Looper运行期间调用，不能阻塞
+            cancelTimeout();
+            if (timeoutMillis > 0 && !mPool.mTimer.isShutdown()) {
+                mTimeout = mPool.mTimer.schedule(mTimeoutTask, timeoutMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        void onWake() {
+            schedule();
+        }
+
+        @Override
+        boolean isIdling() {
+            return mState.get() == IDLE;
+        }
+
+        @Override
+        void dispose() {
+            cancelTimeout();
+        }
+
+        private void cancelTimeout() {
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+                mTimeout = null;
+            }
+        }
+
+        /**有消息可能到期：空闲时提交到carrier线程池，运行中则记下运行结束后再调度一次**/
+        void schedule() {
+            for (;;) {
+                final int state = mState.get();
+                if (state == IDLE) {
+                    if (mState.compareAndSet(IDLE, SCHEDULED)) {
+                        submit();
+                        return;
+                    }
+                } else if (state == RUNNING) {
+                    if (mState.compareAndSet(RUNNING, RUNNING_WOKEN)) {
+                        return;
+                    }
+                } else {
+                    //SCHEDULED、RUNNING_WOKEN已经会再运行一次，DEAD不再运行
+                    return;
+                }
+            }
+        }
+
+        /**调用者已经把状态置为SCHEDULED，此时Looper没有在运行**/
+        private void submit() {
+            if (!mPool.mCarriers.isShutdown()) {
+                try {
+                    mPool.mCarriers.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    //与shutdown()竞争
+                }
+            }
+            //不会再有carrier线程来取消息，由这里废弃队列，释放阻塞/唤醒后端和日志
+            mState.set(DEAD);
+            mLooper.mQueue.quitAndDispose();
+        }
+
+        @Override
+        public void run() {
+            mState.set(RUNNING);
+            final Looper looper = mLooper;
+            final Thread carrier = Thread.currentThread();
+            final Looper previous = Looper.sThreadLocal.get();
+            Looper.sThreadLocal.set(looper);
+            looper.mCarrier = carrier;
+            boolean more = false;
+            boolean completed = false;
+            try {
+                more = Looper.loopPooled(looper, DEFAULT_QUANTUM);
+                completed = true;
+            } finally {
+                looper.mCarrier = null;
+                Looper.sThreadLocal.set(previous);
+                if (!completed) {
+                    //分发抛出异常：与普通Looper的线程因异常退出一样，这个Looper不再运行。之后没有人会再调用
+                    //poll()，所以直接废弃队列（同时取消定时调度），而不是只退出
+                    mState.set(DEAD);
+                    looper.mQueue.quitAndDispose();
+                }
+            }
+
+            if (looper.mQueue.isDisposed()) {
+                mState.set(DEAD);
+            } else if (more) {
+                //用完了本次的配额，让出carrier线程重新排队
+                mState.set(SCHEDULED);
+                submit();
+            } else if (!mState.compareAndSet(RUNNING, IDLE)) {
+                //运行期间被唤醒过
+                mState.set(SCHEDULED);
+                submit();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+import android.util.StringBuilderPrinter;
+
+import java.util.ArrayList;
+
+/**
+ * 慢消息看门狗：监视若干Looper正在分发的消息，一旦某个消息的分发时间超过阈值，就抓取looper线程的调用栈、
+ * 这个消息的{@link Message#toString(long)}以及{@link MessageQueue#dump}给出的排队快照，
+ * 通过{@link Listener}报告。看门狗只观察，不会打断或停止looper。
+ *
+ * <p>
+ *     每个被监视的Looper上挂一个{@link Looper.DispatchObserver}，分发开始和结束时只写几个volatile字段；
+ *     检查、抓取和报告都在看门狗自己的守护线程上进行。同一次分发只报告一次。
+ * </p>
+ *
+ * <pre>
+ *  LooperWatchdog watchdog = new LooperWatchdog(200, new LooperWatchdog.Listener() {
+ *      public void onSlowDispatch(LooperWatchdog.Report report) {
+ *          Log.w(TAG, report.toString());
+ *      }
+ *  });
+ *  watchdog.watch(Looper.getMainLooper());
+ *  watchdog.start();
+ * </pre>
+ */
+public final class LooperWatchdog {
+    private static final String TAG = "LooperWatchdog";
+
+    /**
+     * 慢消息的报告回调，在看门狗线程上执行。回调耗时会推迟下一轮检查。
+     */
+    public interface Listener {
+        void onSlowDispatch(Report report);
+    }
+
+    /**一次慢分发的现场**/
+    public static final class Report {
+        /**发生慢分发的Looper**/
+        public final Looper looper;
+        /**抓取现场时，这个消息已经分发了多少毫秒**/
+        public final long elapsedMillis;
+        /**正在分发的消息，{@link Message#toString(long)}的结果**/
+        public final String message;
+        /**looper线程的调用栈**/
+        public final StackTraceElement[] stackTrace;
+        /**looper消息队列中排队的消息，{@link MessageQueue#dump}的结果**/
+        public final String queueDump;
+
+        Report(Looper looper, long elapsedMillis, String message,
+                StackTraceElement[] stackTrace, String queueDump) {
+            this.looper = looper;
+            this.elapsedMillis = elapsedMillis;
+            this.message = message;
+            this.stackTrace = stackTrace;
+            this.queueDump = queueDump;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder b = new StringBuilder();
+            b.append("Slow dispatch on ").append(looper).append(": ").append(message)
+                    .append(" running for ").append(elapsedMillis).append("ms\n");
+            for (StackTraceElement element : stackTrace) {
+                b.append("    at ").append(element).append('\n');
+            }
+            b.append(queueDump);
+            return b.toString();
+        }
+    }
+
+    /**挂在一个Looper上的观察者，记录正在分发的消息**/
+    private static final class Monitor implements Looper.DispatchObserver {
+        final Looper looper;
+        /**每次分发开始时加一，用来识别同一次分发以及检查读取期间分发是否已经结束**/
+        volatile long dispatchId;
+        /**正在分发的消息，空闲时为null**/
+        volatile Message current;
+        volatile long startUptime;
+        /**已经报告过的分发，只由看门狗线程访问**/
+        long reportedId = -1;
+
+        Monitor(Looper looper) {
+            this.looper = looper;
+        }
+
+        @Override
+        public void onDispatchStarting(Message msg, Handler target, int what, long startNanos) {
+            startUptime = SystemClock.uptimeMillis();
+            current = msg;
+            dispatchId++;
+        }
+
+        @Override
+        public void onDispatchFinished(Message msg, Handler target, int what, long startNanos,
+                long endNanos) {
+            current = null;
+        }
+    }
+
+    private final long mThresholdMillis;
+    private final long mCheckIntervalMillis;
+    private final Listener mListener;
+
+    /**被监视的Looper，guarded by this**/
+    private final ArrayList<Monitor> mMonitors = new ArrayList<Monitor>();
+    private Thread mThread;  // guarded by this
+    private boolean mStopped;  // guarded by this
+
+    /**
+     * @param thresholdMillis 分发超过这个时长即报告
+     * @param listener 报告回调
+     */
+    public LooperWatchdog(long thresholdMillis, Listener listener) {
+        this(thresholdMillis, Math.max(thresholdMillis / 4, 1), listener);
+    }
+
+    /**
+     * @param thresholdMillis 分发超过这个时长即报告
+     * @param checkIntervalMillis 检查间隔，决定报告相对阈值最多推迟多久
+     * @param listener 报告回调
+     */
+    public LooperWatchdog(long thresholdMillis, long checkIntervalMillis, Listener listener) {
+        if (thresholdMillis <= 0 || checkIntervalMillis <= 0) {
+            throw new IllegalArgumentException("threshold and interval must be positive");
+        }
+        if (listener == null) {
+            throw new NullPointerException("listener must not be null");
+        }
+        mThresholdMillis = thresholdMillis;
+        mCheckIntervalMillis = checkIntervalMillis;
+        mListener = listener;
+    }
+
+    /**
+     * 开始监视looper，可以在{@link #start()}之前或之后调用。
+     * @exception IllegalStateException looper开启了分区分发，见{@link Looper#addDispatchObserver}
+     */
+    public void watch(Looper looper) {
+        final Monitor monitor = new Monitor(looper);
+        synchronized (this) {
+            for (Monitor m : mMonitors) {
+                if (m.looper == looper) {
+                    return;
+                }
+            }
+            mMonitors.add(monitor);
+        }
+        try {
+            looper.addDispatchObserver(monitor);
+        } catch (IllegalStateException e) {
+            //分区分发的Looper没有单一的"正在分发的消息"，无法监视
+            synchronized (this) {
+                mMonitors.remove(monitor);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 停止监视looper，looper没有被监视时不做任何处理。
+     */
+    public void unwatch(Looper looper) {
+        Monitor monitor = null;
+        synchronized (this) {
+            for (int i = 0; i < mMonitors.size(); i++) {
+                if (mMonitors.get(i).looper == looper) {
+                    monitor = mMonitors.remove(i);
+                    break;
+                }
+            }
+        }
+        if (monitor != null) {
+            looper.removeDispatchObserver(monitor);
+        }
+    }
+
+    /**启动看门狗线程**/
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Watchdog already started");
+        }
+        mThread = new Thread(TAG) {
+            @Override
+            public void run() {
+                runChecks();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**停止看门狗线程，被监视的Looper不受影响**/
+    public synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    private void runChecks() {
+        final ArrayList<Monitor> monitors = new ArrayList<Monitor>();
+        for (;;) {
+            synchronized (this) {
+                try {
+                    if (!mStopped) {
+                        wait(mCheckIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    // 继续检查，由mStopped决定是否退出
+                }
+                if (mStopped) {
+                    return;
+                }
+                monitors.clear();
+                monitors.addAll(mMonitors);
+            }
+            for (int i = 0; i < monitors.size(); i++) {
+                check(monitors.get(i));
+            }
+        }
+    }
+
+    private void check(Monitor monitor) {
+        final long id = monitor.dispatchId;
+        final Message msg = monitor.current;
+        if (msg == null || id == monitor.reportedId) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - monitor.startUptime;
+        if (elapsed < mThresholdMillis) {
+            return;
+        }
+
+        final Looper looper = monitor.looper;
+        //池化的Looper可能刚好离开carrier线程
+        final Thread thread = looper.getThread();
+        final StackTraceElement[] stack = thread != null
+                ? thread.getStackTrace() : new StackTraceElement[0];
+        String message;
+        try {
+            message = msg.toString(now);
+        } catch (RuntimeException e) {
+            //obj.toString()不一定能在其他线程上安全执行
+            message = "{ unavailable: " + e + " }";
+        }
+        //读取期间这次分发已经结束，msg可能已被回收复用，现场作废
+        if (monitor.dispatchId != id || monitor.current != msg) {
+            return;
+        }
+        monitor.reportedId = id;
+
+        final StringBuilder queueDump = new StringBuilder();
+        looper.getQueue().dump(new StringBuilderPrinter(queueDump), "  ");
+        try {
+            mListener.onSlowDispatch(new Report(looper, elapsed, message, stack,
+                    queueDump.toString()));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Listener threw exception", e);
+        }
+    }
+}
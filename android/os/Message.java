@@ -24,7 +24,8 @@ import android.util.TimeUtils;
  * 2. 使用多级标识位而非多个boolean；
  * 3. 低消耗存储的arg1+arg2，高消耗但灵活Bundle，两种方式相辅相成；
  * 4. 消息池不用LinkedList<Message>，而用静态成员Message sPool；
- * 5. synchronized关键字，以及静态的虚拟对象锁；
+ * 5. synchronized关键字，以及静态的虚拟对象锁；消息池前面再加一层线程私有的缓存（magazine），
+ *    稳定状态下obtain()/recycle()既不加锁也不分配对象；
  * 6. 如果有创建频率高的对象，则设置对象池；
  *
  *
@@ -87,6 +88,27 @@ public final class Message implements Parcelable {
     /** 是否在copyFrom方法中重置使用标识、同步标识 ，此时值为01(使用中的同步消息)*/
     /*package*/ static final int FLAGS_TO_CLEAR_ON_COPY_FROM = FLAG_IN_USE;
 
+    /**
+     * 输入事件等对延迟最敏感的消息的优先级。
+     * @see #setPriority(int)
+     */
+    public static final int PRIORITY_INPUT = 0;
+    /**绘制等与帧相关的消息的优先级**/
+    public static final int PRIORITY_RENDER = 1;
+    /**消息的默认优先级**/
+    public static final int PRIORITY_NORMAL = 2;
+    /**可以推迟的后台工作的优先级**/
+    public static final int PRIORITY_BACKGROUND = 3;
+
+    /**消息所在的优先级通道，只在消息队列开启了优先级通道时起作用**/
+    /*package*/ int priority = PRIORITY_NORMAL;
+
+    /**消息必须在这个时刻之前处理完（uptimeMillis），0表示没有截止时间**/
+    /*package*/ long deadline;
+
+    /**分区分发时消息所属的串行域，null表示以target为域**/
+    /*package*/ Object orderingKey;
+
     /** 多级标识。最低位0-闲置中，最低位1-使用中；次低位0-同步消息，次低位1-异步消息 **/
     /*package*/ int flags;
     /**消息执行的时间，如果不是延时消息when等于当前时间**/
@@ -97,38 +119,211 @@ public final class Message implements Parcelable {
     /*package*/ Handler target;
 
     /*package*/ Runnable callback;
-    /**指向下一个消息（在消息池时才使用，其他情况下为null）**/
+    /**指向下一个消息（在消息池或者MessageQueue的消息存储中使用，其他情况下为null）**/
     /*package*/ Message next;
 
-    /**消息池出池入池时，施加的同步对象锁**/
+    /**在消息存储中指向前一个消息，使得消息可以按引用O(1)地从遍历链中摘除**/
+    /*package*/ Message prev;
+
+    /**入队序号，when相同时决定先后顺序。由MessageQueue在入队时分配**/
+    /*package*/ long seq;
+
+    /**在{@link HeapMessageStore}堆数组中的下标，不在堆中时为-1**/
+    /*package*/ int heapIndex = -1;
+
+    /**在{@link AsyncMessageHeap}中的下标，不在其中时为-1**/
+    /*package*/ int asyncIndex = -1;
+
+    /**{@link MessageIndex}中同一(target, what)桶的前后消息**/
+    /*package*/ Message whatPrev;
+    /*package*/ Message whatNext;
+
+    /**{@link MessageIndex}中同一(target, callback)桶的前后消息**/
+    /*package*/ Message callbackPrev;
+    /*package*/ Message callbackNext;
+
+    /**
+     * 消息在MessageQueue批量分发中的状态，不在批次中时为0。
+     * looper线程无锁地认领消息，其他线程持锁取消消息，所以用volatile字段配合CAS。
+     * @see MessageQueue#nextBatch(int)
+     */
+    /*package*/ volatile int batchState;
+
+    /**
+     * 消息的代数：交给looper分发或者被回收时加1。{@link MessageHandle}记下入队时的代数，
+     * 代数变化说明它指向的那次发送已经结束，消息对象可能已经被复用。
+     */
+    /*package*/ int generation;
+
+    /**
+     * 消息在{@link MessageJournal}中的记录编号，0表示没有被记录。
+     */
+    /*package*/ long journalId;
+
+    /**共享消息池（depot）出池入池时，施加的同步对象锁**/
     private static final Object sPoolSync = new Object();
-    /**消息池首部的消息，初始默认值为null*/
+    /**共享消息池首部的消息，初始默认值为null*/
     private static Message sPool;
     private static int sPoolSize = 0;
     private static final int MAX_POOL_SIZE = 50;
+    private static final int DEFAULT_MAGAZINE_SIZE = 16;
     private static boolean gCheckRecycle = true;
 
+    /**共享消息池容量，guarded by sPoolSync**/
+    private static int sMaxPoolSize = MAX_POOL_SIZE;
+    /**每个线程私有缓存的容量，为0时退化为只使用共享消息池**/
+    private static volatile int sMagazineSize = DEFAULT_MAGAZINE_SIZE;
+    /**已汇总的命中/未命中次数，guarded by sPoolSync**/
+    private static long sPoolHits;
+    private static long sPoolMisses;
+
+    /**
+     * 线程私有的消息缓存。obtain()与recycle()优先在这里存取，只有缓存空了（或满了）才带着半个缓存的
+     * 消息一次性去共享消息池批量取（或还），从而把加锁次数降低为原来的几分之一。
+     */
+    private static final class Magazine {
+        Message[] messages;
+        int count;
+        /**尚未汇总到sPoolHits的命中次数。未命中只发生在持有sPoolSync的慢路径上，直接计入sPoolMisses**/
+        long hits;
+
+        Magazine(int size) {
+            messages = new Message[size];
+        }
+    }
+
+    /**
+     * 所有虚拟线程共用的空缓存，容量固定为0，只在持有sPoolSync时访问。虚拟线程数量可能极多且生命周期短，
+     * 私有缓存会把消息困在很快就结束的线程里，所以它们直接使用共享消息池。
+     */
+    private static final Magazine sSharedMagazine = new Magazine(0);
+
+    private static final ThreadLocal<Magazine> sMagazine = new ThreadLocal<Magazine>() {
+        @Override
+        protected Magazine initialValue() {
+            if (VirtualThreads.isVirtual(Thread.currentThread())) {
+                return sSharedMagazine;
+            }
+            return new Magazine(sMagazineSize);
+        }
+    };
+
     /**
      * 从消息池首部取出一个闲置消息作为返回结果。使开发者多数情况下避免创建新的消息对象。
      * @return  如果消息池不为空，则返回池中闲置消息对象；为空，则返回新创建的消息对象。
      */
     public static Message obtain() {
+        final Magazine mag = sMagazine.get();
+        if (mag.count > 0) {//从线程私有缓存中取出消息，无需加锁
+            final Message m = mag.messages[--mag.count];
+            mag.messages[mag.count] = null;
+            m.flags = 0; //复位flag，将m消息的状态改为未使用的同步消息
+            mag.hits++;
+            return m;
+        }
+
+        //私有缓存为空：从共享消息池取出一个消息返回，顺便再取最多半个缓存的消息装入私有缓存
         //虚拟对象锁。锁住后，任何也以sPoolSync为锁的代码将会阻塞从而保证多线程同步。
         synchronized (sPoolSync) {
+            flushCountsLocked(mag);
+            resizeLocked(mag);
             if (sPool != null) {//从消息池首部取出消息
-                Message m = sPool;
-                sPool = m.next;
-                m.next = null;
-                m.flags = 0; //复位flag，将m消息的状态改为未使用的同步消息
-                sPoolSize--;
+                final Message m = popLocked();
+                final int target = mag.messages.length / 2;
+                while (sPool != null && mag.count < target) {
+                    mag.messages[mag.count++] = popLocked();
+                }
+                m.flags = 0;
+                sPoolHits++;
                 return m;
             }
+            sPoolMisses++;
         }
 
         //sPool为空则表明当前的消息池为空。新建一个消息，并在消息回收时再加入消息池中(recycle()）
         return new Message();
     }
 
+    private static Message popLocked() {
+        final Message m = sPool;
+        sPool = m.next;
+        m.next = null;
+        sPoolSize--;
+        return m;
+    }
+
+    /**放入共享消息池，池满时交给GC**/
+    private static void pushLocked(Message m) {
+        if (sPoolSize < sMaxPoolSize) {
+            m.next = sPool;
+            sPool = m;
+            sPoolSize++;
+        }
+    }
+
+    private static void flushCountsLocked(Magazine mag) {
+        sPoolHits += mag.hits;
+        mag.hits = 0;
+    }
+
+    /**缓存容量被{@link #setPoolSize}修改后，在慢路径上调整，多出的消息还给共享消息池**/
+    private static void resizeLocked(Magazine mag) {
+        final int size = sMagazineSize;
+        if (mag.messages.length != size && mag != sSharedMagazine) {
+            while (mag.count > size) {
+                final Message m = mag.messages[--mag.count];
+                mag.messages[mag.count] = null;
+                pushLocked(m);
+            }
+            final Message[] messages = new Message[size];
+            System.arraycopy(mag.messages, 0, messages, 0, mag.count);
+            mag.messages = messages;
+        }
+    }
+
+    /**
+     * 设置消息池的容量。
+     * @param magazineSize 每个线程私有缓存的容量，为0时所有线程直接使用共享消息池（原有行为）
+     * @param poolSize 共享消息池的容量
+     * @hide
+     */
+    public static void setPoolSize(int magazineSize, int poolSize) {
+        if (magazineSize < 0 || poolSize < 0) {
+            throw new IllegalArgumentException("Pool sizes must be non-negative");
+        }
+        synchronized (sPoolSync) {
+            sMagazineSize = magazineSize;
+            sMaxPoolSize = poolSize;
+            while (sPoolSize > poolSize) {
+                popLocked();
+            }
+        }
+    }
+
+    /**
+     * 返回消息池命中次数，即obtain()复用了闲置消息的次数。各线程的计数在访问共享消息池时才会汇总，
+     * 因此这是一个近似值；调用线程自己的计数总是包含在内。
+     * @hide
+     */
+    public static long getPoolHitCount() {
+        final Magazine mag = sMagazine.get();
+        synchronized (sPoolSync) {
+            flushCountsLocked(mag);
+            return sPoolHits;
+        }
+    }
+
+    /**
+     * 返回消息池未命中次数，即obtain()不得不新建消息的次数。未命中总是在持有共享消息池的锁时计数，
+     * 所以这是一个精确值。
+     * @hide
+     */
+    public static long getPoolMissCount() {
+        synchronized (sPoolSync) {
+            return sPoolMisses;
+        }
+    }
+
     /**
      * 与{@link #obtain()}类似。从消息池首部获取一个闲置消息作为返回结果，并将形参orig的<em>what</em>、
      * <em>arg1</em>、<em>arg2</em>、<em>obj</em>、<em>replayTo</em>、<em>sendingUid</em>、
@@ -298,6 +493,8 @@ public final class Message implements Parcelable {
         // Mark the message as in use while it remains in the recycled object pool.
         // Clear out all other details.
         flags = FLAG_IN_USE;//设置为正在使用中的同步消息
+        generation++;//使指向这个消息的MessageHandle失效
+        journalId = 0;
         what = 0;
         arg1 = 0;
         arg2 = 0;
@@ -305,17 +502,31 @@ public final class Message implements Parcelable {
         replyTo = null;
         sendingUid = -1;
         when = 0;
+        priority = PRIORITY_NORMAL;
+        deadline = 0;
+        orderingKey = null;
         target = null;
         callback = null;
         data = null;
 
+        final Magazine mag = sMagazine.get();
+        if (mag.count < mag.messages.length) {//放回线程私有缓存，无需加锁
+            mag.messages[mag.count++] = this;
+            return;
+        }
+
+        //私有缓存已满：把一半缓存连同当前消息还给共享消息池，池满时多余的交给GC。
         //obtain()同样使用了该对象锁
         synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                next = sPool;
-                sPool = this;
-                sPoolSize++;
+            flushCountsLocked(mag);
+            resizeLocked(mag);
+            final int keep = mag.messages.length / 2;
+            while (mag.count > keep) {
+                final Message m = mag.messages[--mag.count];
+                mag.messages[mag.count] = null;
+                pushLocked(m);
             }
+            pushLocked(this);
         }
     }
 
@@ -341,6 +552,9 @@ public final class Message implements Parcelable {
         this.obj = o.obj;
         this.replyTo = o.replyTo;
         this.sendingUid = o.sendingUid;
+        this.priority = o.priority;
+        this.deadline = o.deadline;
+        this.orderingKey = o.orderingKey;
 
         if (o.data != null) {
             this.data = (Bundle) o.data.clone();
@@ -478,6 +692,82 @@ public final class Message implements Parcelable {
         }
     }
 
+    /**
+     * 获取消息的截止时间。
+     * @see #setDeadline(long)
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * 设置消息必须处理完的时刻，必须在发送消息之前调用。
+     * <p>
+     * 消息队列通过{@link MessageQueue.Config#setEarliestDeadlineFirst}开启截止时间调度时，已经到期的
+     * 消息按截止时间先后投递，没有截止时间的消息排在有截止时间的消息之后。无论是否开启，处理完时已经
+     * 超过截止时间的消息都会被计为一次超时，参考{@link MessageQueue#getDeadlineMissCount()}。
+     * </p>
+     *
+     * @param uptimeMillis 截止时刻，基于{@link android.os.SystemClock#uptimeMillis}；0表示没有截止时间
+     */
+    public void setDeadline(long uptimeMillis) {
+        if (uptimeMillis < 0) {
+            throw new IllegalArgumentException("deadline must not be negative: " + uptimeMillis);
+        }
+        deadline = uptimeMillis;
+    }
+
+    /**
+     * 获取消息的串行域。
+     * @see #setOrderingKey(Object)
+     */
+    public Object getOrderingKey() {
+        return orderingKey;
+    }
+
+    /**
+     * 设置消息所属的串行域，必须在发送消息之前调用。
+     * <p>
+     * 只有Looper通过{@link Looper#setPartitionedDispatch}开启了分区分发时才起作用：串行域相同
+     * （按equals比较）的消息按照when和发送顺序逐个分发，不同串行域的消息可以在不同线程上并行分发。
+     * 没有设置时以目标Handler为串行域。未开启分区分发时被忽略。
+     * </p>
+     *
+     * @param key 串行域，null表示以目标Handler为串行域
+     */
+    public void setOrderingKey(Object key) {
+        orderingKey = key;
+    }
+
+    /**
+     * 获取消息的优先级。
+     * @see #setPriority(int)
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 设置消息的优先级，必须在发送消息之前调用。
+     * <p>
+     * 只有消息队列通过{@link MessageQueue.Config#setPriorityLanes}开启了优先级通道时才起作用：每个优先级
+     * 对应一条按时间排序的通道，looper从已到期的通道中优先挑选高优先级（数值小）的消息，同时按通道权重
+     * 保证低优先级的通道不会被饿死。超出通道个数的优先级归入最后一条通道。未开启时所有消息按when排序，
+     * 优先级被忽略。
+     * </p><p>
+     * 同一优先级内的消息依然严格按照when和发送顺序交付；不同优先级之间没有先后保证。
+     * </p>
+     *
+     * @param priority {@link #PRIORITY_INPUT}、{@link #PRIORITY_RENDER}、{@link #PRIORITY_NORMAL}、
+     *  {@link #PRIORITY_BACKGROUND}或者其他非负数
+     */
+    public void setPriority(int priority) {
+        if (priority < 0) {
+            throw new IllegalArgumentException("priority must not be negative: " + priority);
+        }
+        this.priority = priority;
+    }
+
     /*package*/ boolean isInUse() {
         /**
          * flags    FLAG_IN_USE     返回值
@@ -545,6 +835,21 @@ public final class Message implements Parcelable {
                 b.append(obj);
             }
 
+            if (priority != PRIORITY_NORMAL) {
+                b.append(" priority=");
+                b.append(priority);
+            }
+
+            if (deadline != 0) {
+                b.append(" deadline=");
+                TimeUtils.formatDuration(deadline - now, b);
+            }
+
+            if (orderingKey != null) {
+                b.append(" key=");
+                b.append(orderingKey);
+            }
+
             b.append(" target=");
             b.append(target.getClass().getName());
         } else {
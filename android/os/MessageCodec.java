@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+
+/**
+ * Message的紧凑二进制编码，直接读写堆内或者直接（direct）{@link ByteBuffer}，不经过{@link Parcel}，
+ * 因此也可以在非Android的JVM上使用，比如写入文件或者共享内存。
+ *
+ * <p>
+ *     编码的字段：what、arg1、arg2、when、sendingUid、data（{@link Bundle}）和obj。target、callback、
+ *     replyTo只在本进程内有意义，不编码；callback或者replyTo不为null时拒绝编码。
+ * </p>
+ * <p>
+ *     格式（小端序）：
+ * </p>
+ * <pre>
+ *  version:u8  flags:u8  bodyLength:i32  body
+ *  body = what:zigzag-varint  arg1:zigzag-varint  arg2:zigzag-varint  sendingUid:zigzag-varint
+ *         when:zigzag-varlong  [obj:value]  [data:bundle]
+ *  value = type:u8 payload
+ *  bundle = count:varint  (key:string value)*
+ * </pre>
+ * <p>
+ *     解码时按bodyLength跳过不认识的尾部字段，新版本只在body末尾追加字段，旧的解码器依然可以读取。
+ *     version大于{@link #VERSION}表示不兼容的格式，解码时抛出IllegalArgumentException。
+ * </p>
+ * <p>
+ *     obj和Bundle中的值支持null、Boolean、Integer、Long、Float、Double、String、byte[]、int[]、long[]、
+ *     Bundle，其他类型需要先用{@link #register}注册{@link ObjectCodec}；类型按精确的Class匹配。
+ *     注册应当在开始编解码之前完成，之后可以在多个线程上同时使用同一个MessageCodec。
+ * </p>
+ */
+public final class MessageCodec {
+    /**当前的编码版本**/
+    public static final int VERSION = 1;
+
+    /**{@link #register}可以使用的最小类型id，更小的id留给内置类型**/
+    public static final int FIRST_CUSTOM_TYPE = 64;
+    /**{@link #register}可以使用的最大类型id**/
+    public static final int LAST_CUSTOM_TYPE = 255;
+
+    /**version、flags与bodyLength的字节数**/
+    static final int HEADER_SIZE = 6;
+
+    private static final int FLAG_HAS_OBJ = 1;
+    private static final int FLAG_HAS_DATA = 1 << 1;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_BOOLEAN = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_STRING = 6;
+    private static final int TYPE_BYTES = 7;
+    private static final int TYPE_INT_ARRAY = 8;
+    private static final int TYPE_LONG_ARRAY = 9;
+    private static final int TYPE_BUNDLE = 10;
+
+    /**
+     * 一种obj类型的编解码器。encode与decode都直接读写传入的buffer（字节序已经设置为小端），
+     * decode必须恰好读完encode写入的内容。
+     */
+    public interface ObjectCodec<T> {
+        void encode(T value, ByteBuffer out);
+
+        T decode(ByteBuffer in);
+    }
+
+    /**一个注册的自定义类型**/
+    private static final class CustomType {
+        final int id;
+        final ObjectCodec<Object> codec;
+
+        CustomType(int id, ObjectCodec<Object> codec) {
+            this.id = id;
+            this.codec = codec;
+        }
+    }
+
+    /**注册表，写时复制，注册时持有this**/
+    private volatile IdentityHashMap<Class<?>, CustomType> mByClass =
+            new IdentityHashMap<Class<?>, CustomType>();
+    private volatile CustomType[] mById = new CustomType[LAST_CUSTOM_TYPE + 1];
+
+    /**
+     * 注册一种obj类型的编解码器。
+     *
+     * @param typeId 写入编码中的类型id，在[{@link #FIRST_CUSTOM_TYPE}, {@link #LAST_CUSTOM_TYPE}]之间，
+     *  编码端与解码端必须一致
+     * @param type 对象的精确类型，不匹配子类
+     * @return this，便于链式注册
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> MessageCodec register(int typeId, Class<T> type,
+            ObjectCodec<T> codec) {
+        if (typeId < FIRST_CUSTOM_TYPE || typeId > LAST_CUSTOM_TYPE) {
+            throw new IllegalArgumentException("typeId out of range: " + typeId);
+        }
+        if (type == null || codec == null) {
+            throw new IllegalArgumentException("type and codec must not be null");
+        }
+        if (mById[typeId] != null || mByClass.containsKey(type)) {
+            throw new IllegalStateException("Type " + typeId + " or " + type.getName()
+                    + " is already registered");
+        }
+        final CustomType custom = new CustomType(typeId, (ObjectCodec<Object>) codec);
+        final IdentityHashMap<Class<?>, CustomType> byClass =
+                new IdentityHashMap<Class<?>, CustomType>(mByClass);
+        byClass.put(type, custom);
+        final CustomType[] byId = mById.clone();
+        byId[typeId] = custom;
+        mByClass = byClass;
+        mById = byId;
+        return this;
+    }
+
+    /**
+     * 把msg编码到out的当前位置，完成后position移到编码末尾。空间不足时position恢复原值并抛出
+     * BufferOverflowException，调用者可以换一个更大的buffer重试。out的字节序不受影响。
+     *
+     * @return 写入的字节数
+     * @exception IllegalArgumentException msg含有callback、replyTo，或者obj/data中有不支持的类型
+     */
+    public int encode(Message msg, ByteBuffer out) {
+        if (msg.callback != null) {
+            throw new IllegalArgumentException("Can't encode callbacks.");
+        }
+        if (msg.replyTo != null) {
+            throw new IllegalArgumentException("Can't encode replyTo Messengers.");
+        }
+        final int start = out.position();
+        final ByteOrder order = out.order();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        boolean completed = false;
+        try {
+            final int flags = (msg.obj != null ? FLAG_HAS_OBJ : 0)
+                    | (msg.data != null ? FLAG_HAS_DATA : 0);
+            out.put((byte) VERSION);
+            out.put((byte) flags);
+            out.putInt(0);//bodyLength，写完body后回填
+            final int bodyStart = out.position();
+            writeVarInt(out, zigZag(msg.what));
+            writeVarInt(out, zigZag(msg.arg1));
+            writeVarInt(out, zigZag(msg.arg2));
+            writeVarInt(out, zigZag(msg.sendingUid));
+            writeVarLong(out, (msg.when << 1) ^ (msg.when >> 63));
+            if (msg.obj != null) {
+                writeValue(out, msg.obj);
+            }
+            if (msg.data != null) {
+                writeBundle(out, msg.data);
+            }
+            final int end = out.position();
+            out.putInt(bodyStart - 4, end - bodyStart);
+            completed = true;
+            return end - start;
+        } finally {
+            if (!completed) {
+                out.position(start);
+            }
+            out.order(order);
+        }
+    }
+
+    /**
+     * 从in的当前位置解码一个消息，完成后position移到编码末尾。
+     *
+     * @return 从消息池取出的消息，target为null
+     * @exception BufferUnderflowException in中没有完整的编码，此时position恢复原值
+     * @exception IllegalArgumentException 不兼容的版本或者未注册的类型
+     */
+    public Message decode(ByteBuffer in) {
+        final int start = in.position();
+        final ByteOrder order = in.order();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        final Message msg = Message.obtain();
+        boolean completed = false;
+        try {
+            final int version = in.get() & 0xff;
+            if (version == 0 || version > VERSION) {
+                throw new IllegalArgumentException("Unsupported message encoding version "
+                        + version);
+            }
+            final int flags = in.get() & 0xff;
+            final int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            final int bodyEnd = in.position() + length;
+            msg.what = unZigZag(readVarInt(in));
+            msg.arg1 = unZigZag(readVarInt(in));
+            msg.arg2 = unZigZag(readVarInt(in));
+            msg.sendingUid = unZigZag(readVarInt(in));
+            final long when = readVarLong(in);
+            msg.when = (when >>> 1) ^ -(when & 1);
+            if ((flags & FLAG_HAS_OBJ) != 0) {
+                msg.obj = readValue(in);
+            }
+            if ((flags & FLAG_HAS_DATA) != 0) {
+                msg.data = readBundle(in);
+            }
+            if (in.position() > bodyEnd) {
+                throw new IllegalArgumentException("Corrupt message encoding");
+            }
+            //跳过新版本追加的字段
+            in.position(bodyEnd);
+            completed = true;
+            return msg;
+        } finally {
+            in.order(order);
+            if (!completed) {
+                in.position(start);
+                msg.recycleUnchecked();
+            }
+        }
+    }
+
+    private void writeValue(ByteBuffer out, Object value) {
+        if (value == null) {
+            out.put((byte) TYPE_NULL);
+            return;
+        }
+        final Class<?> type = value.getClass();
+        //常见类型放在前面
+        if (type == Integer.class) {
+            out.put((byte) TYPE_INT);
+            out.putInt((Integer) value);
+        } else if (type == String.class) {
+            out.put((byte) TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (type == Long.class) {
+            out.put((byte) TYPE_LONG);
+            out.putLong((Long) value);
+        } else if (type == Boolean.class) {
+            out.put((byte) TYPE_BOOLEAN);
+            out.put((byte) ((Boolean) value ? 1 : 0));
+        } else if (type == Float.class) {
+            out.put((byte) TYPE_FLOAT);
+            out.putFloat((Float) value);
+        } else if (type == Double.class) {
+            out.put((byte) TYPE_DOUBLE);
+            out.putDouble((Double) value);
+        } else if (type == byte[].class) {
+            final byte[] bytes = (byte[]) value;
+            out.put((byte) TYPE_BYTES);
+            writeVarInt(out, bytes.length);
+            out.put(bytes);
+        } else if (type == int[].class) {
+            final int[] ints = (int[]) value;
+            out.put((byte) TYPE_INT_ARRAY);
+            writeVarInt(out, ints.length);
+            //通过视图整块复制，字节序与out相同
+            checkRemaining(out, ints.length * 4);
+            out.asIntBuffer().put(ints);
+            out.position(out.position() + ints.length * 4);
+        } else if (type == long[].class) {
+            final long[] longs = (long[]) value;
+            out.put((byte) TYPE_LONG_ARRAY);
+            writeVarInt(out, longs.length);
+            checkRemaining(out, longs.length * 8);
+            out.asLongBuffer().put(longs);
+            out.position(out.position() + longs.length * 8);
+        } else if (type == Bundle.class) {
+            out.put((byte) TYPE_BUNDLE);
+            writeBundle(out, (Bundle) value);
+        } else {
+            final CustomType custom = mByClass.get(type);
+            if (custom == null) {
+                throw new IllegalArgumentException("No codec registered for " + type.getName());
+            }
+            out.put((byte) custom.id);
+            //长度前缀使解码端可以校验自定义解码器恰好读完
+            final int lengthPos = out.position();
+            out.putInt(0);
+            custom.codec.encode(value, out);
+            out.putInt(lengthPos, out.position() - lengthPos - 4);
+        }
+    }
+
+    private Object readValue(ByteBuffer in) {
+        final int type = in.get() & 0xff;
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_INT:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_FLOAT:
+                return in.getFloat();
+            case TYPE_DOUBLE:
+                return in.getDouble();
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_BYTES: {
+                final byte[] bytes = new byte[readLength(in, 1)];
+                in.get(bytes);
+                return bytes;
+            }
+            case TYPE_INT_ARRAY: {
+                final int[] ints = new int[readLength(in, 4)];
+                in.asIntBuffer().get(ints);
+                in.position(in.position() + ints.length * 4);
+                return ints;
+            }
+            case TYPE_LONG_ARRAY: {
+                final long[] longs = new long[readLength(in, 8)];
+                in.asLongBuffer().get(longs);
+                in.position(in.position() + longs.length * 8);
+                return longs;
+            }
+            case TYPE_BUNDLE:
+                return readBundle(in);
+            default: {
+                final CustomType custom = type >= FIRST_CUSTOM_TYPE ? mById[type] : null;
+                if (custom == null) {
+                    throw new IllegalArgumentException("No codec registered for type " + type);
+                }
+                final int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                final int end = in.position() + length;
+                final Object value = custom.codec.decode(in);
+                if (in.position() != end) {
+                    throw new IllegalArgumentException("Codec for type " + type + " read "
+                            + (in.position() - end + length) + " of " + length + " bytes");
+                }
+                return value;
+            }
+        }
+    }
+
+    private void writeBundle(ByteBuffer out, Bundle bundle) {
+        writeVarInt(out, bundle.size());
+        for (String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, bundle.get(key));
+        }
+    }
+
+    private Bundle readBundle(ByteBuffer in) {
+        final int count = readLength(in, 2);
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < count; i++) {
+            final String key = readString(in);
+            putValue(bundle, key, readValue(in));
+        }
+        return bundle;
+    }
+
+    private static void putValue(Bundle bundle, String key, Object value) {
+        if (value == null) {
+            bundle.putString(key, null);
+        } else if (value instanceof Integer) {
+            bundle.putInt(key, (Integer) value);
+        } else if (value instanceof String) {
+            bundle.putString(key, (String) value);
+        } else if (value instanceof Long) {
+            bundle.putLong(key, (Long) value);
+        } else if (value instanceof Boolean) {
+            bundle.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Float) {
+            bundle.putFloat(key, (Float) value);
+        } else if (value instanceof Double) {
+            bundle.putDouble(key, (Double) value);
+        } else if (value instanceof byte[]) {
+            bundle.putByteArray(key, (byte[]) value);
+        } else if (value instanceof int[]) {
+            bundle.putIntArray(key, (int[]) value);
+        } else if (value instanceof long[]) {
+            bundle.putLongArray(key, (long[]) value);
+        } else if (value instanceof Bundle) {
+            bundle.putBundle(key, (Bundle) value);
+        } else {
+            throw new IllegalArgumentException("Bundle can't hold " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * UTF-8编码，直接写入out，不经过String.getBytes()的临时数组。先算出字节数写入长度前缀。
+     * 不成对的代理字符按'?'处理，与String.getBytes()一致。
+     */
+    private static void writeString(ByteBuffer out, String s) {
+        final int length = s.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        writeVarInt(out, bytes);
+        checkRemaining(out, bytes);
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xf0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int bytes = readLength(in, 1);
+        if (in.hasArray()) {
+            //堆内buffer直接从底层数组解码
+            final int pos = in.position();
+            final String s = new String(in.array(), in.arrayOffset() + pos, bytes,
+                    StandardCharsets.UTF_8);
+            in.position(pos + bytes);
+            return s;
+        }
+        final byte[] buffer = new byte[bytes];
+        in.get(buffer);
+        return new String(buffer, StandardCharsets.UTF_8);
+    }
+
+    /**读取一个长度前缀，并按每个元素至少minBytes字节检查剩余空间，防止损坏的数据导致巨大的分配**/
+    private static int readLength(ByteBuffer in, int minBytes) {
+        final int length = readVarInt(in);
+        if (length < 0 || (long) length * minBytes > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    private static void checkRemaining(ByteBuffer out, int bytes) {
+        if (out.remaining() < bytes) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    private static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**无符号LEB128，每字节7位**/
+    private static void writeVarInt(ByteBuffer out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = in.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7fL) != 0) {
+            out.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 一次发送的句柄，由{@link Handler#postCancellable}、{@link Handler#sendMessageCancellable}等方法返回。
+ *
+ * <p>
+ *     {@link Handler#removeCallbacks(Runnable, Object)}按(callback, token)匹配，同一个Runnable发送过多次
+ *     时会一起删除；句柄只针对它代表的那一次发送，按引用从消息队列中摘除，不需要在桶中查找。
+ * </p>
+ * <p>
+ *     消息被分发、删除或者回收后句柄随之失效（见{@link Message#generation}），之后的调用都没有效果，
+ *     即使同一个消息对象已经被复用于别的发送。句柄可以在任意线程使用。
+ * </p>
+ */
+public final class MessageHandle {
+    private final MessageQueue mQueue;
+    private final Message mMessage;
+    private final int mGeneration;
+
+    /**generation必须在消息入队之前读取，入队之后消息随时可能被分发**/
+    MessageHandle(MessageQueue queue, Message message, int generation) {
+        mQueue = queue;
+        mMessage = message;
+        mGeneration = generation;
+    }
+
+    /**
+     * 取消这次发送。
+     * @return 消息还在等待投递并且被删除时返回true；已经分发、正在分发或者已经被删除时返回false
+     */
+    public boolean cancel() {
+        return mQueue.cancelMessage(mMessage, mGeneration);
+    }
+
+    /**
+     * @return 消息是否还在消息队列中等待投递
+     */
+    public boolean isPending() {
+        return mQueue.isMessagePending(mMessage, mGeneration);
+    }
+
+    /**
+     * 把还在等待的消息改到绝对时刻uptimeMillis处理，沿用同一个消息对象和句柄。改期后的消息排在
+     * 执行时刻相同的已有消息之后。
+     *
+     * @param uptimeMillis 基于{@link SystemClock#uptimeMillis}的绝对时刻
+     * @return 是否改期成功；消息已经到期被looper取出、已经被删除或者消息循环正在退出时返回false
+     */
+    public boolean reschedule(long uptimeMillis) {
+        return mQueue.rescheduleMessage(mMessage, mGeneration, uptimeMillis);
+    }
+
+    /**
+     * 与{@link #reschedule(long)}相同，改到当前时刻加上delayMillis之后处理。
+     */
+    public boolean rescheduleDelayed(long delayMillis) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        return reschedule(SystemClock.uptimeMillis() + delayMillis);
+    }
+}
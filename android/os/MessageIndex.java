@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.SparseArray;
+
+import java.util.IdentityHashMap;
+
+/**
+ * {@link MessageQueue}待处理消息的二级索引，使removeMessages/hasMessages系列方法的开销只与匹配的
+ * 消息个数成正比，而与队列长度无关。
+ *
+ * <p>
+ *     每个target Handler对应一个{@link TargetEntry}，其中：
+ *     1) 按what分桶，<em>所有</em>消息都在某个what桶中（post的Runnable消息what为0，原来的
+ *        removeMessages(h, 0, null)也会删除它们，这里保持一致）；
+ *     2) callback不为null的消息同时在按callback分的桶中。
+ *     桶是通过Message上的字段串起来的侵入式双向链表，按引用摘除为O(1)。桶和TargetEntry在变空时立即从
+ *     索引中摘除，因此索引不会一直持有已经没有消息的Handler；摘除的对象放回一个有上限的空闲链表，下次add时复用，
+ *     同一个Handler反复发送、处理消息时不会每次都重新分配。byCallback只有在第一次出现callback时才创建。
+ * </p>
+ * <p>
+ *     消息在索引中时，它的what和callback就是它所在桶的键，remove时按这两个字段找回桶，因此消息入队以后、出队以前
+ *     不能修改what和callback（Message在队列中本来就处于使用中状态，不允许修改）。
+ * </p>
+ * <p>同步障碍器（target为null）不进入索引。所有方法都必须在持有MessageQueue对象锁时调用。</p>
+ */
+final class MessageIndex {
+    /**同一个键下的消息链**/
+    static final class Bucket {
+        Message head;
+        int count;
+        /**空闲链表**/
+        Bucket nextFree;
+    }
+
+    /**一个Handler在队列中的全部消息**/
+    static final class TargetEntry {
+        final SparseArray<Bucket> byWhat = new SparseArray<Bucket>();
+        /**第一次有callback消息时才创建，之后随TargetEntry一起复用**/
+        IdentityHashMap<Runnable, Bucket> byCallback;
+        int count;
+        /**空闲链表**/
+        TargetEntry nextFree;
+    }
+
+    /**空闲链表的长度上限，超过的直接丢给GC**/
+    private static final int MAX_FREE = 32;
+
+    private final IdentityHashMap<Handler, TargetEntry> mTargets =
+            new IdentityHashMap<Handler, TargetEntry>();
+
+    private Bucket mFreeBuckets;
+    private int mFreeBucketCount;
+    private TargetEntry mFreeEntries;
+    private int mFreeEntryCount;
+
+    void add(Message msg) {
+        final Handler target = msg.target;
+        if (target == null) {
+            return;
+        }
+        TargetEntry entry = mTargets.get(target);
+        if (entry == null) {
+            entry = obtainEntry();
+            mTargets.put(target, entry);
+        }
+        entry.count++;
+
+        Bucket bucket = entry.byWhat.get(msg.what);
+        if (bucket == null) {
+            bucket = obtainBucket();
+            entry.byWhat.put(msg.what, bucket);
+        }
+        msg.whatPrev = null;
+        msg.whatNext = bucket.head;
+        if (bucket.head != null) {
+            bucket.head.whatPrev = msg;
+        }
+        bucket.head = msg;
+        bucket.count++;
+
+        if (msg.callback != null) {
+            if (entry.byCallback == null) {
+                entry.byCallback = new IdentityHashMap<Runnable, Bucket>(4);
+            }
+            Bucket callbacks = entry.byCallback.get(msg.callback);
+            if (callbacks == null) {
+                callbacks = obtainBucket();
+                entry.byCallback.put(msg.callback, callbacks);
+            }
+            msg.callbackPrev = null;
+            msg.callbackNext = callbacks.head;
+            if (callbacks.head != null) {
+                callbacks.head.callbackPrev = msg;
+            }
+            callbacks.head = msg;
+            callbacks.count++;
+        }
+    }
+
+    void remove(Message msg) {
+        final Handler target = msg.target;
+        if (target == null) {
+            return;
+        }
+        final TargetEntry entry = mTargets.get(target);
+        if (entry == null) {
+            return;
+        }
+
+        final Bucket bucket = entry.byWhat.get(msg.what);
+        if (msg.whatPrev != null) {
+            msg.whatPrev.whatNext = msg.whatNext;
+        } else {
+            bucket.head = msg.whatNext;
+        }
+        if (msg.whatNext != null) {
+            msg.whatNext.whatPrev = msg.whatPrev;
+        }
+        msg.whatPrev = null;
+        msg.whatNext = null;
+        if (--bucket.count == 0) {
+            entry.byWhat.delete(msg.what);
+            recycleBucket(bucket);
+        }
+
+        if (msg.callback != null) {
+            final Bucket callbacks = entry.byCallback.get(msg.callback);
+            if (msg.callbackPrev != null) {
+                msg.callbackPrev.callbackNext = msg.callbackNext;
+            } else {
+                callbacks.head = msg.callbackNext;
+            }
+            if (msg.callbackNext != null) {
+                msg.callbackNext.callbackPrev = msg.callbackPrev;
+            }
+            msg.callbackPrev = null;
+            msg.callbackNext = null;
+            if (--callbacks.count == 0) {
+                entry.byCallback.remove(msg.callback);
+                recycleBucket(callbacks);
+            }
+        }
+
+        if (--entry.count == 0) {
+            mTargets.remove(target);
+            recycleEntry(entry);
+        }
+    }
+
+    private Bucket obtainBucket() {
+        final Bucket bucket = mFreeBuckets;
+        if (bucket == null) {
+            return new Bucket();
+        }
+        mFreeBuckets = bucket.nextFree;
+        bucket.nextFree = null;
+        mFreeBucketCount--;
+        return bucket;
+    }
+
+    private void recycleBucket(Bucket bucket) {
+        //count已经是0，head已经是null
+        if (mFreeBucketCount < MAX_FREE) {
+            bucket.nextFree = mFreeBuckets;
+            mFreeBuckets = bucket;
+            mFreeBucketCount++;
+        }
+    }
+
+    private TargetEntry obtainEntry() {
+        final TargetEntry entry = mFreeEntries;
+        if (entry == null) {
+            return new TargetEntry();
+        }
+        mFreeEntries = entry.nextFree;
+        entry.nextFree = null;
+        mFreeEntryCount--;
+        return entry;
+    }
+
+    private void recycleEntry(TargetEntry entry) {
+        //count为0时所有桶都已经摘除，byWhat、byCallback都是空的，保留它们的存储以便复用
+        if (mFreeEntryCount < MAX_FREE) {
+            entry.nextFree = mFreeEntries;
+            mFreeEntries = entry;
+            mFreeEntryCount++;
+        }
+    }
+
+    /**@return target的what桶的第一个消息，随后沿Message.whatNext遍历**/
+    Message firstByWhat(Handler target, int what) {
+        final TargetEntry entry = mTargets.get(target);
+        if (entry == null) {
+            return null;
+        }
+        final Bucket bucket = entry.byWhat.get(what);
+        return bucket != null ? bucket.head : null;
+    }
+
+    /**@return target的callback桶的第一个消息，随后沿Message.callbackNext遍历**/
+    Message firstByCallback(Handler target, Runnable callback) {
+        final TargetEntry entry = mTargets.get(target);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.byCallback == null) {
+            return null;
+        }
+        final Bucket bucket = entry.byCallback.get(callback);
+        return bucket != null ? bucket.head : null;
+    }
+
+    /**@return target的全部消息所在的what桶，没有消息时返回null**/
+    TargetEntry get(Handler target) {
+        return mTargets.get(target);
+    }
+
+    /**target在队列中的消息个数**/
+    int count(Handler target) {
+        final TargetEntry entry = mTargets.get(target);
+        return entry != null ? entry.count : 0;
+    }
+
+    /**丢弃整个索引。调用者负责清空消息上的索引链字段**/
+    void clear() {
+        mTargets.clear();
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个MessageQueue的持久化预写日志（WAL），让进程重启后还没处理的延时消息（重试、超时）可以恢复。
+ *
+ * <p>
+ *     日志是一个内存映射文件，记录只追加：消息入队写一条ENQUEUE（带{@link MessageCodec}编码的消息），
+ *     被删除或者交给looper分发时写一条REMOVE。追加只是对映射内存的写入，在队列锁内完成；落盘由一个
+ *     公共的提交线程按固定间隔对有新记录的日志调用一次force()，多条记录共用一次刷盘（group commit）。
+ *     因此进程崩溃不会丢失记录，掉电最多丢失最近一个提交间隔内的记录。
+ * </p>
+ * <p>
+ *     只有目标Handler通过{@link MessageQueue#registerJournalTarget}登记过名字、并且没有callback和
+ *     replyTo的消息才会被记录。打开日志时按顺序重放，得到仍然有效的消息，按目标名字暂存；对应的Handler
+ *     登记时才把它们放回队列——Looper.prepare()时还没有任何Handler。消息的执行时刻按墙上时间保存，
+ *     重启后换算成新的uptimeMillis，已经过期的立即投递。
+ * </p>
+ * <p>
+ *     压缩：打开日志时，以及映射区写满时，先在堆内存中编码仍然有效的消息，写入新文件后立即换用它继续追加。
+ *     写满时的新文件是提交线程预先创建、分配好大小并映射的file.tmp（双缓冲），新文件的force()和改名替换
+ *     旧文件也由提交线程完成，改名以后再准备下一个file.tmp，所以队列锁内只有编码和内存拷贝，没有文件操作和刷盘。
+ *     有效数据超过新文件的一半时，下一个文件的容量加倍（最小{@link #DEFAULT_CAPACITY}）。改名之前崩溃的话
+ *     两个文件都在，重放时先读旧文件再读file.tmp，结果与改名后相同；还没有用过的file.tmp全是0，重放时忽略。
+ * </p>
+ * <p>
+ *     写满时如果file.tmp还没有准备好（上一次压缩还没有改名，或者有效数据太多需要更大的文件），不在锁内等待，
+ *     而是暂停记录：之后的ENQUEUE、REMOVE都不写入，只分配编号；提交线程准备好file.tmp后持有队列锁补做一次压缩，
+ *     从队列中重新收集有效的消息，恢复记录。暂停通常只有一次文件创建的时间，这期间崩溃或者退出的话，
+ *     暂停以来的变化没有记录，下次打开时按暂停前的记录重放（可能重复投递已经处理过的消息）。
+ * </p>
+ * <pre>
+ *  文件 = magic:i32 version:i32 record*
+ *  record = length:i32 checksum:i32 body      （小端序，length最后写入，为0表示日志结束）
+ *  body = ENQUEUE:u8 id:i64 dueWallMillis:i64 nameLength:u16 name message
+ *       | REMOVE:u8 id:i64
+ * </pre>
+ * <p>
+ *     所有方法都持有this（force()除外）；追加由持有队列锁的线程调用，锁顺序总是先队列后日志。
+ * </p>
+ */
+final class MessageJournal {
+    private static final String TAG = "MessageJournal";
+
+    /**"MQJ1"**/
+    private static final int MAGIC = 0x314a514d;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /**新日志文件的大小**/
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    /**group commit的间隔**/
+    static final long COMMIT_INTERVAL_MILLIS = 100;
+
+    /**所有日志共用的提交线程**/
+    private static ScheduledThreadPoolExecutor sCommitter;
+
+    /**重放得到、还没有放回队列的消息**/
+    static final class Pending {
+        final long id;
+        final byte[] target;
+        final long dueWallMillis;
+        final byte[] message;
+
+        Pending(long id, byte[] target, long dueWallMillis, byte[] message) {
+            this.id = id;
+            this.target = target;
+            this.dueWallMillis = dueWallMillis;
+            this.message = message;
+        }
+    }
+
+    private final MessageQueue mQueue;
+    private final File mFile;
+    private final File mTmpFile;
+    /**压缩写入、还没有改名为mFile的文件，此时mRaf、mBuffer对应它；已经替换时为null**/
+    private File mCompactFile;
+    private final MessageCodec mCodec;
+
+    /**一个映射好的日志文件**/
+    private static final class Segment {
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+
+        Segment(RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+    }
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    /**下一条记录的位置**/
+    private int mWritePos;
+    private long mNextId = 1;
+    /**有还没有force()的记录**/
+    private boolean mDirty;
+    /**关闭，或者因为I/O错误停止记录**/
+    private boolean mClosed;
+    private ScheduledFuture<?> mCommitTask;
+    /**被压缩替换的旧文件，改名后关闭**/
+    private RandomAccessFile mRetiredRaf;
+    /**提交线程预先准备好的file.tmp，下一次写满时直接换用；正在使用或者还没有准备好时为null**/
+    private Segment mSpare;
+    /**下一个file.tmp的容量**/
+    private int mSpareCapacity;
+    /**已经交给提交线程准备file.tmp，还没有开始**/
+    private boolean mSpareScheduled;
+    /**写满时没有可用的file.tmp，暂停记录，等提交线程补做压缩**/
+    private boolean mStale;
+
+    /**登记的目标Handler到名字（UTF-8）的映射**/
+    private final IdentityHashMap<Handler, byte[]> mTargets = new IdentityHashMap<Handler, byte[]>();
+    /**按目标名字暂存的重放消息，保持日志中的顺序**/
+    private final LinkedHashMap<String, List<Pending>> mOrphans =
+            new LinkedHashMap<String, List<Pending>>();
+
+    private MessageJournal(MessageQueue queue, File file, MessageCodec codec) {
+        mQueue = queue;
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mCodec = codec;
+    }
+
+    /**
+     * 打开（或者创建）日志文件，重放其中的记录并立即压缩。
+     */
+    static MessageJournal open(MessageQueue queue, File file, MessageCodec codec)
+            throws IOException {
+        final MessageJournal journal = new MessageJournal(queue, file, codec);
+        synchronized (journal) {
+            //上次压缩后没来得及改名时file.tmp中是更新的记录
+            final LinkedHashMap<Long, Pending> live = new LinkedHashMap<Long, Pending>();
+            journal.replay(file, live);
+            journal.replay(journal.mTmpFile, live);
+            journal.adoptOrphans(live);
+            //file.tmp是这次压缩的输入，新的快照落盘并替换file之前不能覆盖它
+            final ByteBuffer snapshot = journal.snapshotLocked(new ArrayList<Message>());
+            final File target = new File(file.getPath() + ".new");
+            final int capacity = capacityFor(snapshot.limit(), DEFAULT_CAPACITY);
+            journal.switchLocked(allocate(target, capacity), target, snapshot);
+            journal.installLocked();
+            journal.mTmpFile.delete();
+            journal.mSpareCapacity = capacity;
+            journal.mCommitTask = committer().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    journal.commit();
+                }
+            }, COMMIT_INTERVAL_MILLIS, COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            journal.scheduleSpareLocked();
+        }
+        return journal;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor committer() {
+        if (sCommitter == null) {
+            sCommitter = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "MessageJournal-commit");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            sCommitter.setRemoveOnCancelPolicy(true);
+        }
+        return sCommitter;
+    }
+
+    /**按顺序重放file中的记录，结果累积在live中（按id）**/
+    private void replay(File file, LinkedHashMap<Long, Pending> live) throws IOException {
+        if (file.length() < FILE_HEADER_SIZE) {
+            return;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, raf.length());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt(0) == 0) {
+                //预先准备、还没有用过的file.tmp
+                return;
+            }
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring unrecognized journal " + file);
+                return;
+            }
+            final int capacity = buf.capacity();
+            int pos = FILE_HEADER_SIZE;
+            while (capacity - pos >= RECORD_HEADER_SIZE) {
+                final int length = buf.getInt(pos);
+                final int body = pos + RECORD_HEADER_SIZE;
+                if (length <= 0 || length > capacity - body) {
+                    break;
+                }
+                if (checksum(buf, body, body + length) != buf.getInt(pos + 4)) {
+                    //掉电时没有写完的记录，之后的内容都不可信
+                    Log.w(TAG, "Truncating torn record at " + pos + " in " + file);
+                    break;
+                }
+                final byte type = buf.get(body);
+                final long id = buf.getLong(body + 1);
+                mNextId = Math.max(mNextId, id + 1);
+                if (type == RECORD_ENQUEUE) {
+                    final long due = buf.getLong(body + 9);
+                    final int nameLength = buf.getShort(body + 17) & 0xffff;
+                    final int nameStart = body + 19;
+                    final int messageStart = nameStart + nameLength;
+                    //改期（以及压缩后的快照）会用同一个id再写一次ENQUEUE，以最后一次为准
+                    live.remove(id);
+                    live.put(id, new Pending(id, copy(buf, nameStart, nameLength), due,
+                            copy(buf, messageStart, body + length - messageStart)));
+                } else if (type == RECORD_REMOVE) {
+                    live.remove(id);
+                }
+                pos = body + length;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**把重放得到的消息按目标名字暂存**/
+    private void adoptOrphans(LinkedHashMap<Long, Pending> live) {
+        for (Pending p : live.values()) {
+            final String name = new String(p.target, StandardCharsets.UTF_8);
+            List<Pending> list = mOrphans.get(name);
+            if (list == null) {
+                list = new ArrayList<Pending>();
+                mOrphans.put(name, list);
+            }
+            list.add(p);
+        }
+    }
+
+    /**
+     * 登记一个目标Handler，之后发给它的消息都会被记录。
+     * @return 重放得到的、属于这个名字的消息，由调用者放回队列
+     */
+    synchronized List<Pending> register(Handler handler, String name) {
+        for (byte[] existing : mTargets.values()) {
+            if (new String(existing, StandardCharsets.UTF_8).equals(name)) {
+                throw new IllegalStateException("Journal target " + name + " already registered");
+            }
+        }
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+            throw new IllegalArgumentException("Journal target name is too long");
+        }
+        mTargets.put(handler, bytes);
+        final List<Pending> pending = mOrphans.remove(name);
+        return pending != null ? pending : new ArrayList<Pending>(0);
+    }
+
+    /**解码一个重放的消息**/
+    Message decode(Pending pending) {
+        return mCodec.decode(ByteBuffer.wrap(pending.message));
+    }
+
+    /**
+     * 持有队列锁时调用：msg刚刚进入消息存储。目标没有登记或者消息不能编码时不记录。
+     */
+    synchronized void appendEnqueue(Message msg) {
+        if (mClosed || msg.callback != null || msg.replyTo != null) {
+            return;
+        }
+        final byte[] name = mTargets.get(msg.target);
+        if (name == null) {
+            return;
+        }
+        if (msg.journalId == 0) {
+            msg.journalId = mNextId++;
+        }
+        if (mStale) {
+            //补做压缩时从队列中收集到它
+            return;
+        }
+        final long due = System.currentTimeMillis() + (msg.when - SystemClock.uptimeMillis());
+        try {
+            mBuffer.position(mWritePos);
+            putEnqueue(mBuffer, msg.journalId, due, name, msg, null);
+            mWritePos = mBuffer.position();
+        } catch (BufferOverflowException e) {
+            //写满了：换用新文件，新文件中已经包含这条消息
+            compactLocked(mQueue.collectJournaledLocked(msg));
+        } catch (IllegalArgumentException e) {
+            //obj或者data中有codec不支持的类型
+            Log.w(TAG, "Not journaling " + msg + ": " + e.getMessage());
+            msg.journalId = 0;
+            return;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * 持有队列锁时调用：一个被记录过的消息被删除，或者交给了looper。
+     */
+    synchronized void appendRemove(long id) {
+        if (mClosed || mStale) {
+            return;
+        }
+        try {
+            mBuffer.position(mWritePos);
+            putRemove(mBuffer, id);
+            mWritePos = mBuffer.position();
+        } catch (BufferOverflowException e) {
+            //压缩后的新文件里本来就没有这条消息
+            compactLocked(mQueue.collectJournaledLocked(null));
+        }
+        mDirty = true;
+    }
+
+    /**
+     * 从buf的position开始写一条ENQUEUE记录，写完后position在记录末尾。放不下时抛出
+     * BufferOverflowException，此时记录的长度仍是0，重放时会在这里结束。
+     */
+    private void putEnqueue(ByteBuffer buf, long id, long due, byte[] name,
+            Message msg, byte[] encoded) {
+        final int start = buf.position();
+        final int need = RECORD_HEADER_SIZE + 19 + name.length
+                + (encoded != null ? encoded.length : MessageCodec.HEADER_SIZE);
+        if (buf.limit() - start < need) {
+            throw new BufferOverflowException();
+        }
+        buf.position(start + RECORD_HEADER_SIZE);
+        buf.put(RECORD_ENQUEUE);
+        buf.putLong(id);
+        buf.putLong(due);
+        buf.putShort((short) name.length);
+        buf.put(name);
+        if (encoded != null) {
+            buf.put(encoded);
+        } else {
+            //直接编码进映射内存，没有中间拷贝
+            mCodec.encode(msg, buf);
+        }
+        finishRecord(buf, start, buf.position());
+    }
+
+    private void putRemove(ByteBuffer buf, long id) {
+        final int start = buf.position();
+        if (buf.limit() - start < RECORD_HEADER_SIZE + 9) {
+            throw new BufferOverflowException();
+        }
+        buf.position(start + RECORD_HEADER_SIZE);
+        buf.put(RECORD_REMOVE);
+        buf.putLong(id);
+        finishRecord(buf, start, buf.position());
+    }
+
+    /**先写校验和，最后写长度，长度非0的记录才会被重放**/
+    private static void finishRecord(ByteBuffer buf, int start, int end) {
+        final int body = start + RECORD_HEADER_SIZE;
+        buf.putInt(start + 4, checksum(buf, body, end));
+        buf.putInt(start, end - body);
+    }
+
+    /**
+     * 映射区写满时调用，持有队列锁：把仍然有效的消息（live与还没有认领的重放消息）写入预先准备好的file.tmp
+     * 并换用它，落盘和改名交给提交线程。file.tmp不可用时不在锁内创建文件，而是暂停记录。
+     */
+    private void compactLocked(List<Message> live) {
+        final Segment spare = mSpare;
+        if (spare == null) {
+            deferLocked(0);
+            return;
+        }
+        final ByteBuffer snapshot = snapshotLocked(live);
+        if (snapshot.limit() > spare.buffer.capacity()) {
+            deferLocked(snapshot.limit());
+            return;
+        }
+        mSpare = null;
+        mStale = false;
+        switchLocked(spare, mTmpFile, snapshot);
+        //有效数据超过一半时下一个文件加倍，免得很快又要压缩
+        mSpareCapacity = capacityFor(snapshot.limit(), mCapacity);
+        final MappedByteBuffer installed = mBuffer;
+        committer().execute(new Runnable() {
+            @Override
+            public void run() {
+                install(installed);
+            }
+        });
+    }
+
+    /**暂停记录，让提交线程准备至少能容纳need字节有效数据的file.tmp，然后补做压缩**/
+    private void deferLocked(int need) {
+        mStale = true;
+        mSpareCapacity = capacityFor(need, mSpareCapacity);
+        if (mCompactFile == null) {
+            //否则上一次压缩改名以后再准备
+            scheduleSpareLocked();
+        }
+    }
+
+    /**换用segment继续追加，它的内容从snapshot开始；file在落盘后改名替换mFile**/
+    private void switchLocked(Segment segment, File file, ByteBuffer snapshot) {
+        final MappedByteBuffer buf = segment.buffer;
+        buf.clear();
+        buf.put(snapshot);
+        mRetiredRaf = mRaf;
+        mCompactFile = file;
+        mRaf = segment.raf;
+        mBuffer = buf;
+        mCapacity = buf.capacity();
+        mWritePos = buf.position();
+    }
+
+    /**有效数据不超过一半的容量，不小于current和{@link #DEFAULT_CAPACITY}**/
+    private static int capacityFor(int size, int current) {
+        int capacity = Math.max(current, DEFAULT_CAPACITY);
+        while (size > capacity / 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**创建（或者截断）file，分配capacity字节并映射，内容全是0**/
+    private static Segment allocate(File file, int capacity) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean done = false;
+        try {
+            raf.setLength(0);
+            raf.setLength(capacity);
+            final MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, capacity);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            done = true;
+            return new Segment(raf, buf);
+        } finally {
+            if (!done) {
+                raf.close();
+            }
+        }
+    }
+
+    private void scheduleSpareLocked() {
+        if (mSpareScheduled || mClosed) {
+            return;
+        }
+        mSpareScheduled = true;
+        committer().execute(new Runnable() {
+            @Override
+            public void run() {
+                prepareSpare();
+            }
+        });
+    }
+
+    /**
+     * 提交线程调用：在锁外创建并映射下一个file.tmp。暂停了记录的话，准备好以后补做压缩。
+     */
+    private void prepareSpare() {
+        final Segment old;
+        final int capacity;
+        synchronized (this) {
+            mSpareScheduled = false;
+            if (mClosed || mCompactFile != null
+                    || (mSpare != null && mSpare.buffer.capacity() >= mSpareCapacity)) {
+                return;
+            }
+            //旧的file.tmp太小，先取下来，下面会截断同一个文件
+            old = mSpare;
+            mSpare = null;
+            capacity = mSpareCapacity;
+        }
+        closeQuietly(old);
+        final Segment spare;
+        try {
+            spare = allocate(mTmpFile, capacity);
+            //预先把页面读进来，写入快照时少一些缺页
+            spare.buffer.load();
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!mClosed) {
+                    fail(e);
+                }
+            }
+            return;
+        }
+        final boolean stale;
+        synchronized (this) {
+            if (mClosed || mCompactFile != null) {
+                stale = false;
+                closeQuietly(spare);
+            } else {
+                mSpare = spare;
+                stale = mStale;
+            }
+        }
+        if (stale) {
+            //锁顺序先队列后日志
+            synchronized (mQueue) {
+                synchronized (this) {
+                    if (!mClosed && mStale) {
+                        compactLocked(mQueue.collectJournaledLocked(null));
+                        mDirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Segment segment) {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close journal segment", e);
+        }
+    }
+
+    /**在堆内存中编码文件头和有效消息，按需要翻倍缓冲区，返回的buffer可以直接读取**/
+    private ByteBuffer snapshotLocked(List<Message> live) {
+        //写满时有效数据可能比已经写入的还多一条，留出余量，免得整个重新编码一次
+        int size = Math.max(mWritePos + (mWritePos >> 3), 4096);
+        for (;;) {
+            final ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                buf.putInt(MAGIC);
+                buf.putInt(FORMAT_VERSION);
+                writeLive(buf, live);
+                buf.flip();
+                return buf;
+            } catch (BufferOverflowException e) {
+                size <<= 1;
+            }
+        }
+    }
+
+    private void writeLive(ByteBuffer buf, List<Message> live) {
+        for (List<Pending> list : mOrphans.values()) {
+            for (Pending p : list) {
+                putEnqueue(buf, p.id, p.dueWallMillis, p.target, null, p.message);
+            }
+        }
+        final long nowWall = System.currentTimeMillis();
+        final long nowUptime = SystemClock.uptimeMillis();
+        for (Message msg : live) {
+            final int start = buf.position();
+            try {
+                putEnqueue(buf, msg.journalId, nowWall + (msg.when - nowUptime),
+                        mTargets.get(msg.target), msg, null);
+            } catch (IllegalArgumentException e) {
+                //obj或者data中有codec不支持的类型（暂停记录期间入队的消息到这里才编码），长度还是0，覆盖掉
+                Log.w(TAG, "Not journaling " + msg + ": " + e.getMessage());
+                msg.journalId = 0;
+                buf.position(start);
+            }
+        }
+    }
+
+    /**提交线程调用：在锁外让压缩得到的新文件落盘，再替换旧文件**/
+    private void install(MappedByteBuffer buf) {
+        buf.force();
+        synchronized (this) {
+            if (mClosed || mCompactFile == null || mBuffer != buf) {
+                //已经在锁内完成，或者日志已经关闭
+                return;
+            }
+            try {
+                renameLocked();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            //file.tmp已经改名，可以准备下一个
+            scheduleSpareLocked();
+        }
+    }
+
+    /**在锁内让新文件落盘并替换旧文件**/
+    private void installLocked() throws IOException {
+        mBuffer.force();
+        renameLocked();
+    }
+
+    private void renameLocked() throws IOException {
+        if (!mCompactFile.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mCompactFile = null;
+        if (mRetiredRaf != null) {
+            mRetiredRaf.close();
+            mRetiredRaf = null;
+        }
+    }
+
+    /**提交线程调用：有新记录时刷盘。force()在锁外执行，不阻塞追加**/
+    void commit() {
+        final MappedByteBuffer buf;
+        synchronized (this) {
+            if (!mDirty || mClosed) {
+                return;
+            }
+            mDirty = false;
+            buf = mBuffer;
+        }
+        buf.force();
+    }
+
+    /**立即刷盘**/
+    void sync() {
+        final MappedByteBuffer buf;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mDirty = false;
+            buf = mBuffer;
+        }
+        buf.force();
+    }
+
+    /**队列废弃时调用：最后刷一次盘并关闭文件，未处理的消息留在日志中，下次打开时重放**/
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mCommitTask.cancel(false);
+        try {
+            if (mCompactFile != null) {
+                installLocked();
+            } else {
+                mBuffer.force();
+            }
+            mRaf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + mFile, e);
+        }
+        closeQuietly(mSpare);
+        mSpare = null;
+    }
+
+    private void fail(IOException e) {
+        Log.e(TAG, "Journal " + mFile + " failed, no longer recording", e);
+        mClosed = true;
+        mCommitTask.cancel(false);
+    }
+
+    private static byte[] copy(ByteBuffer buf, int offset, int length) {
+        final byte[] bytes = new byte[length];
+        //duplicate()不影响原buffer的position，字节数组与字节序无关
+        final ByteBuffer view = buf.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**FNV-1a，用于发现没有写完的记录**/
+    private static int checksum(ByteBuffer buf, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash ^= buf.get(i) & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -18,8 +18,16 @@ package android.os;
 
 import android.util.Log;
 import android.util.Printer;
+import android.util.SparseArray;
+import java.io.File;
+import java.io.IOException;
 
+import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 用于保存{@link Looper}发出的消息列表的低等级类。消息并不直接添加到MessageQueue
@@ -30,25 +38,155 @@ import java.util.ArrayList;
  *  </p>
  */
 public final class MessageQueue {
+    /**
+     * 按投递顺序排列的链表存储（默认）。入队需要遍历查找位置，复杂度O(n)。
+     * @see Config#setStoreType(int)
+     */
+    public static final int STORE_LIST = 0;
+
+    /**
+     * 以(when, 入队顺序)为键的4叉小顶堆存储。入队与移除均为O(log n)，适合存在大量延时消息的队列。
+     * @see Config#setStoreType(int)
+     */
+    public static final int STORE_HEAP = 1;
+
+    /**
+     * 使用native层的epoll + eventfd阻塞与唤醒（默认），只能运行在Android上。
+     * @see Config#setPollerType(int)
+     */
+    public static final int POLLER_NATIVE = 0;
+
+    /**
+     * 使用{@link java.util.concurrent.locks.LockSupport}阻塞与唤醒，可运行在普通JVM上。
+     * @see Config#setPollerType(int)
+     */
+    public static final int POLLER_PARKING = 1;
+
+    /**
+     * 使用NIO {@link java.nio.channels.Selector}阻塞与唤醒，可运行在普通JVM上，并支持通过
+     * {@link #setOnChannelEventListener}在looper线程上监听channel事件。
+     * @see Config#setPollerType(int)
+     */
+    public static final int POLLER_SELECTOR = 2;
+
+    /**
+     * 队列已满时拒绝新消息，send/post返回false。
+     * @see Config#setOverflowPolicy(int, long)
+     */
+    public static final int OVERFLOW_REJECT = 0;
+
+    /**
+     * 队列已满时发送线程阻塞等待，直到有空位、超时（按拒绝处理）或者队列退出。looper线程自己发送时
+     * 不能等待，按拒绝处理。
+     * <p>
+     * 等待使用队列锁上的Object.wait()。Java 21到23上，虚拟线程在synchronized中wait()会钉住（pin）它的
+     * carrier线程，整个等待期间carrier不能运行其他虚拟线程，调度器只能临时补充有限个carrier；Java 24起
+     * 不再钉住。大量虚拟线程向容量有限的队列发送时，应当设置等待超时，或者使用其他溢出策略。
+     * </p>
+     * @see Config#setOverflowPolicy(int, long)
+     */
+    public static final int OVERFLOW_BLOCK = 1;
+
+    /**
+     * 队列已满时丢弃最早到期的待处理消息（目标Handler超出限额时只丢弃它自己的消息），为新消息腾出位置。
+     * @see Config#setOverflowPolicy(int, long)
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
+    /**
+     * 队列已满时丢弃新消息。如果队列中已有一个同键（参考{@link Handler#sendMessageAtTimeCoalesced}）的
+     * 待处理消息，新消息视为与它合并，send/post返回true；否则返回false。
+     * @see Config#setOverflowPolicy(int, long)
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 3;
+
     /**是否允许消息队列退出**/
     private final boolean mQuitAllowed;
 
     @SuppressWarnings("unused")
-    /**用于本地代码**/
+    /**用于本地代码，仅在使用{@link #POLLER_NATIVE}时非0**/
     private long mPtr; // used by native code
 
-    /**消息队列的首部Message**/
-    Message mMessages;
-    /**IdleHandler列表**/
-    private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
-    /**保存等待处理的IdleHandler（闲时任务）**/
-    private IdleHandler[] mPendingIdleHandlers;
-    /**队列正在退出，等待执行{@link #dispose()}**/
-    private boolean mQuitting;
+    /**阻塞/唤醒后端，{@link #dispose()}之后为null**/
+    private Poller mPoller;
+
+    /**保存所有待处理的消息（包括同步障碍器），取代原来以mMessages为首部的链表**/
+    private final MessageStore mStore;
+    /**按(target, what)与(target, callback)索引待处理消息，供removeMessages/hasMessages系列方法使用**/
+    private final MessageIndex mIndex = new MessageIndex();
+    /**下一个普通入队消息的序号，when相同时按序号先后投递**/
+    private long mNextSeq;
+    /**下一个when为0（插入队首）的消息序号，递减使得后插入的排在更前面**/
+    private long mNextFrontSeq = -1;
+    /**IdleHandler与IdleTask（闲时任务）的调度器**/
+    private final IdleScheduler mIdleScheduler = new IdleScheduler(this);
+    /**队列正在退出，等待执行{@link #dispose()}。无锁入队时需要在锁外读取，因此是volatile的**/
+    private volatile boolean mQuitting;
 
     // Indicates whether next() is blocked waiting in pollOnce() with a non-zero timeout.
-    /**next()方法是否阻塞，并在非0的超时时间后进入pollOnce()方法**/
-    private boolean mBlocked;
+    /**next()方法是否阻塞，并在非0的超时时间后进入pollOnce()方法。无锁入队时需要在锁外读取**/
+    private volatile boolean mBlocked;
+
+    /**
+     * 无锁入队的暂存栈（CAS链栈，通过Message.next连接），为null表示未开启无锁入队。
+     * 生产者线程只做一次CAS入栈；looper线程在持锁时把它整体取下并按入栈顺序并入mStore。
+     * @see Config#setLockFreeEnqueue(boolean)
+     */
+    private final AtomicReference<Message> mIngress;
+    /**
+     * 退出时压入暂存栈的哨兵：之后入栈的CAS都会失败，生产者自己回收消息并返回false，
+     * 所以无锁入队返回true的消息一定在退出之前并入了消息存储。
+     */
+    private static final Message INGRESS_CLOSED = new Message();
+
+    /**批次中等待分发的消息：已经移出mStore，仍在mIndex中，可以被remove系列方法取消**/
+    private static final int BATCH_PENDING = 1;
+    /**批次中已被looper认领（正在或已经分发）的消息：仍在mIndex中，但对查询和删除不可见**/
+    private static final int BATCH_CLAIMED = 2;
+    /**批次中已被取消的消息：已经移出mIndex，等待回收**/
+    private static final int BATCH_CANCELLED = 3;
+    private static final AtomicIntegerFieldUpdater<Message> sBatchState =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "batchState");
+
+    /**
+     * 最近一次{@link #nextBatch(int)}取出的消息，在looper线程下一次进入next()/nextBatch()时结算。
+     * 数组与mBatchCount guarded by this；mBatchPos只由looper线程访问。
+     */
+    private Message[] mBatch;
+    private int mBatchCount;
+    /**当前批次中没有被取消的消息个数（未认领的和已认领的），结算批次时清零，guarded by this**/
+    private int mBatchLive;
+    private int mBatchPos;
+
+    /**消息存储中消息个数的峰值，guarded by this**/
+    private int mPeakDepth;
+
+    /**队列的消息个数上限、每个目标Handler的消息个数上限，0表示不限**/
+    private final int mCapacity;
+    private final int mTargetCapacity;
+    private final int mOverflowPolicy;
+    private final long mOverflowTimeoutMillis;
+    /**因队列已满被拒绝、被丢弃的消息个数，持锁写入**/
+    private volatile long mRejectedCount;
+    private volatile long mDroppedCount;
+    /**因队列已满在wait()中等待的发送线程个数，guarded by this**/
+    private int mCapacityWaiters;
+
+    /**持久化日志，没有开启时为null。追加时持有队列锁，锁顺序总是先队列后日志**/
+    private final MessageJournal mJournal;
+
+    /**admitLocked()的结果：放入新消息**/
+    private static final int ADMIT = 0;
+    /**不放入新消息，send返回false**/
+    private static final int ADMIT_REFUSED = 1;
+    /**不放入新消息，但队列中有同键的消息，send返回true**/
+    private static final int ADMIT_ABSORBED = 2;
+
+    /**超过截止时间的消息个数，持有mDeadlineMissLock写入**/
+    private volatile long mDeadlineMisses;
+    /**分区分发时多个执行器线程会同时报告超时，计数和回调都在这个锁内串行执行**/
+    private final Object mDeadlineMissLock = new Object();
+    private volatile OnDeadlineMissListener mDeadlineMissListener;
 
     /**
      * 下一个障碍器的token。
@@ -56,12 +194,238 @@ public final class MessageQueue {
      */
     private int mNextBarrierToken;
 
+    /**token到同步障碍器的索引，移除障碍器时不需要遍历消息存储，guarded by this**/
+    private final SparseArray<SyncBarrier> mBarriers = new SparseArray<SyncBarrier>();
+    /**
+     * 最近超时移除的障碍器token，只保留最后{@link #EXPIRED_BARRIER_HISTORY}个，让之后的removeSyncBarrier()
+     * 能认出它们而不抛出异常。过期的障碍器不留在mBarriers中，否则泄漏的障碍器会让索引无限增长。guarded by this
+     */
+    private final int[] mExpiredBarriers = new int[EXPIRED_BARRIER_HISTORY];
+    /**mExpiredBarriers中有效的个数，以及下一个写入的位置（环形）**/
+    private int mExpiredBarrierCount;
+    private int mExpiredBarrierPos;
+    private static final int EXPIRED_BARRIER_HISTORY = 64;
+    private volatile OnSyncBarrierReleasedListener mSyncBarrierListener;
+
+    /**一个同步障碍器的记录，保存在障碍器消息的obj中**/
+    private static final class SyncBarrier {
+        final int token;
+        /**超过这个时刻自动移除，0表示不会过期**/
+        final long expireAt;
+        /**障碍器消息，过期后为null**/
+        Message msg;
+        /**looper第一次发现它位于队首并已生效的时刻，0表示还没有挡住过消息**/
+        long blockingSince;
+        /**超时移除时统计的阻挡时长与被挡消息个数，在锁外报告**/
+        long blockedMillis;
+        int blockedMessages;
+        /**next()中一次过期多个时串成链，在锁外逐个报告**/
+        SyncBarrier nextExpired;
+
+        SyncBarrier(int token, long expireAt) {
+            this.token = token;
+            this.expireAt = expireAt;
+        }
+    }
+
     private native static long nativeInit();
     private native static void nativeDestroy(long ptr);
     private native static void nativePollOnce(long ptr, int timeoutMillis);
     private native static void nativeWake(long ptr);
     private native static boolean nativeIsIdling(long ptr);
 
+    /**
+     * 创建{@link Looper}时用于定制其消息队列的配置，通过{@link Looper#prepare(Config)}传入。
+     * 配置在队列创建后即失去作用，修改它不会影响已创建的队列。
+     */
+    public static final class Config {
+        int mStoreType = STORE_LIST;
+        boolean mLockFreeEnqueue;
+        int mPollerType = POLLER_NATIVE;
+        int[] mLaneWeights;
+        boolean mEarliestDeadlineFirst;
+        int mCapacity;
+        int mTargetCapacity;
+        int mOverflowPolicy = OVERFLOW_REJECT;
+        long mOverflowTimeoutMillis;
+        File mJournalFile;
+        MessageCodec mJournalCodec;
+
+        /**
+         * 设置待处理消息的存储结构。
+         * @param storeType {@link #STORE_LIST}或者{@link #STORE_HEAP}
+         */
+        public Config setStoreType(int storeType) {
+            if (storeType != STORE_LIST && storeType != STORE_HEAP) {
+                throw new IllegalArgumentException("Unknown store type: " + storeType);
+            }
+            mStoreType = storeType;
+            return this;
+        }
+
+        /**
+         * 是否开启无锁入队。开启后，其他线程的{@link Handler#sendMessageAtTime}不再竞争队列对象锁，
+         * 只在一个暂存栈上执行CAS，由looper线程在{@link #next()}中批量并入待处理消息。
+         * 适合多个线程频繁向同一个Looper发消息的场景。
+         */
+        public Config setLockFreeEnqueue(boolean enabled) {
+            mLockFreeEnqueue = enabled;
+            return this;
+        }
+
+        /**
+         * 设置looper线程的阻塞/唤醒后端。
+         * @param pollerType {@link #POLLER_NATIVE}、{@link #POLLER_PARKING}或者{@link #POLLER_SELECTOR}
+         */
+        public Config setPollerType(int pollerType) {
+            if (pollerType != POLLER_NATIVE && pollerType != POLLER_PARKING
+                    && pollerType != POLLER_SELECTOR) {
+                throw new IllegalArgumentException("Unknown poller type: " + pollerType);
+            }
+            mPollerType = pollerType;
+            return this;
+        }
+
+        /**
+         * 开启优先级通道。每个优先级（{@link Message#setPriority}）一条按时间排序的通道，looper在已经到期的
+         * 通道之间按权重挑选下一个消息：权重越大分到的投递机会越多，权重为0的通道严格优先。
+         * postAtFrontOfQueue只会插到自己通道的队首，不再能饿死其他通道的消息。
+         *
+         * <pre>
+         *  //输入严格优先，绘制、普通、后台工作按8:4:1分配
+         *  config.setPriorityLanes(0, 8, 4, 1);
+         * </pre>
+         *
+         * @param weights 按优先级从高到低排列的通道权重，长度即通道个数；不传任何参数表示关闭
+         */
+        public Config setPriorityLanes(int... weights) {
+            for (int weight : weights) {
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Lane weight must not be negative: " + weight);
+                }
+            }
+            mLaneWeights = weights.length > 0 ? weights.clone() : null;
+            return this;
+        }
+
+        /**
+         * 是否按截止时间调度。开启后，已经到期的消息按{@link Message#setDeadline 截止时间}从早到晚投递，
+         * 截止时间相同或者都没有截止时间的消息仍按when和发送顺序投递；没有截止时间的消息排在最后。
+         * 同步障碍器照常生效。不能与{@link #setPriorityLanes}同时使用。
+         */
+        public Config setEarliestDeadlineFirst(boolean enabled) {
+            mEarliestDeadlineFirst = enabled;
+            return this;
+        }
+
+        /**
+         * 限制待处理消息的个数，超出时按{@link #setOverflowPolicy 溢出策略}处理，防止慢的looper被快的发送者
+         * 撑爆内存。同步障碍器不计入也不受限制；looper已经取出分发的消息不计入，但批量分发时当前批次中的
+         * 消息在整个批次分发完之前都计入，发送线程也在那时才被唤醒。设置了任何一个限制时不使用无锁入队，因为检查容量需要持锁。
+         *
+         * @param queueCapacity 整个队列的上限，0表示不限
+         * @param targetCapacity 每个目标Handler的上限，0表示不限
+         */
+        public Config setCapacity(int queueCapacity, int targetCapacity) {
+            if (queueCapacity < 0 || targetCapacity < 0) {
+                throw new IllegalArgumentException("Capacity must not be negative");
+            }
+            mCapacity = queueCapacity;
+            mTargetCapacity = targetCapacity;
+            return this;
+        }
+
+        /**
+         * 设置超出{@link #setCapacity 容量}时的处理方式，默认是{@link #OVERFLOW_REJECT}。
+         *
+         * @param policy {@link #OVERFLOW_REJECT}、{@link #OVERFLOW_BLOCK}、{@link #OVERFLOW_DROP_OLDEST}
+         *  或者{@link #OVERFLOW_DROP_NEWEST}
+         * @param blockTimeoutMillis {@link #OVERFLOW_BLOCK}时最多等待的毫秒数，0表示一直等待；其他策略忽略
+         */
+        public Config setOverflowPolicy(int policy, long blockTimeoutMillis) {
+            if (policy < OVERFLOW_REJECT || policy > OVERFLOW_DROP_NEWEST) {
+                throw new IllegalArgumentException("Unknown overflow policy: " + policy);
+            }
+            if (blockTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Timeout must not be negative");
+            }
+            mOverflowPolicy = policy;
+            mOverflowTimeoutMillis = blockTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * 开启持久化：发给{@link MessageQueue#registerJournalTarget 登记过的Handler}、能被codec编码的消息
+         * 会记录在内存映射的预写日志文件中，进程重启后用同一个文件创建队列时，还没有处理的消息会在目标
+         * Handler重新登记时放回队列。适合跨重启也不能丢的重试、超时类延时消息。
+         *
+         * <p>
+         *     消息交给looper时即记为已处理，所以重启后不会重复投递，但处理到一半时崩溃的消息会丢失。
+         *     日志每100毫秒批量刷盘一次，掉电时最多丢失最近100毫秒内的记录，需要立即落盘时调用
+         *     {@link MessageQueue#syncJournal()}。开启后不使用无锁入队。
+         * </p>
+         *
+         * @param file 日志文件，同一时刻只能被一个队列使用；压缩时还会用到同一目录下的file.tmp和file.new
+         * @param codec 编码消息的codec，自定义obj类型需要在重启后重新注册
+         */
+        public Config setJournal(File file, MessageCodec codec) {
+            if (file == null || codec == null) {
+                throw new IllegalArgumentException("Journal file and codec must not be null");
+            }
+            mJournalFile = file;
+            mJournalCodec = codec;
+            return this;
+        }
+    }
+
+    /**
+     * 监听channel就绪事件的回调，在looper线程上执行。
+     * @see #setOnChannelEventListener
+     */
+    public interface OnChannelEventListener {
+        /**
+         * @param channel 就绪的channel
+         * @param readyOps 就绪的事件，参考{@link java.nio.channels.SelectionKey}
+         * @return 之后继续监听的事件，返回0则不再监听
+         */
+        int onChannelEvents(SelectableChannel channel, int readyOps);
+    }
+
+    /**
+     * 消息处理完时已经超过{@link Message#setDeadline 截止时间}的回调，在looper线程上执行；分区分发时在执行器的
+     * 线程上执行，但不会被同时调用。
+     * @see #setOnDeadlineMissListener
+     */
+    public interface OnDeadlineMissListener {
+        /**
+         * @param msg 超时的消息，回调返回后即被回收，不要持有
+         * @param lateMillis 处理完的时刻比截止时间晚了多少毫秒
+         */
+        void onDeadlineMissed(Message msg, long lateMillis);
+    }
+
+    /**
+     * 同步障碍器被移除（或者超时自动移除）时的回调，用于统计障碍器的影响和发现泄漏的障碍器。
+     * 在移除障碍器的线程上、不持有队列锁时执行；超时移除在looper线程上执行。
+     * @see #setOnSyncBarrierReleasedListener
+     */
+    public interface OnSyncBarrierReleasedListener {
+        /**
+         * @param token 障碍器的token
+         * @param blockedMillis 障碍器位于队首、挡住同步消息的时长，没有挡住过时为0
+         * @param blockedMessages 移除时被它挡住的已到期同步消息个数
+         * @param expired 是否因为超时被自动移除，通常说明调用者忘记了移除它
+         */
+        void onSyncBarrierReleased(int token, long blockedMillis, int blockedMessages,
+                boolean expired);
+    }
+
+    /**
+     * 闲时任务的默认优先级
+     * @see #addIdleHandler(IdleHandler, int)
+     */
+    public static final int IDLE_PRIORITY_DEFAULT = 0;
+
     /**
      * 回调接口，当线程准备阻塞以等待更多的消息时调用。
      * 开发者可以实现自己的IdleHandler类，然后通过{@link #addIdleHandler}方法将其添加到MessageQueue
@@ -89,12 +453,20 @@ public final class MessageQueue {
      * @param handler 待添加的IdleHandler对象
      */
     public void addIdleHandler(IdleHandler handler) {
+        addIdleHandler(handler, IDLE_PRIORITY_DEFAULT);
+    }
+
+    /**
+     * 以指定的优先级添加{@link IdleHandler}。每个空闲期按优先级从小到大执行，优先级相同的按添加顺序执行。
+     *
+     * @param handler 待添加的IdleHandler对象
+     * @param priority 优先级，数值越小越先执行，默认为{@link #IDLE_PRIORITY_DEFAULT}
+     */
+    public void addIdleHandler(IdleHandler handler, int priority) {
         if (handler == null) {
             throw new NullPointerException("Can't add a null IdleHandler");
         }
-        synchronized (this) {//针对mIdleHandlers的增删加锁
-            mIdleHandlers.add(handler);
-        }
+        mIdleScheduler.add(handler, null, priority);
     }
 
     /**
@@ -104,15 +476,163 @@ public final class MessageQueue {
      * @param handler 需要删除的IdleHandler对象
      */
     public void removeIdleHandler(IdleHandler handler) {
+        mIdleScheduler.remove(handler, null);
+    }
+
+    /**
+     * 可以分多次完成的闲时任务。每次调用处理一个时间片，在给定的截止时刻之前返回，剩下的工作等下一个
+     * 时间片继续。与{@link IdleHandler}一样在looper线程上执行。
+     */
+    public static interface IdleTask {
+        /**
+         * @param deadlineUptimeMillis 本时间片的截止时刻（{@link SystemClock#uptimeMillis}），到了这个
+         *  时刻有消息需要处理或者本次空闲期的预算用完；没有限制时为Long.MAX_VALUE
+         * @return <em>true</em> 还有剩余工作，之后继续执行；<em>false</em> 已经完成，删除这个任务
+         */
+        boolean runIdleSlice(long deadlineUptimeMillis);
+    }
+
+    /**
+     * 添加一个分时间片执行的闲时任务。优先级与{@link #addIdleHandler(IdleHandler, int)}相同。
+     * <p>在任何线程调用这个方法都是安全的。
+     */
+    public void addIdleTask(IdleTask task, int priority) {
+        if (task == null) {
+            throw new NullPointerException("Can't add a null IdleTask");
+        }
+        mIdleScheduler.add(null, task, priority);
+    }
+
+    /**
+     * 删除一个使用{@link #addIdleTask}添加的任务，不存在时不做任何处理。
+     */
+    public void removeIdleTask(IdleTask task) {
+        mIdleScheduler.remove(null, task);
+    }
+
+    /**
+     * 设置每个空闲期执行闲时任务的预算。预算用完后剩下的任务等到下一个空闲期（下一次处理完消息后变为空闲）
+     * 再执行；预算还有剩余时，没有做完的{@link IdleTask}会在同一个空闲期内继续执行下一个时间片。
+     * 无论是否设置预算，一旦有消息到期都会在当前任务返回后停止执行闲时任务。
+     *
+     * @param budgetMillis 预算毫秒数，0表示不限（默认），每个IdleHandler/IdleTask每个空闲期执行一次
+     */
+    public void setIdleBudget(long budgetMillis) {
+        mIdleScheduler.setBudget(budgetMillis);
+    }
+
+    /**
+     * @return 每个空闲期执行闲时任务的预算，0表示不限
+     */
+    public long getIdleBudget() {
+        return mIdleScheduler.getBudget();
+    }
+
+    /**
+     * 闲时任务的截止时刻：本次空闲期的预算用完或者下一个可投递消息到期，二者取早者。
+     * 返回值不大于now时应当停止执行闲时任务。
+     *
+     * @param periodEnd 本次空闲期预算用完的时刻
+     */
+    long idleDeadline(long now, long periodEnd) {
+        if (periodEnd <= now) {
+            return now;
+        }
         synchronized (this) {
-            mIdleHandlers.remove(handler);
+            //无锁入队的消息尚未并入存储，无法知道它的执行时刻，按已到期处理
+            if (mQuitting || hasIngress()) {
+                return now;
+            }
+            Message msg = mStore.peek();
+            if (msg != null && msg.target == null) {
+                //障碍器挡住了同步消息，只有异步消息可以投递
+                msg = mStore.peekAsync();
+            }
+            return msg != null ? Math.min(msg.when, periodEnd) : periodEnd;
         }
     }
 
     //构造函数
     MessageQueue(boolean quitAllowed) {
+        this(quitAllowed, null);
+    }
+
+    /**
+     * @param config 队列配置，为null时使用默认配置
+     */
+    MessageQueue(boolean quitAllowed, Config config) {
+        this(quitAllowed, config, null);
+    }
+
+    /**
+     * @param config 队列配置，为null时使用默认配置
+     * @param poller 阻塞/唤醒后端，不为null时忽略config中的后端类型，比如{@link LooperPool}中的Looper
+     */
+    MessageQueue(boolean quitAllowed, Config config, Poller poller) {
         mQuitAllowed = quitAllowed;
-        mPtr = nativeInit();
+        final int storeType = config != null ? config.mStoreType : STORE_LIST;
+        if (config != null && config.mLaneWeights != null) {
+            if (config.mEarliestDeadlineFirst) {
+                throw new IllegalArgumentException(
+                        "Priority lanes and earliest-deadline-first cannot be combined");
+            }
+            mStore = new LanedMessageStore(config.mLaneWeights, storeType);
+        } else {
+            final MessageStore store = storeType == STORE_HEAP
+                    ? new HeapMessageStore() : new LinkedMessageStore();
+            mStore = config != null && config.mEarliestDeadlineFirst
+                    ? new DeadlineMessageStore(store) : store;
+        }
+        mCapacity = config != null ? config.mCapacity : 0;
+        mTargetCapacity = config != null ? config.mTargetCapacity : 0;
+        mOverflowPolicy = config != null ? config.mOverflowPolicy : OVERFLOW_REJECT;
+        mOverflowTimeoutMillis = config != null ? config.mOverflowTimeoutMillis : 0;
+        if (config != null && config.mJournalFile != null) {
+            try {
+                mJournal = MessageJournal.open(this, config.mJournalFile, config.mJournalCodec);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to open message journal "
+                        + config.mJournalFile, e);
+            }
+        } else {
+            mJournal = null;
+        }
+        //容量检查和日志追加都需要持锁
+        mIngress = config != null && config.mLockFreeEnqueue && mCapacity == 0
+                && mTargetCapacity == 0 && mJournal == null ? new AtomicReference<Message>() : null;
+        final int pollerType = config != null ? config.mPollerType : POLLER_NATIVE;
+        if (poller != null) {
+            mPoller = poller;
+        } else if (pollerType == POLLER_PARKING) {
+            mPoller = new ParkingPoller();
+        } else if (pollerType == POLLER_SELECTOR) {
+            mPoller = new SelectorPoller();
+        } else {
+            mPoller = new NativePoller();
+        }
+    }
+
+    /**
+     * 在looper线程上监听channel的就绪事件，仅在使用{@link #POLLER_SELECTOR}时可用。
+     * 可在任意线程调用；channel会被设置为非阻塞模式。
+     *
+     * @param channel 需要监听的channel
+     * @param ops 监听的事件，参考{@link java.nio.channels.SelectionKey}；为0表示不再监听
+     * @param listener 事件回调，为null表示不再监听
+     * @exception IllegalStateException 队列没有使用{@link #POLLER_SELECTOR}
+     */
+    public void setOnChannelEventListener(SelectableChannel channel, int ops,
+            OnChannelEventListener listener) {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel must not be null");
+        }
+        synchronized (this) {
+            if (!(mPoller instanceof SelectorPoller)) {
+                throw new IllegalStateException(
+                        "Channel events require a queue created with POLLER_SELECTOR");
+            }
+            ((SelectorPoller) mPoller).setChannelListener(channel, ops, listener);
+        }
     }
 
     @Override //慎用finalize()
@@ -130,9 +650,44 @@ public final class MessageQueue {
      * 废弃当前消息队列。仅允许在当前消息队列所绑定的looper线程中或者finalizer调用。
      */
     private void dispose() {
-        if (mPtr != 0) {
-            nativeDestroy(mPtr);
-            mPtr = 0;
+        if (mPoller != null) {
+            mPoller.dispose();
+            mPoller = null;
+        }
+        if (mJournal != null) {
+            mJournal.close();
+        }
+    }
+
+    /**
+     * 原有的native阻塞后端：epoll等待，eventfd唤醒。
+     */
+    private final class NativePoller extends Poller {
+        NativePoller() {
+            mPtr = nativeInit();
+        }
+
+        @Override
+        void onPollOnce(int timeoutMillis) {
+            nativePollOnce(mPtr, timeoutMillis);
+        }
+
+        @Override
+        void onWake() {
+            nativeWake(mPtr);
+        }
+
+        @Override
+        boolean isIdling() {
+            return nativeIsIdling(mPtr);
+        }
+
+        @Override
+        void dispose() {
+            if (mPtr != 0) {
+                nativeDestroy(mPtr);
+                mPtr = 0;
+            }
         }
     }
 
@@ -142,38 +697,131 @@ public final class MessageQueue {
      * @return  <em>null</em> 消息队列已经退出或者被废弃
      */
     Message next() {
-        final long ptr = mPtr;
-        //quit()、disposed()会将mPtr置为0。
-        if (ptr == 0) {
+        return next(0, true);
+    }
+
+    /**
+     * 非阻塞版本的{@link #next()}，供没有专属线程的Looper（{@link LooperPool}）使用：没有到期消息时
+     * 把需要等待的时长交给后端的{@link Poller#pollOnce(int)}安排下一次调度，然后立即返回null。
+     * 闲时任务的执行和退出的处理与next()相同。
+     *
+     * @return 下一个待处理的消息；没有到期消息或者消息队列已经被废弃（见{@link #isDisposed()}）时返回null
+     */
+    Message poll() {
+        return next(0, false);
+    }
+
+    /**
+     * @return 消息队列已经开始退出，之后的入队都会失败。可在任意线程调用
+     */
+    boolean isQuitting() {
+        return mQuitting;
+    }
+
+    /**
+     * 退出并立即废弃队列，丢弃所有消息。用于不会再有looper取消息、因而等不到next()/poll()废弃它的情况，
+     * 比如池化Looper的分发抛出了异常。调用者保证此时looper没有在运行。
+     */
+    void quitAndDispose() {
+        synchronized (this) {
+            quit(false);
+            dispose();
+        }
+    }
+
+    /**
+     * @return 消息队列已经退出并被废弃。只在looper线程调用
+     */
+    boolean isDisposed() {
+        return mPoller == null;
+    }
+
+    /**
+     * 批量版本的{@link #next()}：阻塞到至少有一个消息可以投递，然后在同一次持锁中按投递顺序取出
+     * 当前已到期的消息（最多maxCount个）组成一个批次，之后由{@link #pollBatch()}逐个认领。
+     *
+     * <p>
+     *     批次中尚未认领的消息仍然算作在队列中：hasMessages能查到它们，remove系列方法和quit()能取消它们。
+     *     looper线程下一次调用next()/nextBatch()时结算上一个批次：回收已认领和已取消的消息，
+     *     没来得及认领的消息按原来的when和seq放回队列，因此提前结束一个批次不会改变投递顺序。
+     * </p>
+     *
+     * @param maxCount 一个批次最多包含的消息个数
+     * @return false 消息队列已经退出或者被废弃
+     */
+    boolean nextBatch(int maxCount) {
+        return next(Math.max(maxCount, 1), true) != null;
+    }
+
+    /**
+     * 认领当前批次中的下一个消息，跳过已被取消的消息。只能在looper线程上调用，不需要持锁。
+     * 认领的消息由消息队列在结算批次时回收，调用者不能回收它。
+     *
+     * @return 下一个待分发的消息，批次已经取完时返回null
+     */
+    Message pollBatch() {
+        while (mBatchPos < mBatchCount) {
+            final Message msg = mBatch[mBatchPos++];
+            if (sBatchState.compareAndSet(msg, BATCH_PENDING, BATCH_CLAIMED)) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param maxCount 批次的最大消息个数，0表示非批量模式
+     * @param mayBlock 没有到期消息时是否阻塞，false时返回null
+     */
+    private Message next(int maxCount, boolean mayBlock) {
+        final Poller poller = mPoller;
+        //quit()、disposed()会将mPoller置为null。
+        if (poller == null) {
             //应用尝试重启已经退出或者废弃的Looper，则返回null
             return null;  //出口1，非法执行next()
         }
 
-        /**等待处理的IdleHandler个数**/
-        int pendingIdleHandlerCount = -1; // -1 only during first iteration
+        /**本次next()调用是否已经执行过闲时任务**/
+        boolean idleRan = false;
+        /**在锁内超时移除的障碍器，回到循环开头时在锁外报告**/
+        SyncBarrier expired = null;
         int nextPollTimeoutMillis = 0;
         for (;;) {
+            if (expired != null) {
+                reportExpiredBarriers(expired);
+                expired = null;
+            }
             if (nextPollTimeoutMillis != 0) {
+                if (!mayBlock) {
+                    //后端不阻塞，只记下何时需要再次调度；之后的唤醒同样由后端转为调度
+                    poller.pollOnce(nextPollTimeoutMillis);
+                    return null;
+                }
                 Binder.flushPendingCommands();
             }
 
-            //nextPollTimeoutMillis为0立即返回，为-1则无限等待(必须主动唤醒)。ptr是指针，涉及本地方法不深究。
-            nativePollOnce(ptr, nextPollTimeoutMillis);
+            //nextPollTimeoutMillis为0立即返回，为-1则无限等待(必须主动唤醒)。
+            poller.pollOnce(nextPollTimeoutMillis);
             synchronized (this) {
+                //先结算上一个批次，把无锁入队的消息并入消息存储，再决定取哪个消息、阻塞多久
+                retireBatchLocked();
+                drainIngressLocked();
+
                 // Try to retrieve the next message.  Return if found.
                 //now等于自系统启动以来到此时此刻，非深度睡眠的时间
                 final long now = SystemClock.uptimeMillis();
-                Message prevMsg = null;
-                Message msg = mMessages;//队首消息
-
-                //如果当前队首的消息时设置的同步障碍器（target为null）。
-                if (msg != null && msg.target == null) {
-                    // 因为同步障碍器的原因而进入该分支，找到下一个异步消息之后才会结束while。
-                    do {
-                        prevMsg = msg;
-                        msg = msg.next;
-                    } while (msg != null && !msg.isAsynchronous());
+                Message head = mStore.peek();//队首消息
+                if (head != null && head.target == null && now >= head.when) {
+                    //队首的障碍器已经生效：过期的直接移除，否则记下它开始阻挡的时刻
+                    expired = expireBarriersLocked(now);
+                    if (expired != null) {
+                        nextPollTimeoutMillis = 0;
+                        continue;
+                    }
                 }
+                //如果队首是同步障碍器（target为null），跳过同步消息取排序最靠前的异步消息；
+                //开启优先级通道时在已到期的通道中挑选
+                Message msg = mStore.select(now);
 
                 //此时msg一定是普通消息或者null，一定不是同步障碍器
                 if (msg != null) {
@@ -182,18 +830,31 @@ public final class MessageQueue {
                         nextPollTimeoutMillis = (int) Math.min(msg.when - now, Integer.MAX_VALUE);
                     } else {//一切正常，开始取消息
                         mBlocked = false;//不阻塞线程
-                        if (prevMsg != null) { //如果跳过了队首的同步障碍器取异步消息
-                            prevMsg.next = msg.next;
-                        } else {//如果当前消息就是队首消息
-                            mMessages = msg.next;
+                        //无论是队首消息，还是跳过队首的同步障碍器取出的异步消息，都直接从存储中摘除
+                        if (maxCount > 0) {
+                            //批量模式：沿用同一个now继续取出已到期的消息，障碍器同样生效
+                            takeBatchLocked(msg, maxCount, now);
+                            return msg;
                         }
-                        msg.next = null;
+                        removeLocked(msg);
+                        msg.generation++;//交给looper之后不能再通过MessageHandle取消或者改期
                         if (false) Log.v("MessageQueue", "Returning message: " + msg);
                         return msg;  //出口2，取出下一个待处理的消息
                     }
                 } else { //消息队列为空，或者队首是SyncBarrier且队列中无异步消息
                     nextPollTimeoutMillis = -1;   //-1表示无限等待
                 }
+                //队首的障碍器会过期时，最晚在过期时刻醒来移除它
+                if (head != null && head.target == null) {
+                    final long expireAt = ((SyncBarrier) head.obj).expireAt;
+                    if (expireAt != 0) {
+                        final int untilExpiry = (int) Math.min(Math.max(expireAt - now, 0),
+                                Integer.MAX_VALUE);
+                        if (nextPollTimeoutMillis < 0 || untilExpiry < nextPollTimeoutMillis) {
+                            nextPollTimeoutMillis = untilExpiry;
+                        }
+                    }
+                }
 
                 //所有待处理的消息均处理完成， 接下来处理闲时任务
 
@@ -210,50 +871,30 @@ public final class MessageQueue {
                 // Idle handles only run if the queue is empty or if the first message
                 // in the queue (possibly a barrier) is due to be handled in the future.
                 /**
-                 * 如果消息队列第一次空闲出来，就获取等待运行的IdleHandler个数。
+                 * 如果消息队列第一次空闲出来，就执行闲时任务。
                  * IdleHandler仅在队列为空 或者 队列第一个消息（可能是障碍器）的执行时刻晚于当前时刻时才执行。
                  */
-                if (pendingIdleHandlerCount < 0  //pendingIdleHandlerCount初始值为-1
-                        && (mMessages == null || now < mMessages.when)) { //为空或者执行时刻未到
-                    pendingIdleHandlerCount = mIdleHandlers.size();
-                }
-
                 //闲时任务列表为空，或者不是第一次执行到这里
-                if (pendingIdleHandlerCount <= 0) {
+                if (idleRan || mIdleScheduler.isEmpty()
+                        || (head != null && now >= head.when)) {
                     // No idle handlers to run.  Loop and wait some more.
                     mBlocked = true;
+                    //与enqueueLockFree()配合：先写mBlocked再检查暂存栈。生产者则是先入栈再读mBlocked，
+                    //两者至少有一方能看到对方，从而不会出现消息已入栈而looper却无限阻塞的情况。
+                    if (hasIngress()) {
+                        nextPollTimeoutMillis = 0;
+                    }
                     continue; //!!!!!
                 }
-
-                if (mPendingIdleHandlers == null) {
-                    mPendingIdleHandlers = new IdleHandler[Math.max(pendingIdleHandlerCount, 4)];
-                }
-                mPendingIdleHandlers = mIdleHandlers.toArray(mPendingIdleHandlers);
             }//synchronized结束
 
             // 执行IdleHandler（可理解为：闲时任务）。
-            // 只在第一次迭代时，才能执行到这段代码段。
-            for (int i = 0; i < pendingIdleHandlerCount; i++) {
-                final IdleHandler idler = mPendingIdleHandlers[i];
-                mPendingIdleHandlers[i] = null; //待处理任务即将被处理，将其从待处理数组中删去（置空引用）
+            // 只在第一次迭代时，才能执行到这段代码段。调度器直接遍历当前的任务数组，不需要复制；
+            // 有消息到期或者预算用完时提前停止。
+            mIdleScheduler.runIdlePeriod(SystemClock.uptimeMillis());
 
-                boolean keep = false;
-                try {
-                    keep = idler.queueIdle();
-                } catch (Throwable t) {
-                    Log.wtf("MessageQueue", "IdleHandler threw exception", t);
-                }
-
-                if (!keep) {
-                    synchronized (this) {
-                        mIdleHandlers.remove(idler);
-                    }
-                }
-            }
-
-            //将待处理的IdleHandler个数设置为0，使得本次next()的调用再也不会到达这个for循环。
-            // （结束在语句if (pendingIdleHandlerCount <= 0)）
-            pendingIdleHandlerCount = 0;
+            //标记本次next()已经执行过闲时任务，使得本次next()的调用再也不会执行闲时任务。
+            idleRan = true;
 
             //因为执行了闲时任务花费了一段时间（迭代开始处的阻塞方法还未执行到所以还未阻塞），此时再根据之前
             //计算出的阻塞时长阻塞线程显然不合适。
@@ -274,6 +915,10 @@ public final class MessageQueue {
             if (mQuitting) {
                 return;
             }
+            //退出前入栈的消息按正常消息处理，之后关闭暂存栈，再入栈的消息由生产者自己回收
+            if (mIngress != null) {
+                drainIngressLocked(mIngress.getAndSet(INGRESS_CLOSED));
+            }
             mQuitting = true;
 
             if (safe) {
@@ -281,44 +926,58 @@ public final class MessageQueue {
             } else {
                 removeAllMessagesLocked();
             }
+            //因队列已满而等待的发送线程不再等待
+            signalCapacityLocked();
 
-            // We can assume mPtr != 0 because mQuitting was previously false.
-            nativeWake(mPtr);
+            // We can assume mPoller != null because mQuitting was previously false.
+            mPoller.wake();
         }
     }
 
     /**
      * 将同步障碍器加入消息队列。如果此时消息队列处于阻塞状态也不需要唤醒，因为障碍器本身的目的就是
-     * 阻碍消息队列的循环处理。
+     * 阻碍消息队列的循环处理（会过期的障碍器除外，见{@link #enqueueSyncBarrier(long, long)}）。
      * @param when 同步障碍器从何时起效（这个时间是自系统启动开始算起，到指定时间的不包含深度睡
      *             眠的毫秒数）。
      * @return  新增的同步障碍器token，用于{@link #removeSyncBarrier(int) }移除障碍器时使用
      * */
     int enqueueSyncBarrier(long when) {
+        return enqueueSyncBarrier(when, 0);
+    }
+
+    /**
+     * 添加一个会自动过期的同步障碍器，防止忘记移除的障碍器让所有同步消息永远得不到处理。
+     * 过期时障碍器被移除，同时输出警告并回调{@link OnSyncBarrierReleasedListener}。过期后仍然可以（也应该）
+     * 调用{@link #removeSyncBarrier(int)}，第一次调用只输出一条警告；但如果在那之前又有
+     * {@value #EXPIRED_BARRIER_HISTORY}个障碍器过期，这个token就不再被认出，与从未添加过的token一样抛出异常。
+     *
+     * @param timeoutMillis 从when起最多生效多少毫秒，0表示不会过期
+     */
+    int enqueueSyncBarrier(long when, long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeout must be non-negative");
+        }
         synchronized (this) {
+            //保证在障碍器之前发出的消息排在障碍器前面
+            drainIngressLocked();
             final int token = mNextBarrierToken++;
+            final SyncBarrier barrier = new SyncBarrier(token,
+                    timeoutMillis > 0 ? Math.max(when, 1) + timeoutMillis : 0);
             //从消息池取出一个消息，并将其设置为同步障碍器（target为null，且arg1保存token的消息）
             final Message msg = Message.obtain();
             msg.markInUse();
             msg.when = when;
             msg.arg1 = token;
-
-            //找到msg在消息队列中的位置（消息队列按照when从小到大排列），并把msg插入其中
-            Message prev = null;
-            Message p = mMessages;
-            if (when != 0) {
-                while (p != null && p.when <= when) {
-                    prev = p;
-                    p = p.next;
-                }
-            }
-
-            if (prev != null) { // invariant: p == prev.next
-                msg.next = p;
-                prev.next = msg;
-            } else {//如果msg.when最小，或者msg.when=0(可能性不大)
-                msg.next = p;
-                mMessages = msg;
+            msg.obj = barrier;
+            barrier.msg = msg;
+            mBarriers.put(token, barrier);
+
+            //按照(when, 入队顺序)把msg插入消息存储中，when=0时插入队首
+            insertLocked(msg);
+            //会过期的障碍器成为队首时，looper可能正按原来的队首无限期阻塞，而障碍器后面的同步消息
+            //也不会唤醒它，所以唤醒一次让它按过期时刻重新计算阻塞时长
+            if (barrier.expireAt != 0 && mBlocked && mStore.peek() == msg && !mQuitting) {
+                mPoller.wake();
             }
             return token;
         }
@@ -329,37 +988,150 @@ public final class MessageQueue {
      * @param token 需要移除的障碍器token，由{@link #enqueueSyncBarrier(long)}返回而得
      */
     void removeSyncBarrier(int token) {
+        final OnSyncBarrierReleasedListener listener = mSyncBarrierListener;
+        long blockedMillis = 0;
+        int blockedMessages = 0;
         synchronized (this) {
-            Message prev = null;
-            Message p = mMessages;
-            //找到指定的障碍器
-            while (p != null && (p.target != null || p.arg1 != token)) {
-                prev = p;
-                p = p.next;
-            }
-            if (p == null) {
+            drainIngressLocked();
+            //通过token索引找到指定的障碍器
+            final SyncBarrier barrier = mBarriers.get(token);
+            if (barrier == null) {
+                if (takeExpiredBarrierLocked(token)) {
+                    //已经超时移除，并且报告过了
+                    Log.w("MessageQueue", "Sync barrier " + token + " was removed after it expired");
+                    return;
+                }
                 throw new IllegalStateException("The specified message queue synchronization "
                         + " barrier token has not been posted or has already been removed.");
             }
+            mBarriers.remove(token);
+            final Message p = barrier.msg;
+            if (listener != null) {
+                final long now = SystemClock.uptimeMillis();
+                long since = barrier.blockingSince;
+                if (since == 0 && mStore.peek() == p && p.when <= now) {
+                    //looper睡眠期间障碍器就已经在队首生效了（同步消息入队不会唤醒它）
+                    since = p.when;
+                }
+                if (since != 0) {
+                    blockedMillis = now - since;
+                    blockedMessages = countBlockedLocked(now);
+                }
+            }
             final boolean needWake;
             //如果找到障碍器时，它有前驱消息。说明这个障碍器还没发挥作用，此时无论消息队列循环是否阻塞
             //都不需要改变其（即消息队列）状态。
-            if (prev != null) {
-                prev.next = p.next;
+            if (mStore.peek() != p) {
+                mStore.remove(p);
                 needWake = false;
             } else {//如果障碍器是队首第一个消息
-                mMessages = p.next;
+                mStore.remove(p);
                 //消息队列为空或者新队首消息不是障碍器时，则唤醒消息队列循环
-                needWake = mMessages == null || mMessages.target != null;
+                final Message head = mStore.peek();
+                needWake = head == null || head.target != null;
             }
             p.recycleUnchecked();
 
             // If the loop is quitting then it is already awake.
-            // We can assume mPtr != 0 when mQuitting is false.
+            // We can assume mPoller != null when mQuitting is false.
             if (needWake && !mQuitting) {
-                nativeWake(mPtr);
+                mPoller.wake();
+            }
+        }
+        if (listener != null) {
+            listener.onSyncBarrierReleased(token, blockedMillis, blockedMessages, false);
+        }
+    }
+
+    /**
+     * 设置同步障碍器被移除时的回调，为null表示不再回调。可在任意线程调用。
+     */
+    public void setOnSyncBarrierReleasedListener(OnSyncBarrierReleasedListener listener) {
+        mSyncBarrierListener = listener;
+    }
+
+    /**
+     * 在next()中、队首是已生效的障碍器时调用：移除队首所有已经过期的障碍器，并为留下的队首障碍器记下
+     * 开始阻挡的时刻。过期障碍器的阻挡时长与被挡消息个数在这里算好，留到锁外报告。
+     *
+     * @return 被移除的障碍器链，没有时返回null
+     */
+    private SyncBarrier expireBarriersLocked(long now) {
+        SyncBarrier expired = null;
+        int blockedMessages = -1;
+        Message head = mStore.peek();
+        while (head != null && head.target == null && now >= head.when) {
+            final SyncBarrier barrier = (SyncBarrier) head.obj;
+            if (barrier.blockingSince == 0) {
+                barrier.blockingSince = now;
+            }
+            if (barrier.expireAt == 0 || now < barrier.expireAt) {
+                break;
+            }
+            if (blockedMessages < 0) {
+                blockedMessages = mSyncBarrierListener != null ? countBlockedLocked(now) : 0;
+            }
+            mStore.remove(head);
+            //移出索引，记入过期历史，之后的removeSyncBarrier()只输出警告
+            mBarriers.remove(barrier.token);
+            mExpiredBarriers[mExpiredBarrierPos] = barrier.token;
+            mExpiredBarrierPos = (mExpiredBarrierPos + 1) % EXPIRED_BARRIER_HISTORY;
+            if (mExpiredBarrierCount < EXPIRED_BARRIER_HISTORY) {
+                mExpiredBarrierCount++;
+            }
+            barrier.msg = null;
+            barrier.blockedMillis = now - barrier.blockingSince;
+            barrier.blockedMessages = blockedMessages;
+            barrier.nextExpired = expired;
+            expired = barrier;
+            head.recycleUnchecked();
+            head = mStore.peek();
+        }
+        return expired;
+    }
+
+    /**token是否是最近超时移除的障碍器，是的话把它从历史中删除，同一个token只认一次**/
+    private boolean takeExpiredBarrierLocked(int token) {
+        final int n = EXPIRED_BARRIER_HISTORY;
+        final int oldest = (mExpiredBarrierPos - mExpiredBarrierCount + n) % n;
+        for (int i = 0; i < mExpiredBarrierCount; i++) {
+            if (mExpiredBarriers[(oldest + i) % n] != token) {
+                continue;
+            }
+            //后面的记录依次前移一格
+            for (int j = i + 1; j < mExpiredBarrierCount; j++) {
+                mExpiredBarriers[(oldest + j - 1) % n] = mExpiredBarriers[(oldest + j) % n];
+            }
+            mExpiredBarrierPos = (mExpiredBarrierPos - 1 + n) % n;
+            mExpiredBarrierCount--;
+            return true;
+        }
+        return false;
+    }
+
+    /**在锁外报告next()中超时移除的障碍器**/
+    private void reportExpiredBarriers(SyncBarrier expired) {
+        final OnSyncBarrierReleasedListener listener = mSyncBarrierListener;
+        for (SyncBarrier b = expired; b != null; b = b.nextExpired) {
+            Log.w("MessageQueue", "Sync barrier " + b.token + " expired after blocking the queue for "
+                    + b.blockedMillis + "ms; was it never removed?");
+            if (listener != null) {
+                listener.onSyncBarrierReleased(b.token, b.blockedMillis, b.blockedMessages, true);
+            }
+        }
+    }
+
+    /**
+     * 已经到期、但被障碍器挡住的同步消息个数。需要遍历消息存储，只在设置了回调时统计。
+     */
+    private int countBlockedLocked(long now) {
+        int count = 0;
+        for (Message p = mStore.first(); p != null; p = mStore.next(p)) {
+            if (p.target != null && !p.isAsynchronous() && p.when <= now) {
+                count++;
             }
         }
+        return count;
     }
 
     /**
@@ -375,6 +1147,10 @@ public final class MessageQueue {
             throw new IllegalStateException(msg + " This message is already in use.");
         }
 
+        if (mIngress != null) {
+            return enqueueLockFree(msg, when);
+        }
+
         synchronized (this) {
             if (mQuitting) {
                 IllegalStateException e = new IllegalStateException(
@@ -384,54 +1160,532 @@ public final class MessageQueue {
                 return false;
             }
 
-            msg.markInUse();
-            msg.when = when;
-            Message p = mMessages;
+            final int admit = admitLocked(msg, 1);
+            if (admit != ADMIT) {
+                msg.recycleUnchecked();
+                return admit == ADMIT_ABSORBED;
+            }
+            enqueueLocked(msg, when);
+        }
+        return true;
+    }
+
+    /**
+     * 按合并模式入队：在索引中一次找到与msg同键的待处理消息，按mode决定保留哪一个，避免先
+     * removeMessages再send的两次加锁扫描。
+     *
+     * <p>
+     *     键是(target, what, obj)，post的Runnable消息则是(target, callback, obj)；obj按引用比较，
+     *     null只与null相同。还在批量分发中等待的消息也算待处理消息。
+     * </p>
+     *
+     * @param mode {@link Handler#COALESCE_REPLACE_EXISTING}、{@link Handler#COALESCE_KEEP_EXISTING}
+     *  或者{@link Handler#COALESCE_KEEP_EARLIEST}
+     * @return true 队列中有一个同键的消息（新消息或者保留下来的旧消息）；false 队列正在退出
+     */
+    boolean enqueueMessageCoalesced(Message msg, long when, int mode) {
+        if (msg.target == null) {
+            throw new IllegalArgumentException("Message must have a target.");
+        }
+        if (msg.isInUse()) {
+            throw new IllegalStateException(msg + " This message is already in use.");
+        }
+
+        synchronized (this) {
+            if (mQuitting) {
+                IllegalStateException e = new IllegalStateException(
+                        msg.target + " sending message to a Handler on a dead thread");
+                Log.w("MessageQueue", e.getMessage(), e);
+                msg.recycle();
+                return false;
+            }
+            //合并需要看到所有已发送的消息，先并入无锁入队的消息
+            drainIngressLocked();
+
+            final boolean byCallback = msg.callback != null;
+            final Message first = byCallback
+                    ? mIndex.firstByCallback(msg.target, msg.callback)
+                    : mIndex.firstByWhat(msg.target, msg.what);
+            if (mode != Handler.COALESCE_REPLACE_EXISTING) {
+                for (Message p = first; p != null; p = byCallback ? p.callbackNext : p.whatNext) {
+                    if (isSameKey(p, msg) && isPending(p)
+                            && (mode == Handler.COALESCE_KEEP_EXISTING || p.when <= when)) {
+                        //保留已有的消息，丢弃新消息
+                        msg.recycleUnchecked();
+                        return true;
+                    }
+                }
+            }
+            //REPLACE_EXISTING，或者KEEP_EARLIEST时新消息更早：删除所有同键消息
+            Message p = first;
+            while (p != null) {
+                final Message n = byCallback ? p.callbackNext : p.whatNext;
+                if (isSameKey(p, msg)) {
+                    removeAndRecycleLocked(p);
+                }
+                p = n;
+            }
+            //替换掉的旧消息先腾出了位置，再检查容量
+            final int admit = admitLocked(msg, 1);
+            if (admit != ADMIT) {
+                msg.recycleUnchecked();
+                return admit == ADMIT_ABSORBED;
+            }
+            enqueueLocked(msg, when);
+        }
+        return true;
+    }
+
+    /**
+     * 检查放入count个目标为msg.target的新消息后是否超出容量，超出时按溢出策略处理：
+     * 拒绝、等待空位、丢弃最早到期的消息，或者丢弃新消息。调用前已经检查过mQuitting。
+     * OVERFLOW_BLOCK会在wait()中释放队列锁，期间队列可能开始退出，此时返回ADMIT_REFUSED。
+     *
+     * @return {@link #ADMIT}、{@link #ADMIT_REFUSED}或者{@link #ADMIT_ABSORBED}
+     */
+    private int admitLocked(Message msg, int count) {
+        if (mCapacity == 0 && mTargetCapacity == 0) {
+            return ADMIT;
+        }
+        final Handler target = msg.target;
+        if (count > (mCapacity > 0 ? mCapacity : Integer.MAX_VALUE)
+                || count > (mTargetCapacity > 0 ? mTargetCapacity : Integer.MAX_VALUE)) {
+            //无论如何也放不下
+            mRejectedCount = mRejectedCount + count;
+            return ADMIT_REFUSED;
+        }
+
+        long deadline = 0;
+        for (;;) {
+            //两个限制计算同样的消息：不含同步障碍器，含当前批次中没有被取消的消息（它们都还在索引中）
+            final boolean targetFull = mTargetCapacity > 0
+                    && mIndex.count(target) + count > mTargetCapacity;
+            final boolean queueFull = mCapacity > 0
+                    && mStore.size() - mBarriers.size() + mBatchLive + count > mCapacity;
+            if (!targetFull && !queueFull) {
+                return ADMIT;
+            }
+
+            switch (mOverflowPolicy) {
+                case OVERFLOW_BLOCK: {
+                    final Looper me = Looper.myLooper();
+                    if (me == null || me.mQueue != this) {
+                        final long now = SystemClock.uptimeMillis();
+                        if (deadline == 0) {
+                            deadline = mOverflowTimeoutMillis > 0
+                                    ? now + mOverflowTimeoutMillis : Long.MAX_VALUE;
+                        }
+                        if (now < deadline && awaitCapacityLocked(deadline - now)) {
+                            if (mQuitting) {
+                                return ADMIT_REFUSED;
+                            }
+                            continue;
+                        }
+                    }
+                    //looper线程自己发送、超时或者被中断
+                    mRejectedCount = mRejectedCount + count;
+                    return ADMIT_REFUSED;
+                }
+                case OVERFLOW_DROP_OLDEST: {
+                    final Message victim = targetFull
+                            ? oldestOfTargetLocked(target) : oldestLocked();
+                    if (victim == null) {
+                        //需要腾位置的消息都在批次中，马上就会被分发
+                        mRejectedCount = mRejectedCount + count;
+                        return ADMIT_REFUSED;
+                    }
+                    removeAndRecycleLocked(victim);
+                    mDroppedCount = mDroppedCount + 1;
+                    continue;
+                }
+                case OVERFLOW_DROP_NEWEST:
+                    mDroppedCount = mDroppedCount + count;
+                    return count == 1 && hasSameKeyLocked(msg) ? ADMIT_ABSORBED : ADMIT_REFUSED;
+                default:
+                    mRejectedCount = mRejectedCount + count;
+                    return ADMIT_REFUSED;
+            }
+        }
+    }
+
+    /**
+     * 在队列锁上等待有消息离开队列。
+     * @return 是否正常等待；被中断时恢复中断状态并返回false
+     */
+    private boolean awaitCapacityLocked(long timeoutMillis) {
+        mCapacityWaiters++;
+        try {
+            wait(timeoutMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mCapacityWaiters--;
+        }
+    }
+
+    /**有消息离开队列或者队列开始退出，唤醒因队列已满而等待的发送线程**/
+    private void signalCapacityLocked() {
+        if (mCapacityWaiters > 0) {
+            notifyAll();
+        }
+    }
+
+    /**消息存储中最早到期的消息，跳过同步障碍器**/
+    private Message oldestLocked() {
+        final Message head = mStore.peek();
+        if (head == null || head.target != null) {
+            return head;
+        }
+        Message oldest = null;
+        for (Message p = mStore.first(); p != null; p = mStore.next(p)) {
+            if (p.target != null && (oldest == null || MessageStore.isBefore(p, oldest))) {
+                oldest = p;
+            }
+        }
+        return oldest;
+    }
+
+    /**target在消息存储中最早到期的消息，遍历它的what桶，开销与它的消息个数成正比**/
+    private Message oldestOfTargetLocked(Handler target) {
+        final MessageIndex.TargetEntry entry = mIndex.get(target);
+        if (entry == null) {
+            return null;
+        }
+        Message oldest = null;
+        for (int i = 0; i < entry.byWhat.size(); i++) {
+            for (Message p = entry.byWhat.valueAt(i).head; p != null; p = p.whatNext) {
+                //批次中的消息已经不在消息存储中
+                if (p.batchState == 0 && (oldest == null || MessageStore.isBefore(p, oldest))) {
+                    oldest = p;
+                }
+            }
+        }
+        return oldest;
+    }
+
+    /**队列中是否有与msg同键的待处理消息**/
+    private boolean hasSameKeyLocked(Message msg) {
+        final boolean byCallback = msg.callback != null;
+        Message p = byCallback
+                ? mIndex.firstByCallback(msg.target, msg.callback)
+                : mIndex.firstByWhat(msg.target, msg.what);
+        for (; p != null; p = byCallback ? p.callbackNext : p.whatNext) {
+            if (isSameKey(p, msg) && isPending(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**p与msg在同一个what桶或callback桶中，判断剩下的键是否相同**/
+    private static boolean isSameKey(Message p, Message msg) {
+        return p.obj == msg.obj && (msg.callback != null || p.callback == null);
+    }
+
+    /**
+     * 持锁插入一个新消息，必要时唤醒looper线程。调用前已经检查过mQuitting。
+     */
+    private void enqueueLocked(Message msg, long when) {
+        msg.markInUse();
+        msg.when = when;
+        insertLocked(msg);
+
+        {
+            final Message p = mStore.peek();
             boolean needWake;
-            //如果队列首部为null，或者入队消息需要马上执行，或者入队消息执行时间早于队首消息，且线程已阻塞则都需要唤醒。
-            //如果 p!=null&&when!=0&&when>p.when，则不需要唤醒。
-            if (p == null || when == 0 || when < p.when) {
+            //如果入队消息成为新的队首（队列原本为空、when为0或者执行时间早于原队首），且线程已阻塞则需要唤醒。
+            if (p == msg) {
                 // New head, wake up the event queue if blocked.
-                msg.next = p;
-                mMessages = msg;
                 needWake = mBlocked;//mBlocked记录消息循环是否阻塞
             } else {
                 /*在队列中间插入一个消息。一般情况下不需要唤醒队列（不是加到队首为什么要唤醒呢？），除
                  * 非队首是一个同步障碍器而且新插入的消息是 1)异步消息 2)执行时间是队列中最早 时。*/
+                //如果队列中已有排在msg之前的异步消息，说明那个异步消息的执行时间还没到，msg的执行时间
+                //更晚，也就没有必要唤醒消息队列了。
+                needWake = mBlocked && p.target == null && msg.isAsynchronous()
+                        && mStore.peekAsync() == msg;
+            }
 
-                //此处mBlocked值需要根据情况决定。当线程已经阻塞且队首消息是同步障碍器是新加入异步消息，needWake
-                //才可能(!!)为true。这还要判断消息队列中是否有异步消息，以及异步消息的处理时间早于还是晚于新加入的异步消息。
-                needWake = mBlocked && p.target == null && msg.isAsynchronous();//如果是true也是暂时的，还有考验在等着呢！
-                //寻找位置
-                Message prev;
-                for (;;) {
-                    prev = p;
-                    p = p.next;
-                    if (p == null || when < p.when) {
-                        break;
-                    }
+            // We can assume mPoller != null because mQuitting is false.
+            if (needWake) {
+                mPoller.wake();//唤醒消息循环
+            }
+        }
+    }
 
-                    if (needWake && p.isAsynchronous()) {
-                        //能到达这里，说明msg.when > p.when。既然needWake是true，毫无疑问此时消息队列是
-                        //处于阻塞的。这只有一种可能，p这个异步消息的执行时间还没到！msg的执行时间还
-                        //更晚（不更晚早break了），那就没有必要唤醒消息队列了。
-                        needWake = false;
-                    }
+    /**
+     * 批量往消息队列中添加消息：在一次加锁中按(when, 入队顺序)排序并归并进消息存储，最多唤醒一次。
+     * 要么全部加入，要么（队列正在退出，或者超出容量时）全部回收。
+     * @param msgs 待添加的消息，数组内顺序即when相同时的入队顺序
+     * @param when 所有消息的执行时刻，为0时相当于依次插入队首
+     * @return 是否成功加入消息队列
+     * @exception  IllegalStateException 状态异常（msg.target为null 或者 msg处于使用状态）
+     */
+    boolean enqueueMessages(Message[] msgs, long when) {
+        final int count = msgs.length;
+        //先全部检查，避免只加入了一部分
+        for (int i = 0; i < count; i++) {
+            final Message msg = msgs[i];
+            if (msg.target == null) {
+                throw new IllegalArgumentException("Message must have a target.");
+            }
+            if (msg.isInUse()) {
+                throw new IllegalStateException(msg + " This message is already in use.");
+            }
+        }
+        if (count == 0) {
+            return true;
+        }
+
+        if (mIngress != null) {
+            return enqueueLockFree(msgs, when);
+        }
+
+        synchronized (this) {
+            if (mQuitting) {
+                IllegalStateException e = new IllegalStateException(
+                        msgs[0].target + " sending message to a Handler on a dead thread");
+                Log.w("MessageQueue", e.getMessage(), e);
+                for (int i = 0; i < count; i++) {
+                    msgs[i].recycle();
+                }
+                return false;
+            }
+
+            //同一批消息的目标Handler相同，整批放入或者整批不放入；与单个发送一样，被队列中同键的消息
+            //吸收时也算发送成功
+            final int admit = admitLocked(msgs[0], count);
+            if (admit != ADMIT) {
+                for (int i = 0; i < count; i++) {
+                    msgs[i].recycleUnchecked();
                 }
+                return admit == ADMIT_ABSORBED;
+            }
 
-                //插入新消息
-                msg.next = p; // invariant: p == prev.next
-                prev.next = msg;
+            final Message oldHead = mStore.peek();
+            final Message oldAsyncHead = oldHead != null && oldHead.target == null
+                    ? mStore.peekAsync() : null;
+            for (int i = 0; i < count; i++) {
+                final Message msg = msgs[i];
+                msg.markInUse();
+                msg.when = when;
+                msg.seq = when == 0 ? mNextFrontSeq-- : mNextSeq++;
             }
+            //when相同，顺序完全由seq决定；when为0时seq递减，排序后与逐个插入队首的结果一致
+            Arrays.sort(msgs, MessageStore.ORDER);
+            mStore.insertAll(msgs, count);
+            for (int i = 0; i < count; i++) {
+                mIndex.add(msgs[i]);
+                if (mJournal != null) {
+                    mJournal.appendEnqueue(msgs[i]);
+                }
+            }
+            updatePeakDepthLocked();
 
-            // We can assume mPtr != 0 because mQuitting is false.
+            //与enqueueMessage()相同的唤醒规则：有消息成为新的队首，或者队首是同步障碍器且有消息成为
+            //最早的异步消息
+            final Message head = mStore.peek();
+            boolean needWake;
+            if (head != oldHead) {
+                needWake = mBlocked;
+            } else {
+                needWake = mBlocked && head.target == null && mStore.peekAsync() != oldAsyncHead;
+            }
+            // We can assume mPoller != null because mQuitting is false.
             if (needWake) {
-                nativeWake(mPtr);//唤醒消息循环
+                mPoller.wake();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 无锁入队：把消息压入暂存栈后立即返回，不获取队列对象锁。
+     */
+    private boolean enqueueLockFree(Message msg, long when) {
+        if (mQuitting) {
+            IllegalStateException e = new IllegalStateException(
+                    msg.target + " sending message to a Handler on a dead thread");
+            Log.w("MessageQueue", e.getMessage(), e);
+            msg.recycle();
+            return false;
+        }
+
+        msg.markInUse();
+        msg.when = when;
+        if (!pushLockFree(msg, msg)) {
+            IllegalStateException e = new IllegalStateException(
+                    msg.target + " sending message to a Handler on a dead thread");
+            Log.w("MessageQueue", e.getMessage(), e);
+            msg.recycleUnchecked();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 批量无锁入队：先把msgs串成一条链（最后一个在栈顶），再用一次CAS整体压栈。
+     */
+    private boolean enqueueLockFree(Message[] msgs, long when) {
+        final int count = msgs.length;
+        if (mQuitting) {
+            IllegalStateException e = new IllegalStateException(
+                    msgs[0].target + " sending message to a Handler on a dead thread");
+            Log.w("MessageQueue", e.getMessage(), e);
+            for (int i = 0; i < count; i++) {
+                msgs[i].recycle();
+            }
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Message msg = msgs[i];
+            msg.markInUse();
+            msg.when = when;
+            if (i > 0) {
+                msg.next = msgs[i - 1];
+            }
+        }
+        if (!pushLockFree(msgs[0], msgs[count - 1])) {
+            IllegalStateException e = new IllegalStateException(
+                    msgs[0].target + " sending message to a Handler on a dead thread");
+            Log.w("MessageQueue", e.getMessage(), e);
+            for (int i = 0; i < count; i++) {
+                msgs[i].recycleUnchecked();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 把从last沿next到first的一条消息链整体压入暂存栈，last成为栈顶，first.next指向原栈顶。
+     * <p>
+     *     只有把消息压入空栈的生产者才可能需要唤醒looper（栈非空说明前一个生产者已经负责过了），
+     *     而且只在looper已阻塞时才唤醒。looper阻塞时不会持有对象锁，所以这里为了唤醒而加锁几乎没有竞争，
+     *     同时保证了mPoller在{@link #dispose()}之后不会被使用。
+     * </p>
+     *
+     * @return 队列已经退出、暂存栈已经关闭时返回false，消息没有入栈，由调用者回收
+     */
+    private boolean pushLockFree(Message first, Message last) {
+        final AtomicReference<Message> ingress = mIngress;
+        Message top;
+        do {
+            top = ingress.get();
+            if (top == INGRESS_CLOSED) {
+                return false;
+            }
+            first.next = top;
+        } while (!ingress.compareAndSet(top, last));
+
+        if (top == null && mBlocked) {
+            synchronized (this) {
+                // We can assume mPoller != null because mQuitting is false.
+                if (!mQuitting) {
+                    mPoller.wake();
+                }
             }
         }
         return true;
     }
 
+    /**
+     * 把暂存栈中的消息按入栈顺序并入消息存储。每个需要看到完整队列内容的加锁操作都应先调用它。
+     * 暂存栈只在持锁退出时关闭，所以先读一次再取下不会与关闭竞争。
+     */
+    private void drainIngressLocked() {
+        if (mIngress == null) {
+            return;
+        }
+        final Message top = mIngress.get();
+        if (top == null || top == INGRESS_CLOSED) {
+            return;
+        }
+        drainIngressLocked(mIngress.getAndSet(null));
+    }
+
+    /**暂存栈中是否有还没有并入消息存储的消息**/
+    private boolean hasIngress() {
+        if (mIngress == null) {
+            return false;
+        }
+        final Message top = mIngress.get();
+        return top != null && top != INGRESS_CLOSED;
+    }
+
+    /**把从暂存栈取下的消息链p按入栈顺序并入消息存储**/
+    private void drainIngressLocked(Message p) {
+        //栈是后进先出的，先反转成入栈顺序，使得when相同的消息以及when为0的消息保持原有的先后语义
+        Message ordered = null;
+        while (p != null) {
+            final Message n = p.next;
+            p.next = ordered;
+            ordered = p;
+            p = n;
+        }
+        while (ordered != null) {
+            final Message n = ordered.next;
+            ordered.next = null;
+            insertLocked(ordered);
+            ordered = n;
+        }
+    }
+
+    /**
+     * 由{@link MessageHandle#cancel()}调用：按引用删除一个消息，不需要在桶中查找。
+     * @return 消息仍在等待投递并且被删除时返回true
+     */
+    boolean cancelMessage(Message msg, int generation) {
+        synchronized (this) {
+            drainIngressLocked();
+            if (!isQueuedLocked(msg, generation)) {
+                return false;
+            }
+            removeAndRecycleLocked(msg);
+            return true;
+        }
+    }
+
+    /**
+     * 由{@link MessageHandle#isPending()}调用。
+     */
+    boolean isMessagePending(Message msg, int generation) {
+        synchronized (this) {
+            drainIngressLocked();
+            return isQueuedLocked(msg, generation);
+        }
+    }
+
+    /**
+     * 由{@link MessageHandle#reschedule(long)}调用：把一个仍在等待投递的消息移到新的执行时刻，
+     * 沿用同一个消息对象。已经被取进批次的消息即将分发，不再改期。
+     * @return 是否改期成功
+     */
+    boolean rescheduleMessage(Message msg, int generation, long when) {
+        synchronized (this) {
+            drainIngressLocked();
+            if (mQuitting || !isQueuedLocked(msg, generation) || msg.batchState != 0) {
+                return false;
+            }
+            removeLocked(msg);
+            //重新分配入队序号，与取消后重新发送的顺序相同
+            enqueueLocked(msg, when);
+            return true;
+        }
+    }
+
+    /**
+     * msg是否仍是generation那一次发送，并且还在等待投递。
+     */
+    private static boolean isQueuedLocked(Message msg, int generation) {
+        final int state = msg.batchState;
+        return msg.generation == generation && state != BATCH_CLAIMED
+                && state != BATCH_CANCELLED;
+    }
+
     /**
      * 判断消息队列中是否含有符合指定要求的消息
      * @param h 消息的目标Handler；
@@ -445,12 +1699,14 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            drainIngressLocked();
+            //只需检查(h, what)桶中的消息
+            Message p = mIndex.firstByWhat(h, what);
             while (p != null) {
-                if (p.target == h && p.what == what && (object == null || p.obj == object)) {
+                if ((object == null || p.obj == object) && isPending(p)) {
                     return true;
                 }
-                p = p.next;
+                p = p.whatNext;
             }
             return false;
         }
@@ -469,17 +1725,192 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
+            drainIngressLocked();
+            //只需检查(h, r)桶中的消息
+            Message p = mIndex.firstByCallback(h, r);
             while (p != null) {
-                if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
+                if ((object == null || p.obj == object) && isPending(p)) {
                     return true;
                 }
-                p = p.next;
+                p = p.callbackNext;
             }
             return false;
         }
     }
 
+    /**
+     * 当前排队等待投递的消息个数，包括同步障碍器和尚未到期的消息，不包括looper线程已经取出的消息。
+     * @hide
+     */
+    public int getQueueDepth() {
+        synchronized (this) {
+            drainIngressLocked();
+            return mStore.size();
+        }
+    }
+
+    /**
+     * 自创建或上一次{@link #resetPeakQueueDepth()}以来排队消息个数的峰值。
+     * 无锁入队的消息在looper线程并入消息存储时才计入。
+     * @hide
+     */
+    public int getPeakQueueDepth() {
+        synchronized (this) {
+            drainIngressLocked();
+            return mPeakDepth;
+        }
+    }
+
+    /**
+     * 把峰值重置为当前的排队消息个数，用于按时间窗口统计峰值。
+     * @hide
+     */
+    public void resetPeakQueueDepth() {
+        synchronized (this) {
+            drainIngressLocked();
+            mPeakDepth = mStore.size();
+        }
+    }
+
+    /**
+     * @return 处理完时已经超过截止时间的消息个数
+     * @see Message#setDeadline(long)
+     */
+    public long getDeadlineMissCount() {
+        return mDeadlineMisses;
+    }
+
+    /**
+     * @return 因队列已满被拒绝的消息个数，包括{@link #OVERFLOW_BLOCK}等待超时的消息
+     * @see Config#setCapacity(int, int)
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * @return 因队列已满被丢弃的消息个数（{@link #OVERFLOW_DROP_OLDEST}丢弃的旧消息，
+     * {@link #OVERFLOW_DROP_NEWEST}丢弃的新消息）
+     * @see Config#setCapacity(int, int)
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 以name登记一个持久化的目标Handler：之后发给handler的消息会被记录，上次进程退出时还没有处理的、
+     * 发给同名Handler的消息也在这时放回队列，已经过期的立即投递。Handler本身不能持久化，所以每次启动
+     * 都要用相同的名字重新登记，一般在Looper.prepare()之后、loop()之前。
+     * <p>
+     * 放回的消息与新发送的消息一样受容量限制（{@link Config#setCapacity}），按溢出策略处理：
+     * 被拒绝或者丢弃的消息同时从日志中删除，不会在下次启动时再出现。在looper线程上登记时OVERFLOW_BLOCK
+     * 不会等待，超出容量的消息直接被拒绝。
+     * </p>
+     *
+     * @exception IllegalStateException 队列没有开启持久化，或者name已经登记过
+     * @exception IllegalArgumentException handler不属于这个队列
+     * @see Config#setJournal(File, MessageCodec)
+     */
+    public void registerJournalTarget(String name, Handler handler) {
+        if (mJournal == null) {
+            throw new IllegalStateException("Journal not enabled for this queue");
+        }
+        if (handler.mQueue != this) {
+            throw new IllegalArgumentException(handler + " does not belong to this queue");
+        }
+        synchronized (this) {
+            final List<MessageJournal.Pending> pending = mJournal.register(handler, name);
+            if (mQuitting) {
+                return;
+            }
+            final long nowWall = System.currentTimeMillis();
+            final long nowUptime = SystemClock.uptimeMillis();
+            for (MessageJournal.Pending p : pending) {
+                final Message msg;
+                try {
+                    msg = mJournal.decode(p);
+                } catch (RuntimeException e) {
+                    //比如codec没有注册上次使用的自定义类型，这个消息只能放弃
+                    Log.w("MessageQueue", "Dropping unreadable journaled message for " + name, e);
+                    mJournal.appendRemove(p.id);
+                    continue;
+                }
+                msg.target = handler;
+                if (handler.mAsynchronous) {
+                    msg.setAsynchronous(true);
+                }
+                //与新发送的消息一样检查容量，OVERFLOW_BLOCK等待时会释放队列锁
+                final int admit = admitLocked(msg, 1);
+                if (mQuitting) {
+                    //等待期间开始退出：与退出时留在队列中的消息一样，剩下的消息留在日志中，下次启动时重放
+                    msg.recycleUnchecked();
+                    return;
+                }
+                if (admit != ADMIT) {
+                    Log.w("MessageQueue", "Dropping journaled message for " + name
+                            + ": queue is full");
+                    mJournal.appendRemove(p.id);
+                    msg.recycleUnchecked();
+                    continue;
+                }
+                //沿用原来的编号，再记录一次ENQUEUE时覆盖旧记录
+                msg.journalId = p.id;
+                enqueueLocked(msg, nowUptime + Math.max(0, p.dueWallMillis - nowWall));
+            }
+        }
+    }
+
+    /**
+     * 立即把持久化日志刷到磁盘，不等下一次批量提交。没有开启持久化时什么也不做。
+     */
+    public void syncJournal() {
+        if (mJournal != null) {
+            mJournal.sync();
+        }
+    }
+
+    /**
+     * 日志压缩时调用：收集所有被记录、仍在等待投递的消息。extra是正在记录、尚未写入日志的消息。
+     */
+    List<Message> collectJournaledLocked(Message extra) {
+        final List<Message> live = new ArrayList<Message>();
+        for (Message p = mStore.first(); p != null; p = mStore.next(p)) {
+            if (p.journalId != 0 && p != extra) {
+                live.add(p);
+            }
+        }
+        for (int i = 0; i < mBatchCount; i++) {
+            final Message b = mBatch[i];
+            if (b.journalId != 0 && b.batchState == BATCH_PENDING && b != extra) {
+                live.add(b);
+            }
+        }
+        if (extra != null) {
+            live.add(extra);
+        }
+        return live;
+    }
+
+    /**
+     * 设置消息超过截止时间时的回调，为null表示不再回调。可在任意线程调用。
+     */
+    public void setOnDeadlineMissListener(OnDeadlineMissListener listener) {
+        mDeadlineMissListener = listener;
+    }
+
+    /**
+     * 分发完一个带截止时间的消息后，发现已经超时时调用。一般在looper线程上，分区分发时在执行器的线程上。
+     */
+    void noteDeadlineMissed(Message msg, long lateMillis) {
+        synchronized (mDeadlineMissLock) {
+            mDeadlineMisses = mDeadlineMisses + 1;
+            final OnDeadlineMissListener listener = mDeadlineMissListener;
+            if (listener != null) {
+                listener.onDeadlineMissed(msg, lateMillis);
+            }
+        }
+    }
+
     /**消息循环队列是否空闲**/
     boolean isIdling() {
         synchronized (this) {
@@ -489,8 +1920,8 @@ public final class MessageQueue {
 
     private boolean isIdlingLocked() {
         //如果循环正在退出，那么必定不空闲。
-        // We can assume mPtr != 0 when mQuitting is false.
-        return !mQuitting && nativeIsIdling(mPtr);
+        // We can assume mPoller != null when mQuitting is false.
+        return !mQuitting && mPoller.isIdling();
      }
 
     /**
@@ -503,28 +1934,13 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // 删除队首开始的所有符合参数要求的消息，直到遇到第一个不符合参数要求的
-            while (p != null && p.target == h && p.what == what
-                   && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // 删除剩余队列中所有符合参数要求的消息
-            while (p != null) {//p在上一个while已经证明不符合参数要求
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.what == what
-                        && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn; //把n.next复制给p.next
-                        continue;
-                    }
+            drainIngressLocked();
+            // 删除(h, what)桶中所有符合参数要求的消息
+            Message p = mIndex.firstByWhat(h, what);
+            while (p != null) {
+                final Message n = p.whatNext;//p被摘除后whatNext会被清空，先保存下来
+                if (object == null || p.obj == object) {
+                    removeAndRecycleLocked(p);
                 }
                 p = n;
             }
@@ -541,28 +1957,13 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // 删除队首开始的所有符合参数要求的消息，直到遇到第一个不符合参数要求的
-            while (p != null && p.target == h && p.callback == r
-                   && (object == null || p.obj == object)) {//p在上一个while已经证明不符合参数要求
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
-            }
-
-            // 删除剩余队列中所有符合参数要求的消息
+            drainIngressLocked();
+            // 删除(h, r)桶中所有符合参数要求的消息
+            Message p = mIndex.firstByCallback(h, r);
             while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && n.callback == r
-                        && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;//把n.next复制给p.next
-                        continue;
-                    }
+                final Message n = p.callbackNext;
+                if (object == null || p.obj == object) {
+                    removeAndRecycleLocked(p);
                 }
                 p = n;
             }
@@ -578,84 +1979,227 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
-            Message p = mMessages;
-
-            // Remove all messages at front.
-            while (p != null && p.target == h
-                    && (object == null || p.obj == object)) {
-                Message n = p.next;
-                mMessages = n;
-                p.recycleUnchecked();
-                p = n;
+            drainIngressLocked();
+            final MessageIndex.TargetEntry entry = mIndex.get(h);
+            if (entry == null) {
+                return;
+            }
+            //h的每个消息都恰好在一个what桶中。桶变空时会被删除，所以倒序遍历
+            for (int i = entry.byWhat.size() - 1; i >= 0; i--) {
+                Message p = entry.byWhat.valueAt(i).head;
+                while (p != null) {
+                    final Message n = p.whatNext;
+                    if (object == null || p.obj == object) {
+                        removeAndRecycleLocked(p);
+                    }
+                    p = n;
+                }
             }
+        }
+    }
 
+    /**
+     * 为消息分配入队序号并放入消息存储。when为0的消息（插入队首）使用递减的负数序号，
+     * 因此总是排在所有已入队消息之前。
+     */
+    private void insertLocked(Message msg) {
+        msg.seq = msg.when == 0 ? mNextFrontSeq-- : mNextSeq++;
+        mStore.insert(msg);
+        mIndex.add(msg);
+        updatePeakDepthLocked();
+        //同步障碍器和退出后放回存储的消息不记录
+        if (mJournal != null && msg.target != null && !mQuitting) {
+            mJournal.appendEnqueue(msg);
+        }
+    }
 
+    private void updatePeakDepthLocked() {
+        final int depth = mStore.size();
+        if (depth > mPeakDepth) {
+            mPeakDepth = depth;
+        }
+    }
 
-            // Remove all messages after front.
-            while (p != null) {
-                Message n = p.next;
-                if (n != null) {
-                    if (n.target == h && (object == null || n.obj == object)) {
-                        Message nn = n.next;
-                        n.recycleUnchecked();
-                        p.next = nn;
-                        continue;
-                    }
+    /**
+     * 从first开始取出最多maxCount个在now之前到期的消息放入批次。它们只移出消息存储，留在索引中。
+     */
+    private void takeBatchLocked(Message first, int maxCount, long now) {
+        if (mBatch == null || mBatch.length < maxCount) {
+            mBatch = new Message[maxCount];
+        }
+        int count = 0;
+        Message msg = first;
+        do {
+            mStore.remove(msg);
+            msg.batchState = BATCH_PENDING;
+            mBatch[count++] = msg;
+            if (count == maxCount) {
+                break;
+            }
+            msg = mStore.select(now);
+        } while (msg != null && msg.when <= now);
+        mBatchCount = count;
+        mBatchLive = count;
+        mBatchPos = 0;
+        signalCapacityLocked();
+    }
+
+    /**
+     * 结算上一个批次：已认领的消息移出索引后回收，已取消的消息直接回收，未认领的消息放回消息存储。
+     * 未认领的消息保留原来的seq，所以会回到原来的位置。
+     */
+    private void retireBatchLocked() {
+        final int count = mBatchCount;
+        if (count == 0) {
+            return;
+        }
+        final Message[] batch = mBatch;
+        for (int i = 0; i < count; i++) {
+            final Message msg = batch[i];
+            batch[i] = null;
+            final int state = msg.batchState;
+            msg.batchState = 0;
+            if (state == BATCH_PENDING) {
+                mStore.insert(msg);
+            } else {
+                if (state == BATCH_CLAIMED) {
+                    mIndex.remove(msg);
                 }
-                p = n;
+                journalRemoveLocked(msg);
+                msg.recycleUnchecked();
             }
         }
+        mBatchCount = 0;
+        mBatchLive = 0;
+        mBatchPos = 0;
+        signalCapacityLocked();
+    }
+
+    /**
+     * 消息是否仍在队列中等待投递。批次中已被looper认领的消息还留在索引里，查询和删除时要跳过它们。
+     */
+    private static boolean isPending(Message msg) {
+        return msg.batchState != BATCH_CLAIMED;
     }
 
-    /** 删除队列中所有消息 **/
+    /**
+     * 把消息从消息存储和索引中摘除，不回收。
+     */
+    private void removeLocked(Message msg) {
+        mStore.remove(msg);
+        mIndex.remove(msg);
+        signalCapacityLocked();
+        journalRemoveLocked(msg);
+    }
+
+    /**
+     * 记录一个被记录过的消息已经删除或者交给了looper。退出时删除的消息不记录，重启后重放。
+     */
+    private void journalRemoveLocked(Message msg) {
+        if (msg.journalId != 0) {
+            if (!mQuitting) {
+                mJournal.appendRemove(msg.journalId);
+            }
+            msg.journalId = 0;
+        }
+    }
+
+    /**
+     * 删除一个仍在等待投递的消息并回收。批次中的消息只能通过CAS取消，回收推迟到结算批次时；
+     * 如果looper已经抢先认领了它，消息照常分发。
+     */
+    private void removeAndRecycleLocked(Message msg) {
+        if (msg.batchState == 0) {
+            removeLocked(msg);
+            msg.recycleUnchecked();
+        } else if (sBatchState.compareAndSet(msg, BATCH_PENDING, BATCH_CANCELLED)) {
+            mIndex.remove(msg);
+            mBatchLive--;
+            signalCapacityLocked();
+        }
+    }
+
+    /** 删除队列中所有消息，包括批次中还没有认领的消息，只用于quit(false) **/
     private void removeAllMessagesLocked() {
-        Message p = mMessages;
+        //先清空存储再回收：消息一旦进入消息池就可能被其他线程取走，不能再修改它
+        Message p = mStore.first();
+        mStore.clear();
+        mIndex.clear();
+        mBarriers.clear();
+        signalCapacityLocked();
+        //批次中的消息（未认领的和已认领的）随索引一起清空了，统一标记为取消，结算批次时直接回收，
+        //不再从索引中删除
+        for (int i = 0; i < mBatchCount; i++) {
+            final Message b = mBatch[i];
+            sBatchState.compareAndSet(b, BATCH_PENDING, BATCH_CANCELLED);
+            if (b.batchState == BATCH_CLAIMED) {
+                b.batchState = BATCH_CANCELLED;
+            }
+            b.whatPrev = null;
+            b.whatNext = null;
+            b.callbackPrev = null;
+            b.callbackNext = null;
+        }
+        mBatchLive = 0;
         while (p != null) {
             Message n = p.next;
+            p.next = null;
+            p.prev = null;
+            p.whatPrev = null;
+            p.whatNext = null;
+            p.callbackPrev = null;
+            p.callbackNext = null;
             p.recycleUnchecked();
             p = n;
         }
-        mMessages = null;
     }
 
-    /**删除队列中，所有执行时间晚于当前时间的消息**/
+    /**
+     * 删除队列中，所有执行时间晚于当前时间的消息。批次中的消息都已经到期，保持不变，照常分发。
+     */
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
-        Message p = mMessages;
-        if (p != null) {
-            if (p.when > now) { //队首的执行时间就大于当前时间
+        final Message head = mStore.peek();
+        if (head != null) {
+            //队首的执行时间就大于当前时间，并且没有批次需要保留
+            if (head.when > now && mBatchCount == 0) {
                 removeAllMessagesLocked();
             } else {
-                Message n;
-                for (;;) {
-                    n = p.next;
-                    if (n == null) {
-                        return;
-                    }
-                    if (n.when > now) {
-                        break;
+                Message p = mStore.first();
+                while (p != null) {
+                    final Message n = mStore.next(p);
+                    if (p.when > now) {
+                        if (p.target == null) {
+                            mBarriers.remove(p.arg1);
+                        }
+                        removeLocked(p);
+                        p.recycleUnchecked();
                     }
                     p = n;
                 }
-                p.next = null;
-                do {
-                    p = n;
-                    n = p.next;
-                    p.recycleUnchecked();
-                } while (n != null);
             }
         }
     }
 
     void dump(Printer pw, String prefix) {
         synchronized (this) {
+            drainIngressLocked();
             long now = SystemClock.uptimeMillis();
             int n = 0;
-            for (Message msg = mMessages; msg != null; msg = msg.next) {
+            //批次中尚未分发的消息排在消息存储中的消息之前
+            for (int i = 0; i < mBatchCount; i++) {
+                final Message msg = mBatch[i];
+                if (msg.batchState == BATCH_PENDING) {
+                    pw.println(prefix + "Message " + n + " (batched): " + msg.toString(now));
+                    n++;
+                }
+            }
+            for (Message msg : mStore.toSortedArray()) {
                 pw.println(prefix + "Message " + n + ": " + msg.toString(now));
                 n++;
             }
-            pw.println(prefix + "(Total messages: " + n + ", idling=" + isIdlingLocked()
+            pw.println(prefix + "(Total messages: " + n + ", peak=" + mPeakDepth
+                    + ", idling=" + isIdlingLocked()
                     + ", quitting=" + mQuitting + ")");
         }
     }
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * {@link RingMessenger}使用的环形缓冲区：同一台机器上的多个进程映射同一个文件，生产者写入记录，
+ * 唯一的消费者读出记录。
+ *
+ * <pre>
+ *  文件 = header(256字节) data(capacity字节，2的幂)
+ *  header: magic:i32 version:i32 capacity:i32 doorbellPort:i32 flags:i32 closed:i32
+ *          tail:i64 @64   head:i64 @128   waiting:i32 @192      （小端序，tail/head各占一个缓存行）
+ *  record = length:i32 uid:i32 replyToLength:u16 replyTo:utf8 message     （按8字节对齐）
+ *         | PAD:i32                                                     （跳到data开头）
+ * </pre>
+ * <p>
+ *     tail和head是只增不减的字节位置，对capacity取模得到data中的偏移。生产者写完记录后才推进tail，
+ *     消费者读完记录后才推进head，所以记录本身不需要提交标记。多个生产者之间用文件锁互斥（单生产者模式
+ *     时省去），一个进程内的生产者由调用者串行化。
+ * </p>
+ * <p>
+ *     跨进程共享内存不在Java内存模型的范围内。这里借助volatile读写在HotSpot上产生的内存屏障：
+ *     发布tail之前的volatile写保证记录先于tail可见，读取tail之后的volatile读保证不会读到旧的记录，
+ *     发布tail之后的volatile写（StoreLoad）保证与消费者的waiting标志之间不会互相错过。
+ *     对齐的8字节读写在64位平台上是原子的。
+ * </p>
+ * <p>
+ *     文件对所有能打开它的进程都是可写的，消费者不信任其中的内容：tail、记录长度不合法时关闭ring，
+ *     而不是越界读取或者原地空转。记录中的uid由生产者自己写入，没有经过任何校验，只能用于统计和诊断，
+ *     不能作为权限检查的依据；能写这个文件的进程可以冒充任何uid。
+ * </p>
+ */
+final class MessageRing {
+    private static final String TAG = "MessageRing";
+
+    /**"QMR1"**/
+    private static final int MAGIC = 0x31524d51;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_PORT = 12;
+    private static final int OFFSET_FLAGS = 16;
+    private static final int OFFSET_CLOSED = 20;
+    private static final int OFFSET_TAIL = 64;
+    private static final int OFFSET_HEAD = 128;
+    private static final int OFFSET_WAITING = 192;
+    private static final int HEADER_SIZE = 256;
+
+    /**只有一个生产者进程，不需要文件锁**/
+    static final int FLAG_SINGLE_PRODUCER = 1;
+
+    static final int MIN_CAPACITY = 4096;
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int RECORD_PAD = -1;
+    private static final int ALIGNMENT = 8;
+
+    /**只用来产生内存屏障**/
+    private static volatile int sFence;
+
+    final File mFile;
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mBuffer;
+    /**生产者写入用的data视图，持有生产者锁时使用**/
+    private final ByteBuffer mWriteView;
+    /**消费者读取用的data视图，只在消费者线程使用**/
+    private final ByteBuffer mReadView;
+    private final int mCapacity;
+    private final int mMask;
+
+    private MessageRing(File file, RandomAccessFile raf, MappedByteBuffer buffer, int capacity) {
+        mFile = file;
+        mRaf = raf;
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        buffer.position(HEADER_SIZE);
+        final ByteBuffer data = buffer.slice();
+        buffer.position(0);
+        mWriteView = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        mReadView = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 创建（或者替换）一个空的ring文件，由消费者调用。新的ring先写在临时文件中再改名，所以是一个新的
+     * 文件：还映射着旧文件的生产者不会写进新的ring，而是看到旧ring已经关闭（或者由fileKey发现文件已经变化）。
+     * @param capacity data区的大小，向上取整为2的幂，单个记录最多占一半
+     */
+    static MessageRing create(File file, int capacity, int flags, int doorbellPort)
+            throws IOException {
+        capacity = Integer.highestOneBit(Math.max(capacity, MIN_CAPACITY) - 1) << 1;
+        final File tmp = new File(file.getPath() + ".tmp");
+        final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        boolean done = false;
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + capacity);
+            final MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, HEADER_SIZE + capacity);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(OFFSET_VERSION, FORMAT_VERSION);
+            buf.putInt(OFFSET_CAPACITY, capacity);
+            buf.putInt(OFFSET_PORT, doorbellPort);
+            buf.putInt(OFFSET_FLAGS, flags);
+            storeFence();
+            //magic最后写入，生产者看到magic时header已经完整
+            buf.putInt(OFFSET_MAGIC, MAGIC);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to create ring " + file);
+            }
+            done = true;
+            return new MessageRing(file, raf, buf, capacity);
+        } finally {
+            if (!done) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * 打开消费者已经创建好的ring文件，由生产者调用。
+     */
+    static MessageRing open(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean done = false;
+        try {
+            final long length = raf.length();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Not a message ring: " + file);
+            }
+            final MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, length);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            final int capacity = buf.getInt(OFFSET_CAPACITY);
+            if (buf.getInt(OFFSET_MAGIC) != MAGIC || buf.getInt(OFFSET_VERSION) != FORMAT_VERSION
+                    || Integer.bitCount(capacity) != 1 || HEADER_SIZE + capacity != length) {
+                throw new IOException("Not a message ring: " + file);
+            }
+            done = true;
+            return new MessageRing(file, raf, buf, capacity);
+        } finally {
+            if (!done) {
+                raf.close();
+            }
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    int getDoorbellPort() {
+        return mBuffer.getInt(OFFSET_PORT);
+    }
+
+    boolean isSingleProducer() {
+        return (mBuffer.getInt(OFFSET_FLAGS) & FLAG_SINGLE_PRODUCER) != 0;
+    }
+
+    boolean isClosed() {
+        return mBuffer.getInt(OFFSET_CLOSED) != 0;
+    }
+
+    /**消费者不再读取，之后生产者的写入都会失败**/
+    void markClosed() {
+        mBuffer.putInt(OFFSET_CLOSED, 1);
+        storeFence();
+    }
+
+    /**多生产者模式下，生产者写入前获取的跨进程锁**/
+    FileLock lockProducers() throws IOException {
+        return mRaf.getChannel().lock(OFFSET_MAGIC, 4, false);
+    }
+
+    /**
+     * 生产者调用，调用者必须持有生产者锁。把msg编码成一条记录并发布。
+     * msg.replyTo必须已经清空，回复地址由replyTo参数给出。
+     *
+     * @return 是否写入；空间不足时返回false，调用者稍后重试
+     * @exception IllegalArgumentException 记录超过了ring容量的一半，或者msg不能编码
+     */
+    boolean write(Message msg, int uid, byte[] replyTo, MessageCodec codec) {
+        final long tail = mBuffer.getLong(OFFSET_TAIL);
+        final long head = mBuffer.getLong(OFFSET_HEAD);
+        loadFence();//读取head之后，确保不会改写消费者还在读的记录
+        final int free = mCapacity - (int) (tail - head);
+        final int pos = (int) tail & mMask;
+        final int contiguous = mCapacity - pos;
+        int size = writeRecord(pos, Math.min(free, contiguous), msg, uid, replyTo, codec);
+        if (size > 0) {
+            publish(tail + size);
+            return true;
+        }
+        if (contiguous < free) {
+            //末尾放不下：写在data开头，末尾剩下的空间用PAD跳过
+            size = writeRecord(0, free - contiguous, msg, uid, replyTo, codec);
+            if (size > 0) {
+                mWriteView.putInt(pos, RECORD_PAD);
+                publish(tail + contiguous + size);
+                return true;
+            }
+        }
+        if (free == mCapacity) {
+            throw new IllegalArgumentException("Message too large for ring " + mFile);
+        }
+        return false;
+    }
+
+    /**@return 记录对齐后的大小，room不够时返回0**/
+    private int writeRecord(int offset, int room, Message msg, int uid, byte[] replyTo,
+            MessageCodec codec) {
+        if (room < RECORD_HEADER_SIZE + replyTo.length + MessageCodec.HEADER_SIZE) {
+            return 0;
+        }
+        final ByteBuffer data = mWriteView;
+        data.limit(offset + room);
+        data.position(offset + RECORD_HEADER_SIZE);
+        data.put(replyTo);
+        try {
+            codec.encode(msg, data);
+        } catch (BufferOverflowException e) {
+            return 0;
+        } finally {
+            data.limit(data.capacity());
+        }
+        final int length = data.position() - offset;
+        data.putInt(offset + 4, uid);
+        data.putShort(offset + 8, (short) replyTo.length);
+        data.putInt(offset, length);
+        //room总是ALIGNMENT的整数倍，对齐之后仍然放得下
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**之前的写入先于之后的读写可见（HotSpot上volatile写之后是StoreLoad屏障）**/
+    private static void storeFence() {
+        sFence = 0;
+    }
+
+    /**之后的读取不会早于之前的读取**/
+    private static int loadFence() {
+        return sFence;
+    }
+
+    private void publish(long tail) {
+        storeFence();
+        mBuffer.putLong(OFFSET_TAIL, tail);
+        storeFence();
+    }
+
+    /**
+     * 生产者发布记录后调用。
+     * @return 消费者在睡眠，需要按门铃；同时清除睡眠标志，在它醒来之前其他生产者不再按门铃
+     */
+    boolean takeWaiting() {
+        if (mBuffer.getInt(OFFSET_WAITING) == 0) {
+            return false;
+        }
+        mBuffer.putInt(OFFSET_WAITING, 0);
+        return true;
+    }
+
+    /**
+     * 消费者睡眠前调用，之后必须再用{@link #hasRecords()}检查一次，避免错过在此之前发布的记录。
+     */
+    void setWaiting(boolean waiting) {
+        mBuffer.putInt(OFFSET_WAITING, waiting ? 1 : 0);
+        storeFence();
+    }
+
+    boolean hasRecords() {
+        final long tail = mBuffer.getLong(OFFSET_TAIL);
+        loadFence();
+        return tail != mBuffer.getLong(OFFSET_HEAD);
+    }
+
+    /**
+     * 消费者调用：解码所有已发布的记录，然后释放它们占用的空间。
+     *
+     * @param messages 解码出的消息，sendingUid是生产者自己声明的uid，没有经过校验
+     * @param replyTo 与messages一一对应的回复ring路径，没有回复地址时为null
+     * @return 是否读到了记录（包括解码失败被丢弃的记录）
+     * @exception IOException tail或者记录的长度不合法（文件被破坏，或者写入方不遵守格式），调用者应当关闭ring；
+     *  此前解码出的消息仍在messages中
+     */
+    boolean drain(MessageCodec codec, List<Message> messages, List<String> replyTo)
+            throws IOException {
+        long head = mBuffer.getLong(OFFSET_HEAD);
+        final long tail = mBuffer.getLong(OFFSET_TAIL);
+        loadFence();//读取tail之后再读记录
+        if (head == tail) {
+            return false;
+        }
+        if (tail - head < 0 || tail - head > mCapacity || ((head | tail) & (ALIGNMENT - 1)) != 0) {
+            throw new IOException("Corrupt ring " + mFile + ": head=" + head + " tail=" + tail);
+        }
+        final ByteBuffer data = mReadView;
+        while (head != tail) {
+            final int pos = (int) head & mMask;
+            final long remaining = tail - head;
+            final int length = data.getInt(pos);
+            if (length == RECORD_PAD) {
+                if (mCapacity - pos > remaining) {
+                    throw corrupt(head, length);
+                }
+                head += mCapacity - pos;
+                continue;
+            }
+            //长度为0会原地空转，超出data或者已发布的范围会越界读取
+            if (length < RECORD_HEADER_SIZE || length > mCapacity - pos
+                    || ((length + ALIGNMENT - 1) & -ALIGNMENT) > remaining) {
+                throw corrupt(head, length);
+            }
+            final int replyLength = data.getShort(pos + 8) & 0xffff;
+            if (replyLength > length - RECORD_HEADER_SIZE) {
+                throw corrupt(head, length);
+            }
+            data.limit(pos + length);
+            data.position(pos + RECORD_HEADER_SIZE + replyLength);
+            try {
+                final Message msg = codec.decode(data);
+                msg.sendingUid = data.getInt(pos + 4);
+                messages.add(msg);
+                replyTo.add(replyLength == 0 ? null : readString(data,
+                        pos + RECORD_HEADER_SIZE, replyLength));
+            } catch (RuntimeException e) {
+                //比如生产者使用了这边没有注册的自定义类型，只能丢弃这一条
+                Log.w(TAG, "Dropping undecodable message from " + mFile, e);
+            } finally {
+                data.limit(data.capacity());
+            }
+            head += (length + ALIGNMENT - 1) & -ALIGNMENT;
+        }
+        //记录已经复制出来了，释放空间
+        storeFence();
+        mBuffer.putLong(OFFSET_HEAD, head);
+        return true;
+    }
+
+    private IOException corrupt(long head, int length) {
+        return new IOException("Corrupt record in " + mFile + " at " + head + ": length=" + length);
+    }
+
+    private static String readString(ByteBuffer data, int offset, int length) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer view = data.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void close() {
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + mFile, e);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * {@link MessageQueue}中待处理消息（包括同步障碍器）的存储结构。
+ *
+ * <p>
+ *     消息按照(when, seq)从小到大排序：when相同的消息按入队先后排列（FIFO），seq由MessageQueue
+ *     在入队时分配；when为0的消息（postAtFrontOfQueue）使用递减的负数seq，从而保持原链表实现
+ *     中"后到的队首消息排在更前面"的语义。
+ * </p>
+ * <p>
+ *     遍历从{@link #first()}开始，用{@link #next(Message)}走到null。单一存储的实现通过
+ *     Message.next/Message.prev把消息串成一条双向链，next(msg)就是msg.next；组合多个存储的实现
+ *     在一条链走完后接到下一条链。遍历顺序是否为投递顺序取决于具体实现。
+ * </p>
+ * <p>所有方法都必须在持有MessageQueue对象锁时调用。</p>
+ */
+abstract class MessageStore {
+    /**按照投递顺序比较两个消息**/
+    static final Comparator<Message> ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message a, Message b) {
+            if (a.when != b.when) {
+                return a.when < b.when ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
+
+    /**消息a是否应在消息b之前投递**/
+    static boolean isBefore(Message a, Message b) {
+        return a.when < b.when || (a.when == b.when && a.seq < b.seq);
+    }
+
+    /**
+     * 插入一个消息。调用前msg.when与msg.seq必须已经赋值。
+     */
+    abstract void insert(Message msg);
+
+    /**
+     * 批量插入已经按投递顺序排好的消息，默认逐个插入。
+     */
+    void insertAll(Message[] sorted, int count) {
+        for (int i = 0; i < count; i++) {
+            insert(sorted[i]);
+        }
+    }
+
+    /**
+     * @return 投递顺序最靠前的消息（可能是同步障碍器），存储为空时返回null
+     */
+    abstract Message peek();
+
+    /**
+     * 挑选下一个要投递的消息。默认策略就是原来的next()：队首是同步障碍器时跳过所有同步消息，
+     * 取排序最靠前的异步消息，否则取队首。
+     *
+     * <p>
+     *     如果存在已经到期（when不晚于now）的可投递消息，按策略返回其中之一，调用者必须随即取走它：
+     *     有状态的策略（比如按权重轮转）在这里记账。否则返回when最早的可投递消息（用于计算阻塞时长），
+     *     没有可投递的消息时返回null。返回值不会是同步障碍器。
+     * </p>
+     */
+    Message select(long now) {
+        final Message head = peek();
+        if (head != null && head.target == null) {
+            return peekAsync();
+        }
+        return head;
+    }
+
+    /**
+     * @return 投递顺序最靠前的异步消息，不存在时返回null。队首是同步障碍器时，MessageQueue使用它
+     *  查找下一个可投递的消息。
+     */
+    abstract Message peekAsync();
+
+    /**
+     * 移除存储中的指定消息，并清空它的next/prev引用。不回收消息。
+     */
+    abstract void remove(Message msg);
+
+    /**
+     * @return 遍历的第一个消息，随后用{@link #next(Message)}遍历。遍历过程中移除当前消息前，请先保存它的后继。
+     */
+    abstract Message first();
+
+    /**
+     * @return 遍历中msg的后继，msg是最后一个时返回null
+     */
+    Message next(Message msg) {
+        return msg.next;
+    }
+
+    /**存储中的消息个数**/
+    abstract int size();
+
+    /**
+     * 丢弃存储中的所有消息（不回收）。清空之后，从清空前的{@link #first()}开始沿Message.next
+     * 依然能走遍所有被丢弃的消息，调用者借此在清空后回收它们。
+     */
+    abstract void clear();
+
+    /**
+     * 按投递顺序返回存储中所有消息的快照，仅用于dump等慢路径。
+     */
+    Message[] toSortedArray() {
+        final Message[] result = new Message[size()];
+        int n = 0;
+        for (Message p = first(); p != null; p = next(p)) {
+            result[n++] = p;
+        }
+        Arrays.sort(result, 0, n, ORDER);
+        return result;
+    }
+}
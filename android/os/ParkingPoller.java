@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 纯Java的阻塞后端，基于{@link LockSupport#park}/{@link LockSupport#unpark}，不依赖本地代码，
+ * 使消息循环可以运行在普通JVM上。
+ */
+final class ParkingPoller extends Poller {
+    /**正在pollOnce中阻塞的looper线程，未阻塞时为null**/
+    private volatile Thread mWaiter;
+
+    @Override
+    void onPollOnce(int timeoutMillis) {
+        if (timeoutMillis == 0) {
+            return;
+        }
+        final long deadline = timeoutMillis > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        //先发布mWaiter再检查唤醒标识；wake()则是先设置标识再读mWaiter，两边至少有一方能看到对方
+        mWaiter = Thread.currentThread();
+        boolean interrupted = false;
+        try {
+            while (!isWakePending()) {
+                if (timeoutMillis < 0) {
+                    LockSupport.park(this);
+                } else {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                //park可能无故返回，也可能因中断返回。中断标识不清除的话park会立即返回导致空转，
+                //所以先清除，退出时再恢复
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            mWaiter = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    void onWake() {
+        final Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    boolean isIdling() {
+        return mWaiter != null;
+    }
+
+    @Override
+    void dispose() {
+    }
+}
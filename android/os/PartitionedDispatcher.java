@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Looper的分区分发：looper线程依旧按(when, 入队顺序)从消息队列取出到期的消息，但不亲自分发，而是按串行域
+ * （{@link Message#setOrderingKey}，默认是目标Handler）追加到域的FIFO中。每个域同一时刻最多在执行器的
+ * 一个线程上运行，逐个分发自己的消息，因此同一个域内的顺序与单线程分发相同，不同的域并行。
+ *
+ * <p>
+ *     域在有消息时才存在：FIFO取空后从表中删除，下一个消息到来时重新创建。删除与追加之间的竞争由
+ *     {@link Domain#mDead}解决：追加时发现域已经死亡就重新查表。
+ * </p>
+ */
+final class PartitionedDispatcher {
+    private static final String TAG = "PartitionedDispatcher";
+
+    /**一个域每次被调度最多连续分发的消息个数，用完后重新排队让其他域有机会运行**/
+    private static final int QUANTUM = 32;
+
+    private final Looper mLooper;
+    private final Executor mExecutor;
+    private final ConcurrentHashMap<Object, Domain> mDomains =
+            new ConcurrentHashMap<Object, Domain>();
+    /**已经提交或者正在运行的域的个数，guarded by this**/
+    private int mActive;
+
+    /**一个串行域：消息通过Message.next连接成FIFO，guarded by this(Domain)**/
+    private final class Domain implements Runnable {
+        final Object mKey;
+        Message mHead;
+        Message mTail;
+        /**已经提交给执行器，还没有取空**/
+        boolean mScheduled;
+        /**已经取空并从表中删除，不能再追加**/
+        boolean mDead;
+
+        Domain(Object key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            final Looper previous = Looper.sThreadLocal.get();
+            Looper.sThreadLocal.set(mLooper);
+            Binder.clearCallingIdentity();
+            final long ident = Binder.clearCallingIdentity();
+            boolean completed = false;
+            try {
+                for (int i = 0; i < QUANTUM; i++) {
+                    final Message msg = poll();
+                    if (msg == null) {
+                        completed = true;
+                        return;
+                    }
+                    Looper.dispatch(mLooper, msg, ident);
+                    msg.recycleUnchecked();
+                }
+                //用完了本次的配额，重新排队
+                schedule(this);
+                completed = true;
+            } finally {
+                Looper.sThreadLocal.set(previous);
+                if (!completed) {
+                    //分发抛出异常：与普通Looper的线程因异常退出一样，退出消息循环，丢弃这个域剩下的消息
+                    abandon();
+                    try {
+                        mLooper.quit();
+                    } catch (IllegalStateException e) {
+                        // 主线程的Looper不允许退出
+                    }
+                }
+            }
+        }
+
+        /**取出下一个消息，取空时结束这个域**/
+        private Message poll() {
+            synchronized (this) {
+                final Message msg = mHead;
+                if (msg != null) {
+                    mHead = msg.next;
+                    if (mHead == null) {
+                        mTail = null;
+                    }
+                    msg.next = null;
+                    return msg;
+                }
+                mScheduled = false;
+                mDead = true;
+            }
+            finish(this);
+            return null;
+        }
+
+        private void abandon() {
+            Message msg;
+            synchronized (this) {
+                msg = mHead;
+                mHead = null;
+                mTail = null;
+                mScheduled = false;
+                mDead = true;
+            }
+            while (msg != null) {
+                final Message next = msg.next;
+                msg.next = null;
+                msg.recycleUnchecked();
+                msg = next;
+            }
+            finish(this);
+        }
+    }
+
+    PartitionedDispatcher(Looper looper, Executor executor) {
+        mLooper = looper;
+        mExecutor = executor;
+    }
+
+    /**
+     * 在looper线程上调用，把msg交给它的串行域。msg由域在分发后回收。
+     */
+    void route(Message msg) {
+        final Object key = msg.orderingKey != null ? msg.orderingKey : msg.target;
+        msg.next = null;
+        for (;;) {
+            Domain domain = mDomains.get(key);
+            if (domain == null) {
+                final Domain created = new Domain(key);
+                domain = mDomains.putIfAbsent(key, created);
+                if (domain == null) {
+                    domain = created;
+                }
+            }
+            boolean submit = false;
+            synchronized (domain) {
+                if (domain.mDead) {
+                    //域刚刚取空，可能还没来得及从表中删除，替它删除后重新查表
+                    mDomains.remove(key, domain);
+                    continue;
+                }
+                if (domain.mTail == null) {
+                    domain.mHead = msg;
+                } else {
+                    domain.mTail.next = msg;
+                }
+                domain.mTail = msg;
+                if (!domain.mScheduled) {
+                    domain.mScheduled = true;
+                    submit = true;
+                    //必须在域可能运行结束之前计数
+                    synchronized (this) {
+                        mActive++;
+                    }
+                }
+            }
+            if (submit) {
+                schedule(domain);
+            }
+            return;
+        }
+    }
+
+    /**
+     * 把域提交给执行器。执行器已经关闭或者饱和时这个域不会再运行：丢弃它剩下的消息并结束它，
+     * 否则mActive不会归零，awaitIdle()永远等下去。
+     */
+    private void schedule(Domain domain) {
+        try {
+            mExecutor.execute(domain);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Executor rejected domain " + domain.mKey + ", dropping its messages", e);
+            domain.abandon();
+        }
+    }
+
+    private void finish(Domain domain) {
+        mDomains.remove(domain.mKey, domain);
+        synchronized (this) {
+            if (--mActive == 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 等待所有已经交出的消息分发完毕。在looper线程上关闭分区分发或者退出消息循环时调用。
+     */
+    void awaitIdle() {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (mActive != 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
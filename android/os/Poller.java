@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link MessageQueue}的阻塞/唤醒后端，取代直接调用nativePollOnce/nativeWake/nativeIsIdling。
+ *
+ * <p>
+ *     {@link #pollOnce(int)}只在looper线程调用，{@link #wake()}可在任意线程调用。
+ *     唤醒是合并的：从一次唤醒发出到looper从pollOnce返回之间，后续的唤醒都被直接忽略，
+ *     因为looper返回后一定会重新检查队列。
+ * </p>
+ */
+abstract class Poller {
+    /**是否已有尚未被looper消费的唤醒**/
+    private final AtomicBoolean mWakePending = new AtomicBoolean();
+
+    /**
+     * 阻塞looper线程直到被唤醒或者超时。
+     * @param timeoutMillis 0立即返回；-1无限等待，直到被唤醒
+     */
+    final void pollOnce(int timeoutMillis) {
+        onPollOnce(timeoutMillis);
+        //必须在返回之后、looper重新检查队列之前清除：在这之前被忽略的唤醒，其对应的入队操作都能被接下来的检查看到
+        mWakePending.set(false);
+    }
+
+    /**
+     * 唤醒looper线程。looper已经有一个未消费的唤醒时直接返回。
+     */
+    final void wake() {
+        if (!mWakePending.getAndSet(true)) {
+            onWake();
+        }
+    }
+
+    /**是否有未消费的唤醒，供实现在阻塞前检查**/
+    final boolean isWakePending() {
+        return mWakePending.get();
+    }
+
+    /**具体的阻塞实现，见{@link #pollOnce(int)}**/
+    abstract void onPollOnce(int timeoutMillis);
+
+    /**具体的唤醒实现，见{@link #wake()}**/
+    abstract void onWake();
+
+    /**looper线程当前是否阻塞在pollOnce中**/
+    abstract boolean isIdling();
+
+    /**释放后端持有的资源，之后不会再被调用**/
+    abstract void dispose();
+}
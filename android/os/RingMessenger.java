@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 同一台机器上进程之间的{@link Messenger}传输，不经过Binder：消息用{@link MessageCodec}编码后写入
+ * 一个内存映射文件上的环形缓冲区（见{@link MessageRing}），接收进程的线程读出后交给目标Handler。
+ *
+ * <pre>
+ *  //接收进程
+ *  RingMessenger.Receiver receiver = RingMessenger.listen(file, RingMessenger.DEFAULT_CAPACITY,
+ *          false, handler, codec);
+ *
+ *  //发送进程
+ *  Messenger messenger = RingMessenger.connect(file, codec);
+ *  messenger.send(msg);
+ * </pre>
+ *
+ * <p>
+ *     接收方的消息带有发送进程的sendingUid，但与Binder不同，它是发送方自己写进ring的，没有经过内核
+ *     或者接收方的校验：任何能写ring文件的进程都可以冒充其他uid，所以它不能用于权限检查，访问控制只能
+ *     依靠ring文件本身的权限。replyTo也可以传递，但必须是RingMessenger的Messenger（比如发送方
+ *     {@link Receiver#getMessenger()}），接收方收到的replyTo连接到同一个ring文件。发送进程继续持有
+ *     send()的消息，可以复用或者回收它。ring中的数据不合法时接收方关闭ring，发送方得到DeadObjectException。
+ * </p>
+ * <p>
+ *     批量唤醒：接收线程每次醒来都会取出ring中所有的消息，用{@link Handler#sendMessagesAtTime}一次并入
+ *     目标消息队列。接收线程空闲一段时间后才睡眠，只有它在睡眠时发送方才通过一个回环UDP端口（门铃）
+ *     唤醒它，并且在它醒来之前只按一次，所以繁忙时发送不需要任何系统调用。
+ * </p>
+ * <p>
+ *     ring满时send()等待空位，接收方关闭时抛出{@link DeadObjectException}。单个消息最多占ring容量的一半。
+ *     目标消息队列设置了容量并且已满时，接收方按它的溢出策略丢弃这批消息并继续接收（见
+ *     {@link Receiver#getRefusedCount()}），发送方不会得到通知。
+ * </p>
+ * <p>
+ *     一个进程对同一个ring文件只打开一次：多次{@link #connect}得到的Messenger共用一个连接和进程内的锁，
+ *     不需要关闭。接收方关闭或者重新{@link #listen}之后，旧的Messenger抛出DeadObjectException，
+ *     重新connect即可，旧连接在此时被释放。
+ * </p>
+ */
+public final class RingMessenger {
+    private static final String TAG = "RingMessenger";
+
+    /**ring的默认容量**/
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**接收线程睡眠前空转检查的次数**/
+    private static final int SPIN_ROUNDS = 64;
+    /**接收线程每次睡眠的最长时间，防止极端情况下错过门铃**/
+    private static final long IDLE_TIMEOUT_MILLIS = 100;
+    /**ring满时send()最多等待的时间**/
+    private static final long SEND_TIMEOUT_MILLIS = 10000;
+    private static final long MAX_PARK_NANOS = 1000000;
+
+    private static final byte[] NO_REPLY_TO = new byte[0];
+
+    /**本进程中每个ring文件（规范路径）的连接**/
+    private static final HashMap<String, Connection> sConnections =
+            new HashMap<String, Connection>();
+
+    private RingMessenger() {
+    }
+
+    /**
+     * 在file上创建一个ring，之后写入的消息都交给target。file已经存在时被覆盖。
+     *
+     * @param capacity ring的字节数，向上取整为2的幂
+     * @param singleProducer 是否只有一个发送进程（其中的多个线程仍然可以同时发送），可以省去跨进程锁
+     * @param codec 解码消息的codec，自定义obj类型需要与发送方一致
+     */
+    public static Receiver listen(File file, int capacity, boolean singleProducer, Handler target,
+            MessageCodec codec) throws IOException {
+        if (target == null || codec == null) {
+            throw new IllegalArgumentException("target and codec must not be null");
+        }
+        final DatagramChannel doorbell = DatagramChannel.open();
+        boolean done = false;
+        try {
+            doorbell.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            doorbell.configureBlocking(false);
+            final int port = ((InetSocketAddress) doorbell.getLocalAddress()).getPort();
+            final MessageRing ring = MessageRing.create(file, capacity,
+                    singleProducer ? MessageRing.FLAG_SINGLE_PRODUCER : 0, port);
+            final Receiver receiver = new Receiver(ring, doorbell, target, codec);
+            receiver.mThread.start();
+            done = true;
+            return receiver;
+        } finally {
+            if (!done) {
+                doorbell.close();
+            }
+        }
+    }
+
+    /**
+     * 连接到另一个进程（或者本进程）用{@link #listen}创建的ring。
+     *
+     * @param codec 编码消息的codec
+     * @exception IOException ring文件不存在或者还没有创建完成
+     */
+    public static Messenger connect(File file, MessageCodec codec) throws IOException {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        return new Messenger(new Sender(connection(file), codec));
+    }
+
+    /**
+     * @return file在本进程中的连接，没有或者已经失效时新建一个，并关闭失效的旧连接
+     */
+    private static Connection connection(File file) throws IOException {
+        final String path = file.getCanonicalPath();
+        final Object fileKey = Files.readAttributes(Paths.get(path),
+                BasicFileAttributes.class).fileKey();
+        synchronized (sConnections) {
+            final Connection cached = sConnections.get(path);
+            if (cached != null) {
+                if (!cached.isDead() && (fileKey == null || fileKey.equals(cached.mFileKey))) {
+                    return cached;
+                }
+                cached.release();
+                sConnections.remove(path);
+            }
+            final Connection connection = new Connection(MessageRing.open(new File(path)), path,
+                    fileKey);
+            sConnections.put(path, connection);
+            return connection;
+        }
+    }
+
+    /**
+     * ring的接收端，持有一个把消息交给目标Handler的线程。
+     */
+    public static final class Receiver {
+        private final MessageRing mRing;
+        private final DatagramChannel mDoorbell;
+        private final Selector mSelector;
+        private final Handler mTarget;
+        private final MessageCodec mCodec;
+        private final Thread mThread;
+        private volatile boolean mClosed;
+
+        /**回复ring的路径到Messenger，只在接收线程使用**/
+        private final HashMap<String, Messenger> mReplyTo = new HashMap<String, Messenger>();
+        private final ByteBuffer mBell = ByteBuffer.allocate(1);
+
+        private volatile long mReceivedCount;
+        private volatile long mWakeupCount;
+        private volatile long mRefusedCount;
+
+        Receiver(MessageRing ring, DatagramChannel doorbell, Handler target, MessageCodec codec)
+                throws IOException {
+            mRing = ring;
+            mDoorbell = doorbell;
+            mSelector = Selector.open();
+            doorbell.register(mSelector, SelectionKey.OP_READ);
+            mTarget = target;
+            mCodec = codec;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, "RingMessenger:" + ring.mFile.getName());
+            mThread.setDaemon(true);
+        }
+
+        /**
+         * @return 发往这个ring的Messenger，可以作为replyTo发给其他进程
+         */
+        public Messenger getMessenger() throws IOException {
+            return connect(mRing.mFile, mCodec);
+        }
+
+        /**@return 已经交给目标Handler的消息个数**/
+        public long getReceivedCount() {
+            return mReceivedCount;
+        }
+
+        /**@return 接收线程被门铃唤醒的次数，与{@link #getReceivedCount()}之比反映了批量的程度**/
+        public long getWakeupCount() {
+            return mWakeupCount;
+        }
+
+        /**
+         * @return 因目标消息队列已满（见{@link MessageQueue.Config#setCapacity}）被拒绝而丢弃的消息个数
+         */
+        public long getRefusedCount() {
+            return mRefusedCount;
+        }
+
+        /**
+         * 停止接收。ring中还没有取出的消息被丢弃，之后的send()抛出{@link DeadObjectException}。
+         * ring文件保留，由调用者删除。
+         */
+        public void close() {
+            mClosed = true;
+            mRing.markClosed();
+            mSelector.wakeup();
+        }
+
+        private void loop() {
+            final ArrayList<Message> messages = new ArrayList<Message>();
+            final ArrayList<String> replyTo = new ArrayList<String>();
+            int idle = 0;
+            try {
+                while (!mClosed) {
+                    if (mRing.drain(mCodec, messages, replyTo)) {
+                        deliver(messages, replyTo);
+                        idle = 0;
+                        continue;
+                    }
+                    if (++idle < SPIN_ROUNDS) {
+                        Thread.yield();
+                        continue;
+                    }
+                    //先声明睡眠再检查一次，与发送方的"先发布再检查睡眠标志"配对，不会错过门铃
+                    mRing.setWaiting(true);
+                    if (mRing.hasRecords()) {
+                        mRing.setWaiting(false);
+                        continue;
+                    }
+                    if (mSelector.select(IDLE_TIMEOUT_MILLIS) > 0) {
+                        mSelector.selectedKeys().clear();
+                        while (mDoorbell.receive(mBell) != null) {
+                            mBell.clear();
+                        }
+                        mWakeupCount++;
+                    }
+                    idle = 0;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Receiver for " + mRing.mFile + " failed", e);
+            } catch (RuntimeException e) {
+                //目标消息队列或者codec抛出的异常同样结束接收线程
+                Log.e(TAG, "Receiver for " + mRing.mFile + " failed", e);
+            } finally {
+                //无论因为什么退出，都让发送方立即得到DeadObjectException，而不是等ring写满后超时
+                mClosed = true;
+                mRing.markClosed();
+                try {
+                    mSelector.close();
+                    mDoorbell.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close doorbell", e);
+                }
+                mRing.close();
+            }
+        }
+
+        private void deliver(ArrayList<Message> messages, ArrayList<String> replyTo) {
+            final int count = messages.size();
+            for (int i = 0; i < count; i++) {
+                final String path = replyTo.get(i);
+                if (path != null) {
+                    messages.get(i).replyTo = replyToMessenger(path);
+                }
+            }
+            replyTo.clear();
+            if (count == 0) {
+                return;
+            }
+            //一次加锁并入目标消息队列，最多唤醒looper一次
+            if (mTarget.sendMessagesAtTime(messages, SystemClock.uptimeMillis())) {
+                mReceivedCount += count;
+            } else if (mTarget.getLooper().getQueue().isQuitting()) {
+                //目标looper已经退出
+                close();
+            } else {
+                //目标消息队列已满，按它的溢出策略整批拒绝：消息已被回收，接收继续
+                mRefusedCount += count;
+            }
+            messages.clear();
+        }
+
+        private Messenger replyToMessenger(String path) {
+            Messenger messenger = mReplyTo.get(path);
+            if (messenger != null && !((Sender) messenger.getBinder()).mConnection.isDead()) {
+                return messenger;
+            }
+            try {
+                messenger = connect(new File(path), mCodec);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to connect to replyTo ring " + path, e);
+                return null;
+            }
+            mReplyTo.put(path, messenger);
+            return messenger;
+        }
+    }
+
+    /**
+     * 一个进程到一个ring文件的连接：映射、跨进程锁和门铃。同一个文件在一个进程中只有一个连接，它的对象锁
+     * 就是进程内生产者的锁，写入时先取得它再取得文件锁。接收方关闭或者文件被重新创建后连接失效，
+     * 下一次{@link #connect}时关闭并替换。
+     */
+    private static final class Connection {
+        final MessageRing mRing;
+        final byte[] mPath;
+        /**文件的标识（inode），文件被重新创建时改变**/
+        final Object mFileKey;
+        private final int mUid;
+        private final boolean mSingleProducer;
+        private final InetSocketAddress mDoorbellAddress;
+        private final ByteBuffer mBell = ByteBuffer.allocate(1);
+        private DatagramChannel mDoorbell;  // guarded by this
+        private boolean mReleased;  // guarded by this
+
+        Connection(MessageRing ring, String path, Object fileKey) {
+            mRing = ring;
+            mPath = path.getBytes(StandardCharsets.UTF_8);
+            mFileKey = fileKey;
+            mUid = Process.myUid();
+            mSingleProducer = ring.isSingleProducer();
+            mDoorbellAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    ring.getDoorbellPort());
+        }
+
+        /**@return 连接是否已经失效，失效的连接不能再写入**/
+        synchronized boolean isDead() {
+            return mReleased || mRing.isClosed();
+        }
+
+        /**
+         * @return 是否写入；ring满时返回false
+         * @exception DeadObjectException 接收方已经关闭，同时释放这个连接
+         */
+        boolean tryWrite(Message msg, byte[] replyTo, MessageCodec codec) throws RemoteException {
+            synchronized (this) {
+                if (mReleased || mRing.isClosed()) {
+                    release();
+                    throw new DeadObjectException("Ring " + mRing.mFile + " is closed");
+                }
+                final boolean wake;
+                FileLock lock = null;
+                try {
+                    if (!mSingleProducer) {
+                        lock = mRing.lockProducers();
+                    }
+                    if (!mRing.write(msg, mUid, replyTo, codec)) {
+                        return false;
+                    }
+                    wake = mRing.takeWaiting();
+                } catch (IOException e) {
+                    throw new RemoteException("Unable to lock " + mRing.mFile + ": " + e);
+                } finally {
+                    if (lock != null) {
+                        try {
+                            lock.release();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Failed to unlock " + mRing.mFile, e);
+                        }
+                    }
+                }
+                if (wake) {
+                    ringDoorbell();
+                }
+                return true;
+            }
+        }
+
+        /**调用时持有this**/
+        private void ringDoorbell() {
+            try {
+                if (mDoorbell == null) {
+                    mDoorbell = DatagramChannel.open();
+                }
+                mBell.clear();
+                mDoorbell.send(mBell, mDoorbellAddress);
+            } catch (IOException e) {
+                //接收方最迟在IDLE_TIMEOUT_MILLIS之后醒来
+                Log.w(TAG, "Failed to ring doorbell of " + mRing.mFile, e);
+            }
+        }
+
+        /**关闭文件和门铃。映射本身在不再被引用后由GC回收**/
+        synchronized void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (mDoorbell != null) {
+                try {
+                    mDoorbell.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close doorbell of " + mRing.mFile, e);
+                }
+                mDoorbell = null;
+            }
+            mRing.close();
+        }
+    }
+
+    /**
+     * ring的发送端，{@link #connect}每次返回一个新的Sender，但同一个文件的Sender共用一个{@link Connection}，
+     * 自身不持有资源。
+     */
+    private static final class Sender extends IMessenger.Stub {
+        final Connection mConnection;
+        private final MessageCodec mCodec;
+
+        Sender(Connection connection, MessageCodec codec) {
+            mConnection = connection;
+            mCodec = codec;
+        }
+
+        @Override
+        public void send(Message msg) throws RemoteException {
+            final byte[] replyTo = replyToPath(msg.replyTo);
+            final Messenger savedReplyTo = msg.replyTo;
+            //replyTo单独编码，codec只看到进程无关的字段
+            msg.replyTo = null;
+            try {
+                long parkNanos = 0;
+                long deadline = 0;
+                while (!mConnection.tryWrite(msg, replyTo, mCodec)) {
+                    //ring满了，等待接收方腾出空间
+                    final long now = System.nanoTime();
+                    if (deadline == 0) {
+                        deadline = now + SEND_TIMEOUT_MILLIS * 1000000;
+                    } else if (now - deadline > 0) {
+                        throw new RemoteException("Timed out waiting for space in "
+                                + mConnection.mRing.mFile);
+                    }
+                    if (parkNanos == 0) {
+                        Thread.yield();
+                        parkNanos = 1000;
+                    } else {
+                        LockSupport.parkNanos(parkNanos);
+                        parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                    }
+                }
+            } finally {
+                msg.replyTo = savedReplyTo;
+            }
+        }
+
+        private static byte[] replyToPath(Messenger replyTo) {
+            if (replyTo == null) {
+                return NO_REPLY_TO;
+            }
+            final IBinder binder = replyTo.getBinder();
+            if (!(binder instanceof Sender)) {
+                throw new IllegalArgumentException(
+                        "replyTo must be a RingMessenger Messenger: " + replyTo);
+            }
+            return ((Sender) binder).mConnection.mPath;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * 基于NIO {@link Selector}的阻塞后端。除了等待消息，还可以在looper线程上监听
+ * {@link SelectableChannel}的就绪事件，相当于native Looper对文件描述符的监听。
+ *
+ * <p>
+ *     Selector.register()在另一个线程正阻塞于select()时会一直等待，所以注册请求先放入
+ *     mPendingChanges，由looper线程在下一次select()之前处理。
+ * </p>
+ */
+final class SelectorPoller extends Poller {
+    private static final String TAG = "SelectorPoller";
+
+    private final Selector mSelector;
+    /**looper线程是否阻塞在select()中**/
+    private volatile boolean mPolling;
+
+    /**等待looper线程处理的注册/注销请求，guarded by itself**/
+    private final ArrayList<ChannelChange> mPendingChanges = new ArrayList<ChannelChange>();
+
+    private static final class ChannelChange {
+        final SelectableChannel channel;
+        final int ops;
+        /**为null表示注销**/
+        final MessageQueue.OnChannelEventListener listener;
+
+        ChannelChange(SelectableChannel channel, int ops,
+                MessageQueue.OnChannelEventListener listener) {
+            this.channel = channel;
+            this.ops = ops;
+            this.listener = listener;
+        }
+    }
+
+    SelectorPoller() {
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open selector", e);
+        }
+    }
+
+    /**
+     * 请求监听channel的ops事件。可在任意线程调用，实际注册发生在looper线程的下一次poll。
+     */
+    void setChannelListener(SelectableChannel channel, int ops,
+            MessageQueue.OnChannelEventListener listener) {
+        synchronized (mPendingChanges) {
+            mPendingChanges.add(new ChannelChange(channel, ops, listener));
+        }
+        wake();
+    }
+
+    @Override
+    void onPollOnce(int timeoutMillis) {
+        applyPendingChanges();
+        try {
+            if (timeoutMillis == 0) {
+                mSelector.selectNow();
+            } else {
+                //带着中断标识的线程每次select()都会立即返回，导致空转：与ParkingPoller一样先清除，
+                //返回后恢复。阻塞期间的中断只是让select()提前返回，相当于一次唤醒
+                final boolean interrupted = Thread.interrupted();
+                mPolling = true;
+                try {
+                    if (timeoutMillis < 0) {
+                        mSelector.select();
+                    } else {
+                        mSelector.select(timeoutMillis);
+                    }
+                } finally {
+                    mPolling = false;
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "select failed", e);
+            return;
+        }
+        dispatchSelectedKeys();
+    }
+
+    @Override
+    void onWake() {
+        //select()之前调用wakeup()会使下一次select()立即返回，与eventfd的语义一致
+        mSelector.wakeup();
+    }
+
+    @Override
+    boolean isIdling() {
+        return mPolling;
+    }
+
+    @Override
+    void dispose() {
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+    }
+
+    private void applyPendingChanges() {
+        final ChannelChange[] changes;
+        synchronized (mPendingChanges) {
+            if (mPendingChanges.isEmpty()) {
+                return;
+            }
+            changes = mPendingChanges.toArray(new ChannelChange[mPendingChanges.size()]);
+            mPendingChanges.clear();
+        }
+        for (ChannelChange change : changes) {
+            final SelectionKey key = change.channel.keyFor(mSelector);
+            if (change.listener == null || change.ops == 0) {
+                if (key != null) {
+                    key.cancel();
+                }
+                continue;
+            }
+            try {
+                if (change.channel.isBlocking()) {
+                    change.channel.configureBlocking(false);
+                }
+                change.channel.register(mSelector, change.ops, change.listener);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not register " + change.channel, e);
+            }
+        }
+    }
+
+    /**在looper线程上回调就绪的channel，回调返回新的监听事件，返回0则注销**/
+    private void dispatchSelectedKeys() {
+        final Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            final SelectionKey key = it.next();
+            it.remove();
+            final MessageQueue.OnChannelEventListener listener =
+                    (MessageQueue.OnChannelEventListener) key.attachment();
+            try {
+                final int newOps = listener.onChannelEvents(key.channel(), key.readyOps());
+                if (newOps == 0) {
+                    key.cancel();
+                } else if (newOps != key.interestOps()) {
+                    key.interestOps(newOps);
+                }
+            } catch (CancelledKeyException e) {
+                //channel在回调中被关闭，忽略
+            } catch (Throwable t) {
+                Log.wtf(TAG, "OnChannelEventListener threw exception", t);
+                key.cancel();
+            }
+        }
+    }
+}
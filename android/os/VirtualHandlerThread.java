@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * 在虚拟线程上运行Looper的{@link HandlerThread}。虚拟线程只能由Thread.Builder创建，不能被继承，所以这个
+ * 类不是Thread的子类，而是持有一个线程；用法与HandlerThread相同：{@link #start()}之后用
+ * {@link #getLooper()}创建Handler。
+ *
+ * <p>
+ *     消息队列总是使用{@link ParkingPoller}，等待消息时通过LockSupport.park让出carrier线程，而不是像
+ *     本地后端那样在本地代码中阻塞并占住carrier；配置中的阻塞/唤醒后端类型被忽略。消息池对虚拟线程不使用
+ *     线程私有缓存（见{@link Message#obtain()}），因此创建大量短命的VirtualHandlerThread不会把消息
+ *     困在已经结束的线程里。
+ * </p>
+ * <p>
+ *     消息队列的锁仍然是对象锁（synchronized），持锁的时间很短；但{@link MessageQueue#OVERFLOW_BLOCK}
+ *     的发送方在锁上wait()，在Java 21到23上会在整个等待期间钉住虚拟线程的carrier，详见它的说明。
+ * </p>
+ * <p>
+ *     运行时不支持虚拟线程（Java 21之前）时退回到普通线程，行为与HandlerThread相同，可以用
+ *     {@link #isVirtual()}区分。
+ * </p>
+ */
+public class VirtualHandlerThread {
+    private final String mName;
+    /**创建Looper时使用的消息队列配置，可为null**/
+    private final MessageQueue.Config mQueueConfig;
+
+    private Thread mThread;  // guarded by this
+    private Looper mLooper;  // guarded by this
+    /**线程已经退出（包括prepare失败），getLooper()不再等待**/
+    private boolean mFinished;  // guarded by this
+
+    public VirtualHandlerThread(String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param config 消息队列配置，参考{@link Looper#prepare(MessageQueue.Config)}；为null时使用默认配置
+     */
+    public VirtualHandlerThread(String name, MessageQueue.Config config) {
+        mName = name;
+        mQueueConfig = config;
+    }
+
+    /**
+     * Call back method that can be explicitly overridden if needed to execute some
+     * setup before Looper loops.
+     */
+    protected void onLooperPrepared() {
+    }
+
+    /**
+     * 创建并启动线程。
+     * @exception IllegalThreadStateException 已经启动过
+     */
+    public void start() {
+        final Thread thread;
+        synchronized (this) {
+            if (mThread != null) {
+                throw new IllegalThreadStateException(mName + " already started");
+            }
+            thread = VirtualThreads.newThread(mName, new Runnable() {
+                @Override
+                public void run() {
+                    runLooper();
+                }
+            });
+            mThread = thread;
+        }
+        thread.start();
+    }
+
+    private void runLooper() {
+        try {
+            Looper.prepare(mQueueConfig, new ParkingPoller());
+            synchronized (this) {
+                mLooper = Looper.myLooper();
+                notifyAll();
+            }
+            onLooperPrepared();
+            Looper.loop();
+        } finally {
+            synchronized (this) {
+                mFinished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 与{@link HandlerThread#getLooper()}相同：没有启动或者已经退出时返回null，已经启动时等待Looper创建完成。
+     */
+    public Looper getLooper() {
+        synchronized (this) {
+            if (mThread == null) {
+                return null;
+            }
+            while (mLooper == null && !mFinished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+            return mFinished ? null : mLooper;
+        }
+    }
+
+    /**
+     * @see HandlerThread#quit()
+     */
+    public boolean quit() {
+        Looper looper = getLooper();
+        if (looper != null) {
+            looper.quit();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @see HandlerThread#quitSafely()
+     */
+    public boolean quitSafely() {
+        Looper looper = getLooper();
+        if (looper != null) {
+            looper.quitSafely();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 运行Looper的线程，没有启动时为null
+     */
+    public synchronized Thread getThread() {
+        return mThread;
+    }
+
+    /**
+     * @return 是否运行在虚拟线程上；没有启动时返回运行时是否支持虚拟线程
+     */
+    public boolean isVirtual() {
+        final Thread thread = getThread();
+        return thread != null ? VirtualThreads.isVirtual(thread) : VirtualThreads.isSupported();
+    }
+
+    /**
+     * 等待线程结束，没有启动时立即返回。
+     */
+    public void join() throws InterruptedException {
+        final Thread thread = getThread();
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2006 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * 虚拟线程（Java 21的Thread.ofVirtual()）的反射封装。本代码需要在没有虚拟线程的运行时上编译和运行，
+ * 所以所需的方法在类加载时查找一次，找不到时{@link #isSupported()}返回false，{@link #newThread}
+ * 退回到普通线程。
+ */
+final class VirtualThreads {
+    /**Thread.isVirtual()**/
+    private static final Method sIsVirtual;
+    /**Thread.ofVirtual()**/
+    private static final Method sOfVirtual;
+    /**Thread.Builder.name(String)**/
+    private static final Method sBuilderName;
+    /**Thread.Builder.unstarted(Runnable)**/
+    private static final Method sBuilderUnstarted;
+
+    static {
+        Method isVirtual = null;
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            isVirtual = null;
+        }
+        sIsVirtual = isVirtual;
+        sOfVirtual = isVirtual != null ? ofVirtual : null;
+        sBuilderName = isVirtual != null ? name : null;
+        sBuilderUnstarted = isVirtual != null ? unstarted : null;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return 运行时是否支持虚拟线程
+     */
+    static boolean isSupported() {
+        return sIsVirtual != null;
+    }
+
+    /**
+     * @return thread是否是虚拟线程。每次调用都要经过反射，不要放在热路径上
+     */
+    static boolean isVirtual(Thread thread) {
+        if (sIsVirtual == null) {
+            return false;
+        }
+        try {
+            return (Boolean) sIsVirtual.invoke(thread);
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 创建一个未启动的线程：支持时是虚拟线程，否则是普通线程。
+     */
+    static Thread newThread(String name, Runnable target) {
+        if (sOfVirtual != null) {
+            try {
+                final Object builder = sBuilderName.invoke(sOfVirtual.invoke(null), name);
+                return (Thread) sBuilderUnstarted.invoke(builder, target);
+            } catch (IllegalAccessException e) {
+                // 退回到普通线程
+            } catch (InvocationTargetException e) {
+                // 退回到普通线程
+            }
+        }
+        return new Thread(target, name);
+    }
+}
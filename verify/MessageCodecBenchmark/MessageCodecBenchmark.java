@@ -0,0 +1,112 @@
+package android.os;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 对比{@link MessageCodec}与Parcel路径（writeToParcel、marshall、unmarshall、createFromParcel）
+ * 编码再解码同一批消息的开销。Parcel只能在Android上运行，所以这个程序需要在设备上与android.os同包运行。
+ *
+ * 模拟场景：每个消息带what/arg1/arg2和一个含有几个常见类型的Bundle，obj为null（Parcel只能编码
+ * Parcelable的obj，这里不引入额外的Parcelable类型）。
+ */
+public class MessageCodecBenchmark {
+
+    private static final int COUNT = 10000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        final Message[] messages = new Message[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            final Message m = Message.obtain();
+            m.what = i % 16;
+            m.arg1 = i;
+            m.arg2 = -i;
+            m.when = 1000000L + i;
+            final Bundle data = new Bundle();
+            data.putInt("id", i);
+            data.putLong("time", 1000000L * i);
+            data.putString("name", "message-" + i);
+            data.putByteArray("payload", new byte[32]);
+            m.setData(data);
+            messages[i] = m;
+        }
+
+        final MessageCodec codec = new MessageCodec();
+        final ByteBuffer heap = ByteBuffer.allocate(256);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(256);
+
+        //先预热一轮，再取多轮的最好成绩
+        runParcel(messages);
+        runCodec(codec, messages, heap);
+        runCodec(codec, messages, direct);
+        long parcel = Long.MAX_VALUE;
+        long codecHeap = Long.MAX_VALUE;
+        long codecDirect = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            parcel = Math.min(parcel, runParcel(messages));
+            codecHeap = Math.min(codecHeap, runCodec(codec, messages, heap));
+            codecDirect = Math.min(codecDirect, runCodec(codec, messages, direct));
+        }
+
+        System.out.println("messages=" + COUNT
+                + "\tparcel=" + (parcel / 1000) + "us"
+                + "\tcodec(heap)=" + (codecHeap / 1000) + "us"
+                + "\tcodec(direct)=" + (codecDirect / 1000) + "us"
+                + "\tspeedup=" + String.format("%.1f", (double) parcel / codecHeap) + "x");
+
+        final Parcel p = Parcel.obtain();
+        messages[0].writeToParcel(p, 0);
+        final int parcelSize = p.dataSize();
+        p.recycle();
+        heap.clear();
+        System.out.println("bytes per message: parcel=" + parcelSize
+                + "\tcodec=" + codec.encode(messages[0], heap));
+    }
+
+    /**@return 耗时（纳秒）**/
+    private static long runParcel(Message[] messages) {
+        long checksum = 0;
+        final long start = System.nanoTime();
+        for (Message m : messages) {
+            final Parcel out = Parcel.obtain();
+            m.writeToParcel(out, 0);
+            final byte[] bytes = out.marshall();
+            out.recycle();
+
+            final Parcel in = Parcel.obtain();
+            in.unmarshall(bytes, 0, bytes.length);
+            in.setDataPosition(0);
+            final Message copy = Message.CREATOR.createFromParcel(in);
+            in.recycle();
+            checksum += copy.arg1;
+            copy.recycle();
+        }
+        final long elapsed = System.nanoTime() - start;
+        check(checksum, messages);
+        return elapsed;
+    }
+
+    /**@return 耗时（纳秒）**/
+    private static long runCodec(MessageCodec codec, Message[] messages, ByteBuffer buffer) {
+        long checksum = 0;
+        final long start = System.nanoTime();
+        for (Message m : messages) {
+            buffer.clear();
+            codec.encode(m, buffer);
+            buffer.flip();
+            final Message copy = codec.decode(buffer);
+            checksum += copy.arg1;
+            copy.recycle();
+        }
+        final long elapsed = System.nanoTime() - start;
+        check(checksum, messages);
+        return elapsed;
+    }
+
+    private static void check(long checksum, Message[] messages) {
+        final long expected = (long) messages.length * (messages.length - 1) / 2;
+        if (checksum != expected) {
+            throw new AssertionError("decoded messages differ");
+        }
+    }
+}
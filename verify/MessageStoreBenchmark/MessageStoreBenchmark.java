@@ -0,0 +1,66 @@
+package android.os;
+
+import java.util.Random;
+
+/**
+ * 对比{@link LinkedMessageStore}（原mMessages链表）与{@link HeapMessageStore}的入队、出队、
+ * 按引用移除开销。需要与android.os同包编译运行，因为消息存储是包内可见的。
+ *
+ * 模拟场景：一个繁忙的Looper上挂着大量postDelayed超时，随机延时入队，一半超时被提前移除，
+ * 剩下的按投递顺序逐个取出。
+ */
+public class MessageStoreBenchmark {
+
+    private static final int[] SIZES = {100, 1000, 10000};
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            //先预热一轮，再取多轮的最好成绩
+            run(new LinkedMessageStore(), size);
+            run(new HeapMessageStore(), size);
+            long list = Long.MAX_VALUE;
+            long heap = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                list = Math.min(list, run(new LinkedMessageStore(), size));
+                heap = Math.min(heap, run(new HeapMessageStore(), size));
+            }
+            System.out.println("pending=" + size
+                    + "\tlist=" + (list / 1000) + "us"
+                    + "\theap=" + (heap / 1000) + "us"
+                    + "\tspeedup=" + String.format("%.1f", (double) list / heap) + "x");
+        }
+    }
+
+    /**@return 耗时（纳秒）**/
+    private static long run(MessageStore store, int size) {
+        final Random random = new Random(size);
+        final Message[] messages = new Message[size];
+        for (int i = 0; i < size; i++) {
+            final Message m = new Message();
+            m.when = 1000 + random.nextInt(30000);
+            m.seq = i;
+            messages[i] = m;
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            store.insert(messages[i]);
+        }
+        //一半的超时在到期前被取消
+        for (int i = 0; i < size; i += 2) {
+            store.remove(messages[i]);
+        }
+        //剩下的按投递顺序取出
+        long last = Long.MIN_VALUE;
+        Message m;
+        while ((m = store.peek()) != null) {
+            if (m.when < last) {
+                throw new AssertionError("out of order");
+            }
+            last = m.when;
+            store.remove(m);
+        }
+        return System.nanoTime() - start;
+    }
+}
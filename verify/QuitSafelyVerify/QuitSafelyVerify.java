@@ -0,0 +1,64 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 验证批量分发时{@link Looper#quitSafely()}仍然投递所有已到期的消息：looper分发一个批次的第一个消息时
+ * 退出，批次中剩下的消息都已到期，必须照常分发；消息存储中只剩一个未到期的消息，它应当被丢弃。
+ * 需要与android.os同包编译。
+ */
+public class QuitSafelyVerify {
+
+    private static final int BATCH = 8;
+
+    public static void main(String[] args) throws Exception {
+        final HandlerThread thread = new HandlerThread("quit-safely", 0,
+                new MessageQueue.Config().setPollerType(MessageQueue.POLLER_PARKING));
+        thread.start();
+        final Looper looper = thread.getLooper();
+        looper.setBatchDispatch(BATCH * 2, 0);
+
+        final List<Integer> delivered = new ArrayList<Integer>();
+        final Handler handler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                delivered.add(msg.what);
+                if (msg.what == 0) {
+                    //批次只消费了一个消息，队首是未到期的消息
+                    looper.quitSafely();
+                }
+            }
+        };
+
+        //先挡住looper，让下面的消息在同一个批次中被取出
+        final CountDownLatch release = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for (int i = 0; i < BATCH; i++) {
+            handler.sendEmptyMessage(i);
+        }
+        handler.sendEmptyMessageDelayed(100, 60000);
+        release.countDown();
+        thread.join(5000);
+
+        final List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < BATCH; i++) {
+            expected.add(i);
+        }
+        System.out.println("delivered=" + delivered);
+        if (thread.isAlive() || !delivered.equals(expected)) {
+            throw new AssertionError("quitSafely() dropped due messages of the current batch");
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,182 @@
+package android.os;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RingMessenger}跨进程的吞吐与往返延时。发送端和回声端运行在用同一个classpath启动的子进程里，
+ * 所以需要与android.os同包编译，在能启动java子进程的JVM上运行。
+ *
+ * 吞吐：1个或者2个子进程各发送COUNT个消息（带一个小Bundle），从启动发送到主进程的Handler收齐为止。
+ * 延时：主进程向子进程的回声Handler发送带replyTo的消息，子进程通过replyTo原样回复，逐个测量往返时间。
+ */
+public class RingMessengerBenchmark {
+
+    private static final int COUNT = 500000;
+    private static final int PINGS = 20000;
+    private static final int WARMUP_PINGS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            if ("send".equals(args[0])) {
+                send(new File(args[1]), Integer.parseInt(args[2]));
+            } else {
+                echo(new File(args[1]));
+            }
+            return;
+        }
+        final MessageCodec codec = new MessageCodec();
+        final HandlerThread thread = new HandlerThread("receiver", 0,
+                new MessageQueue.Config().setPollerType(MessageQueue.POLLER_PARKING));
+        thread.start();
+
+        for (int producers = 1; producers <= 2; producers++) {
+            throughput(codec, thread.getLooper(), producers);
+        }
+        latency(codec, thread.getLooper());
+        thread.quit();
+    }
+
+    private static void throughput(MessageCodec codec, Looper looper, int producers)
+            throws Exception {
+        final int total = COUNT * producers;
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = new Handler(looper) {
+            private int mCount;
+
+            @Override
+            public void handleMessage(Message msg) {
+                if (++mCount == total) {
+                    done.countDown();
+                }
+            }
+        };
+        final File file = File.createTempFile("ring", ".bench");
+        final RingMessenger.Receiver receiver = RingMessenger.listen(file,
+                RingMessenger.DEFAULT_CAPACITY, producers == 1, handler, codec);
+        final long start = System.nanoTime();
+        final java.lang.Process[] children = new java.lang.Process[producers];
+        for (int i = 0; i < producers; i++) {
+            children[i] = child("send", file.getPath(), String.valueOf(COUNT));
+        }
+        done.await();
+        final long elapsed = System.nanoTime() - start;
+        for (java.lang.Process child : children) {
+            child.waitFor();
+        }
+        receiver.close();
+        file.delete();
+        //包含子进程的启动时间，所以是偏保守的数字
+        System.out.println("producers=" + producers
+                + "\tmessages=" + total
+                + "\t" + (total * 1000000000L / elapsed) + " msg/s"
+                + "\twakeups=" + receiver.getWakeupCount());
+    }
+
+    private static void latency(MessageCodec codec, Looper looper) throws Exception {
+        final SynchronousQueue<Long> pongs = new SynchronousQueue<Long>();
+        final Handler handler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                try {
+                    pongs.put(System.nanoTime());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final File replyFile = File.createTempFile("ring", ".reply");
+        final File echoFile = File.createTempFile("ring", ".echo");
+        echoFile.delete();
+        final RingMessenger.Receiver receiver = RingMessenger.listen(replyFile,
+                RingMessenger.DEFAULT_CAPACITY, true, handler, codec);
+        final java.lang.Process child = child("echo", echoFile.getPath());
+        Messenger echo = null;
+        while (echo == null) {
+            try {
+                echo = RingMessenger.connect(echoFile, codec);
+            } catch (java.io.IOException e) {
+                Thread.sleep(10);//等待子进程创建ring
+            }
+        }
+        final Messenger replyTo = receiver.getMessenger();
+        final LogLinearHistogram histogram = new LogLinearHistogram();
+        final Message ping = Message.obtain();
+        ping.replyTo = replyTo;
+        for (int i = 0; i < WARMUP_PINGS + PINGS; i++) {
+            ping.arg1 = i;
+            final long start = System.nanoTime();
+            echo.send(ping);
+            final long end = pongs.take();
+            if (i >= WARMUP_PINGS) {
+                histogram.record((end - start) / 1000);
+            }
+            //间隔一段时间，让接收线程进入睡眠，测到的是包括门铃唤醒在内的延时
+            if (i % 2 == 1) {
+                Thread.sleep(1);
+            }
+        }
+        ping.what = -1;//通知子进程退出
+        echo.send(ping);
+        child.waitFor(10, TimeUnit.SECONDS);
+        receiver.close();
+        replyFile.delete();
+        echoFile.delete();
+        System.out.println("round trip (us): mean=" + String.format("%.1f", histogram.getMean())
+                + "\tp50=" + histogram.getValueAtPercentile(50)
+                + "\tp99=" + histogram.getValueAtPercentile(99)
+                + "\tmax=" + histogram.getMax());
+    }
+
+    private static java.lang.Process child(String... args) throws java.io.IOException {
+        final String[] command = new String[args.length + 4];
+        command[0] = new File(System.getProperty("java.home"), "bin/java").getPath();
+        command[1] = "-cp";
+        command[2] = System.getProperty("java.class.path");
+        command[3] = RingMessengerBenchmark.class.getName();
+        System.arraycopy(args, 0, command, 4, args.length);
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    private static void send(File file, int count) throws Exception {
+        final Messenger messenger = RingMessenger.connect(file, new MessageCodec());
+        final Message msg = Message.obtain();
+        final Bundle data = new Bundle();
+        data.putLong("time", 0);
+        data.putString("name", "benchmark");
+        msg.setData(data);
+        for (int i = 0; i < count; i++) {
+            msg.arg1 = i;
+            //发送方继续持有消息，可以复用
+            messenger.send(msg);
+        }
+    }
+
+    private static void echo(File file) throws Exception {
+        final HandlerThread thread = new HandlerThread("echo", 0,
+                new MessageQueue.Config().setPollerType(MessageQueue.POLLER_PARKING));
+        thread.start();
+        final CountDownLatch quit = new CountDownLatch(1);
+        final Handler handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == -1) {
+                    quit.countDown();
+                    return;
+                }
+                try {
+                    msg.replyTo.send(msg);
+                } catch (RemoteException e) {
+                    quit.countDown();
+                }
+            }
+        };
+        final RingMessenger.Receiver receiver = RingMessenger.listen(file,
+                RingMessenger.DEFAULT_CAPACITY, true, handler, new MessageCodec());
+        quit.await();
+        receiver.close();
+        thread.quit();
+    }
+}
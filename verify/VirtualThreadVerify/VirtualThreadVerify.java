@@ -0,0 +1,76 @@
+package android.os;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在虚拟线程上运行{@link VirtualHandlerThread}，并让许多虚拟线程按{@link MessageQueue#OVERFLOW_BLOCK}
+ * 向一个容量很小的队列发送，验证所有消息都按发送顺序送达、没有发送方被永久阻塞。
+ * 运行时不支持虚拟线程时退回到普通线程，同样可以运行。在Java 21到23上加
+ * -Djdk.tracePinnedThreads=full运行，可以看到等待容量时钉住carrier的调用栈。需要与android.os同包编译。
+ */
+public class VirtualThreadVerify {
+
+    private static final int PRODUCERS = 64;
+    private static final int MESSAGES = 200;
+    private static final int CAPACITY = 16;
+
+    public static void main(String[] args) throws Exception {
+        final VirtualHandlerThread thread = new VirtualHandlerThread("virtual-looper",
+                new MessageQueue.Config()
+                        .setCapacity(CAPACITY, 0)
+                        .setOverflowPolicy(MessageQueue.OVERFLOW_BLOCK, 0));
+        thread.start();
+        System.out.println("virtual=" + thread.isVirtual());
+
+        final int[] last = new int[PRODUCERS];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch delivered = new CountDownLatch(PRODUCERS * MESSAGES);
+        final Handler handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.arg2 != last[msg.arg1] + 1) {
+                    outOfOrder.incrementAndGet();
+                }
+                last[msg.arg1] = msg.arg2;
+                delivered.countDown();
+            }
+        };
+        for (int i = 0; i < PRODUCERS; i++) {
+            last[i] = -1;
+        }
+
+        final AtomicInteger refused = new AtomicInteger();
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int id = i;
+            producers[i] = VirtualThreads.newThread("producer-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < MESSAGES; j++) {
+                        if (!handler.sendMessage(handler.obtainMessage(0, id, j))) {
+                            refused.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        final long start = System.nanoTime();
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join(30000);
+        }
+        final boolean done = delivered.await(30, java.util.concurrent.TimeUnit.SECONDS);
+        System.out.println("delivered=" + (PRODUCERS * MESSAGES - delivered.getCount())
+                + " refused=" + refused.get() + " outOfOrder=" + outOfOrder.get()
+                + " ms=" + (System.nanoTime() - start) / 1000000);
+        thread.quit();
+        thread.join();
+        if (!done || refused.get() != 0 || outOfOrder.get() != 0) {
+            throw new AssertionError("blocking producers lost or reordered messages");
+        }
+        System.out.println("OK");
+    }
+}